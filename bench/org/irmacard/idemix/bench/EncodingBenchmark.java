@@ -0,0 +1,101 @@
+/**
+ * EncodingBenchmark.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.bench;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.irmacard.idemix.IdemixSmartcard;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of BigIntegers into APDU data at the size of the modulus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+
+    @Param({"1024", "2048"})
+    public int l_n;
+
+    private BigInteger full;
+    private BigInteger padded;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        // Top bit set: toByteArray() carries an extra sign byte
+        full = Fixtures.random(l_n - 1).setBit(l_n - 1);
+        // Shorter than the modulus: needs padding
+        padded = Fixtures.random(l_n - 17);
+        buffer = new byte[l_n / 8];
+    }
+
+    @Benchmark
+    public byte[] unsignedByteArray() {
+        return IdemixSmartcard.BigIntegerToUnsignedByteArray(full);
+    }
+
+    @Benchmark
+    public byte[] fixLength() {
+        return IdemixSmartcard.fixLength(full, l_n);
+    }
+
+    @Benchmark
+    public byte[] fixLengthPadded() {
+        return IdemixSmartcard.fixLength(padded, l_n);
+    }
+
+    @Benchmark
+    public byte[] fixLengthInPlace() {
+        IdemixSmartcard.fixLength(padded, l_n, buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public byte[] fixLengthLegacy() {
+        return legacyFixLength(padded, l_n);
+    }
+
+    /**
+     * The original fixLength: unsigned conversion followed by a padded copy.
+     */
+    private static byte[] legacyFixLength(BigInteger integer, int length_in_bits) {
+        byte[] array = IdemixSmartcard.BigIntegerToUnsignedByteArray(integer);
+        int length = (length_in_bits + 7) / 8;
+        byte[] fixed = new byte[length];
+        Arrays.fill(fixed, (byte) 0x00);
+        System.arraycopy(array, 0, fixed, length - array.length, array.length);
+        return fixed;
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Fixtures.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.bench;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.ProtocolResponse;
+import net.sourceforge.scuba.smartcards.ProtocolResponses;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+import org.irmacard.idemix.IdemixService;
+
+import com.ibm.zurich.credsystem.utils.Locations;
+import com.ibm.zurich.idmx.dm.Values;
+import com.ibm.zurich.idmx.dm.structure.AttributeStructure;
+import com.ibm.zurich.idmx.dm.structure.CredentialStructure;
+import com.ibm.zurich.idmx.issuance.IssuanceSpec;
+import com.ibm.zurich.idmx.issuance.Message;
+import com.ibm.zurich.idmx.issuance.Message.IssuanceProtocolValues;
+import com.ibm.zurich.idmx.showproof.Proof;
+import com.ibm.zurich.idmx.showproof.ProofSpec;
+import com.ibm.zurich.idmx.showproof.sval.SValue;
+import com.ibm.zurich.idmx.utils.StructureStore;
+import com.ibm.zurich.idmx.utils.SystemParameters;
+
+/**
+ * Issuer key, credential structure and proof specification used by the
+ * benchmarks, loaded from a parameter directory laid out like files/.
+ */
+public class Fixtures {
+
+    /** Id that is used within the test files to identify the elements. */
+    public static final URI BASE_ID = URI.create("http://www.zurich.ibm.com/security/idmx/v2/");
+
+    /** Id that is used within the test files to identify the issuer. */
+    public static final URI ISSUER_ID = URI.create("http://www.issuer.com/");
+
+    /** Credential structure used for issuance and proving. */
+    public static final String CRED_STRUCT = "CredStructCard4";
+
+    /** Proof specification over {@link #CRED_STRUCT}. */
+    public static final String PROOF_SPEC = "ProofSpecCard4";
+
+    /** Second credential structure, used for proofs over two credentials. */
+    public static final String OTHER_CRED_STRUCT = "CredStructCard5";
+
+    /** Proof specification over {@link #CRED_STRUCT} and {@link #OTHER_CRED_STRUCT}. */
+    public static final String MULTI_PROOF_SPEC = "ProofSpecCard4And5";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    public final IssuanceSpec issuanceSpec;
+    public final IssuanceSpec otherIssuanceSpec;
+    public final ProofSpec proofSpec;
+    public final ProofSpec multiProofSpec;
+    public final SystemParameters sysPars;
+
+    /**
+     * Load the fixtures.
+     *
+     * @param parameters directory containing gp.xml and sp.xml, relative to
+     *        the working directory; its siblings should contain the issuer
+     *        data and proof specifications.
+     */
+    public Fixtures(String parameters) {
+        URI baseLocation = new File(System.getProperty("user.dir"))
+                .toURI().resolve(parameters.endsWith("/") ? parameters : parameters + "/");
+        URI issuerLocation = baseLocation.resolve("../issuerData/");
+
+        Locations.initSystem(baseLocation, BASE_ID.toString());
+        Locations.init(ISSUER_ID.resolve("ipk.xml"), issuerLocation.resolve("ipk.xml"));
+
+        URI credStructId;
+        URI otherCredStructId;
+        try {
+            credStructId = new URI("http://www.ngo.org/" + CRED_STRUCT + ".xml");
+            otherCredStructId = new URI("http://www.ngo.org/" + OTHER_CRED_STRUCT + ".xml");
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+        Locations.init(credStructId, issuerLocation.resolve(CRED_STRUCT + ".xml"));
+        Locations.init(otherCredStructId, issuerLocation.resolve(OTHER_CRED_STRUCT + ".xml"));
+
+        issuanceSpec = new IssuanceSpec(ISSUER_ID.resolve("ipk.xml"), credStructId);
+        otherIssuanceSpec = new IssuanceSpec(ISSUER_ID.resolve("ipk.xml"), otherCredStructId);
+        proofSpec = (ProofSpec) StructureStore.getInstance().get(
+                baseLocation.resolve("../proofSpecifications/" + PROOF_SPEC + ".xml"));
+        multiProofSpec = (ProofSpec) StructureStore.getInstance().get(
+                baseLocation.resolve("../proofSpecifications/" + MULTI_PROOF_SPEC + ".xml"));
+        sysPars = issuanceSpec.getPublicKey().getGroupParams().getSystemParams();
+    }
+
+    /**
+     * @return a random positive integer of the given size.
+     */
+    public static BigInteger random(int bits) {
+        return new BigInteger(bits, random);
+    }
+
+    /**
+     * @return the first issuance message from the issuer (nonce n1).
+     */
+    public Message round0Message() {
+        HashMap<IssuanceProtocolValues, BigInteger> values =
+                new HashMap<IssuanceProtocolValues, BigInteger>();
+        values.put(IssuanceProtocolValues.nonce, random(sysPars.getL_Phi()));
+        return new Message(values, null);
+    }
+
+    /**
+     * @return the second issuance message from the issuer (signature and
+     *         proof of its correctness).
+     */
+    public Message round2Message() {
+        HashMap<IssuanceProtocolValues, BigInteger> values =
+                new HashMap<IssuanceProtocolValues, BigInteger>();
+        values.put(IssuanceProtocolValues.capA, random(sysPars.getL_n() - 1));
+        values.put(IssuanceProtocolValues.e, random(sysPars.getL_e()));
+        values.put(IssuanceProtocolValues.vPrimePrime, random(sysPars.getL_v()));
+
+        HashMap<String, SValue> sValues = new HashMap<String, SValue>();
+        sValues.put(IssuanceSpec.s_e, new SValue(random(sysPars.getL_n() - 1)));
+        Proof proof = new Proof(random(sysPars.getL_H()), sValues,
+                new TreeMap<String, BigInteger>());
+        return new Message(values, proof);
+    }
+
+    /**
+     * Issue a credential on a simulated card, which accepts any signature,
+     * using the messages above. The credential PIN has to be verified.
+     *
+     * @param service connected to the card.
+     * @param spec the issuance specification.
+     * @param id of the credential.
+     * @throws CardServiceException if an error occurred.
+     */
+    public void issue(IdemixService service, IssuanceSpec spec, short id)
+    throws CardServiceException {
+        Values values = new Values(sysPars);
+        int i = 1;
+        for (AttributeStructure attribute : spec.getCredentialStructure().getAttributeStructs()) {
+            values.add(attribute.getName(), BigInteger.valueOf(i++));
+        }
+
+        service.setCredential(id);
+        service.setIssuanceSpecification(spec);
+        service.setAttributes(spec, values);
+        service.executeRound1(round0Message());
+        service.executeRound3(round2Message());
+    }
+
+    /**
+     * @return responses as the card returns them for round 1 of issuance.
+     */
+    public ProtocolResponses round1Responses() {
+        ProtocolResponses responses = new ProtocolResponses();
+        put(responses, "nonce_n1", sysPars.getL_n());
+        put(responses, "proof_c", sysPars.getL_H());
+        put(responses, "vHatPrime", sysPars.getL_n() + sysPars.getL_Phi() + 2 * sysPars.getL_H());
+        put(responses, "proof_s_A", sysPars.getL_m() + sysPars.getL_Phi() + sysPars.getL_H() + 1);
+        put(responses, "nonce_n2", sysPars.getL_Phi());
+        return responses;
+    }
+
+    /**
+     * @return responses as the card returns them when building a proof.
+     */
+    public ProtocolResponses buildProofResponses() {
+        ProtocolResponses responses = new ProtocolResponses();
+        int l_s = sysPars.getL_m() + sysPars.getL_Phi() + sysPars.getL_H() + 1;
+        put(responses, "challenge_c", sysPars.getL_H());
+        put(responses, "signature_A", sysPars.getL_n());
+        put(responses, "signature_e", sysPars.getL_ePrime() + sysPars.getL_Phi() + sysPars.getL_H() + 1);
+        put(responses, "signature_v", sysPars.getL_v() + sysPars.getL_Phi() + sysPars.getL_H() + 1);
+        put(responses, "master", l_s);
+
+        CredentialStructure cred = issuanceSpec.getCredentialStructure();
+        for (AttributeStructure attribute : cred.getAttributeStructs()) {
+            put(responses, "attr_" + attribute.getName(), l_s);
+        }
+        return responses;
+    }
+
+    private static void put(ProtocolResponses responses, String key, int bits) {
+        byte[] data = new byte[(bits + 7) / 8 + 2];
+        random.nextBytes(data);
+        data[data.length - 2] = (byte) 0x90;
+        data[data.length - 1] = 0x00;
+        responses.put(key, new ProtocolResponse(key, new ResponseAPDU(data)));
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * IdemixSmartcardBenchmark.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.bench;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+import net.sourceforge.scuba.smartcards.ProtocolResponses;
+
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.CardVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.zurich.idmx.issuance.Message;
+import com.ibm.zurich.idmx.showproof.Proof;
+
+/**
+ * Host-side construction of the issuance and proving commands, and
+ * processing of the card responses.
+ *
+ * <p>The issuer key determines l_n: files/parameter/ holds a 1024-bit
+ * key and files/2048/parameter/ a 2048-bit key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdemixSmartcardBenchmark {
+
+    @Param({"files/parameter/", "files/2048/parameter/"})
+    public String parameters;
+
+    private final CardVersion cv = new CardVersion(0, 8, 1);
+
+    private Fixtures fixtures;
+    private Message round0;
+    private Message round2;
+    private BigInteger nonce;
+    private ProtocolResponses round1Responses;
+    private ProtocolResponses buildProofResponses;
+    private int pubKeyElements;
+
+    @Setup
+    public void setup() {
+        fixtures = new Fixtures(parameters);
+        round0 = fixtures.round0Message();
+        round2 = fixtures.round2Message();
+        nonce = Fixtures.random(fixtures.sysPars.getL_Phi());
+        round1Responses = fixtures.round1Responses();
+        buildProofResponses = fixtures.buildProofResponses();
+        pubKeyElements = fixtures.issuanceSpec.getCredentialStructure()
+                .getAttributeStructs().size() + 1;
+    }
+
+    @Benchmark
+    public ProtocolCommands setPublicKeyCommands() {
+        return IdemixSmartcard.setPublicKeyCommands(cv,
+                fixtures.issuanceSpec.getPublicKey(), pubKeyElements);
+    }
+
+    @Benchmark
+    public ProtocolCommands setIssuanceSpecificationCommands() {
+        return IdemixSmartcard.setIssuanceSpecificationCommands(cv,
+                fixtures.issuanceSpec, (short) 4);
+    }
+
+    @Benchmark
+    public ProtocolCommands round1Commands() {
+        return IdemixSmartcard.round1Commands(cv, fixtures.issuanceSpec, round0);
+    }
+
+    @Benchmark
+    public Message processRound1Responses() {
+        return IdemixSmartcard.processRound1Responses(cv, round1Responses);
+    }
+
+    @Benchmark
+    public ProtocolCommands round3Commands() {
+        return IdemixSmartcard.round3Commands(cv, fixtures.issuanceSpec, round2);
+    }
+
+    @Benchmark
+    public ProtocolCommands buildProofCommands() {
+        return IdemixSmartcard.buildProofCommands(cv, nonce, fixtures.proofSpec, (short) 4);
+    }
+
+    @Benchmark
+    public Proof processBuildProofResponses() {
+        return IdemixSmartcard.processBuildProofResponses(cv,
+                buildProofResponses, fixtures.proofSpec);
+    }
+}
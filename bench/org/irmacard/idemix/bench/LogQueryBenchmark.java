@@ -0,0 +1,140 @@
+/**
+ * LogQueryBenchmark.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.irmacard.idemix.util.LogArchive;
+import org.irmacard.idemix.util.LogIndex;
+import org.irmacard.idemix.util.LogQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Queries over an archive with a year of log entries, comparing the block
+ * index with a full scan of the archive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogQueryBenchmark {
+
+    private static final long END = 1362725814L;
+    private static final long YEAR = 365L * 24 * 3600;
+    private static final long WEEK = 7L * 24 * 3600;
+
+    @Param({"10000000", "30000000"})
+    public int records;
+
+    private File file;
+    private LogArchive archive;
+    private LogIndex index;
+    private LogQuery lastWeek;
+    private LogQuery terminal;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = File.createTempFile("bench", ".log");
+        file.delete();
+        archive = LogArchive.open(file);
+
+        Random random = new Random(42);
+        byte[] entry = new byte[16];
+        long start = END - YEAR;
+        for (int i = 0; i < records; i++) {
+            long timestamp = start + YEAR * i / records;
+            int terminal = random.nextInt(256);
+            int credential = 1 + random.nextInt(64);
+            int action = 1 + random.nextInt(3);
+            entry[0] = (byte) (timestamp >> 24);
+            entry[1] = (byte) (timestamp >> 16);
+            entry[2] = (byte) (timestamp >> 8);
+            entry[3] = (byte) timestamp;
+            entry[7] = (byte) terminal;
+            entry[8] = (byte) action;
+            entry[10] = (byte) credential;
+            entry[12] = (byte) (action == 2 ? random.nextInt(64) : 0);
+            archive.append(random.nextInt(100000), entry, 0, timestamp * 1000);
+        }
+        index = new LogIndex(archive);
+
+        lastWeek = new LogQuery()
+                .action(IdemixLogEntry.Action.VERIFY)
+                .credential((short) 10)
+                .disclosing((short) 0x3E)
+                .from(END - WEEK);
+        terminal = new LogQuery()
+                .terminal(7)
+                .action(IdemixLogEntry.Action.ISSUE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        archive.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long lastWeekIndexed() throws IOException {
+        return index.count(lastWeek);
+    }
+
+    @Benchmark
+    public long lastWeekScan() throws IOException {
+        return scan(lastWeek);
+    }
+
+    @Benchmark
+    public long terminalIndexed() throws IOException {
+        return index.count(terminal);
+    }
+
+    @Benchmark
+    public long terminalScan() throws IOException {
+        return scan(terminal);
+    }
+
+    private long scan(LogQuery query) throws IOException {
+        long count = 0;
+        LogArchive.Cursor record = archive.cursor();
+        while (record.next()) {
+            if (query.matches(record)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * MultiProofBenchmark.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.bench;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.ProofPlan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.zurich.idmx.showproof.Proof;
+
+/**
+ * Proofs over the two credentials of {@link Fixtures#MULTI_PROOF_SPEC} on a
+ * simulated card with a round trip of 5 ms per APDU, comparing a single
+ * session with a session per credential, which selects the applet and
+ * verifies the PIN again for every proof.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiProofBenchmark {
+
+    private static final byte[] PIN = {0x30, 0x30, 0x30, 0x30};
+
+    /** Credentials matching the predicates of the specification. */
+    private static final short[] IDS = {4, 5};
+
+    @Param({"files/parameter/"})
+    public String parameters;
+
+    private Fixtures fixtures;
+    private IdemixService service;
+
+    @Setup(Level.Trial)
+    public void setup() throws CardServiceException {
+        fixtures = new Fixtures(parameters);
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        service = new IdemixService(card);
+        service.open();
+        service.sendCredentialPin(PIN);
+        fixtures.issue(service, fixtures.issuanceSpec, IDS[0]);
+        fixtures.issue(service, fixtures.otherIssuanceSpec, IDS[1]);
+        service.close();
+        card.setLatency(5, TimeUnit.MILLISECONDS);
+    }
+
+    @Benchmark
+    public List<Proof> singleSession() throws CardServiceException {
+        BigInteger nonce = Fixtures.random(fixtures.sysPars.getL_Phi());
+        service.open();
+        service.sendCredentialPin(PIN);
+        List<Proof> proofs = service.executeBuildProofs(nonce, fixtures.multiProofSpec, IDS);
+        service.close();
+        return proofs;
+    }
+
+    @Benchmark
+    public List<Proof> sessionPerCredential() throws CardServiceException {
+        BigInteger nonce = Fixtures.random(fixtures.sysPars.getL_Phi());
+        List<Proof> proofs = new ArrayList<Proof>(IDS.length);
+        for (int k = 0; k < IDS.length; k++) {
+            service.open();
+            service.sendCredentialPin(PIN);
+            ProofPlan plan = IdemixSmartcard.getProofPlan(service.getCardVersion(),
+                    fixtures.multiProofSpec, k, IDS[k]);
+            proofs.add(plan.process(service.execute(plan.commands(nonce)), 0));
+            service.close();
+        }
+        return proofs;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * SessionBenchmark.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.bench;
+
+import java.math.BigInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import org.irmacard.idemix.CardJob;
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.SessionExecutor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.zurich.idmx.showproof.Proof;
+
+/**
+ * A session on every card of a farm of simulated cards with a round trip
+ * of 5 ms per APDU, comparing virtual threads with a fixed pool of 16
+ * platform threads. A session opens the card, selects the applet, verifies
+ * the PIN, builds a proof over {@link Fixtures#PROOF_SPEC} and closes the
+ * card. The score is the time to serve all cards once, so the session
+ * throughput is the number of cards divided by the score.
+ *
+ * <p>On runtimes without virtual threads (before Java 21) the
+ * <code>virtual</code> executor would fall back to a platform thread per
+ * session, so its setup fails instead of reporting misleading numbers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionBenchmark {
+
+    private static final byte[] PIN = {0x30, 0x30, 0x30, 0x30};
+
+    /** Credential over {@link Fixtures#CRED_STRUCT} on every card. */
+    private static final short ID = 4;
+
+    @Param({"100", "500"})
+    public int cards;
+
+    @Param({"virtual", "pool"})
+    public String executor;
+
+    @Param({"files/parameter/"})
+    public String parameters;
+
+    private Fixtures fixtures;
+    private IdemixCardSimulator[] simulators;
+    private SessionExecutor sessions;
+
+    /**
+     * Session body: build a proof over the credential.
+     */
+    private final CardJob<Proof> job = new CardJob<Proof>() {
+        public Proof run(IdemixService service) throws CardServiceException {
+            BigInteger nonce = Fixtures.random(fixtures.sysPars.getL_Phi());
+            service.setCredential(ID);
+            return service.executeBuildProof(nonce, fixtures.proofSpec);
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() throws CardServiceException {
+        fixtures = new Fixtures(parameters);
+        simulators = new IdemixCardSimulator[cards];
+        for (int i = 0; i < cards; i++) {
+            simulators[i] = new IdemixCardSimulator();
+            IdemixService service = new IdemixService(simulators[i]);
+            service.open();
+            service.sendCredentialPin(PIN);
+            fixtures.issue(service, fixtures.issuanceSpec, ID);
+            service.close();
+            simulators[i].setLatency(5, TimeUnit.MILLISECONDS);
+        }
+        sessions = executor.equals("virtual") ? new SessionExecutor()
+                : new SessionExecutor(Executors.newFixedThreadPool(16));
+        if (executor.equals("virtual") && !sessions.isVirtual()) {
+            sessions.shutdown();
+            throw new IllegalStateException("Virtual threads are not supported by this runtime");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        sessions.shutdown();
+        sessions.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public Proof[] serveAllCards() throws Exception {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Proof>[] results = new CompletableFuture[cards];
+        for (int i = 0; i < cards; i++) {
+            results[i] = sessions.submit(simulators[i], PIN, job);
+        }
+        Proof[] proofs = new Proof[cards];
+        for (int i = 0; i < cards; i++) {
+            proofs[i] = results[i].get();
+        }
+        return proofs;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * VerificationBenchmark.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.bench;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.ProofVerifier;
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.FixedBaseTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ibm.zurich.idmx.key.IssuerPublicKey;
+import com.ibm.zurich.idmx.showproof.Proof;
+import com.ibm.zurich.idmx.showproof.Verifier;
+
+/**
+ * Verification of card proofs with the fixed-base tables of the issuer
+ * public key, compared with the plain Idemix verifier, in verifications per
+ * second.
+ *
+ * <p>The proof is built from random card responses, so it does not verify;
+ * both verifiers still do the full computation before comparing the
+ * challenge. <code>tablesVerify</code> measures the recomputation through
+ * {@link ProofVerifier#computeChallenge}, which is what
+ * {@link ProofVerifier#verify} costs for a valid proof.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VerificationBenchmark {
+
+    @Param({"files/parameter/", "files/2048/parameter/"})
+    public String parameters;
+
+    private final ProofVerifier verifier = new ProofVerifier();
+
+    private Fixtures fixtures;
+    private Proof proof;
+    private BigInteger nonce;
+    private BigInteger capS;
+    private BigInteger n;
+    private BigInteger vHat;
+    private FixedBaseTable tableS;
+
+    @Setup
+    public void setup() {
+        fixtures = new Fixtures(parameters);
+        nonce = Fixtures.random(fixtures.sysPars.getL_Phi());
+        proof = IdemixSmartcard.processBuildProofResponses(new CardVersion(0, 8, 1),
+                fixtures.buildProofResponses(), fixtures.proofSpec);
+
+        IssuerPublicKey pk = fixtures.issuanceSpec.getPublicKey();
+        int l_v = fixtures.sysPars.getL_v() + fixtures.sysPars.getL_Phi()
+                + fixtures.sysPars.getL_H() + 1;
+        capS = pk.getCapS();
+        n = pk.getN();
+        vHat = Fixtures.random(l_v);
+        tableS = new FixedBaseTable(capS, n, l_v);
+
+        // Build the tables outside of the measurement
+        verifier.computeChallenge(fixtures.proofSpec, proof, nonce);
+    }
+
+    @Benchmark
+    public BigInteger tablesVerify() {
+        return verifier.computeChallenge(fixtures.proofSpec, proof, nonce);
+    }
+
+    @Benchmark
+    public boolean plainVerify() {
+        return new Verifier(fixtures.proofSpec, proof, nonce).verify();
+    }
+
+    @Benchmark
+    public BigInteger tablePowS() {
+        return tableS.pow(vHat);
+    }
+
+    @Benchmark
+    public BigInteger modPowS() {
+        return capS.modPow(vHat, n);
+    }
+}
@@ -0,0 +1,335 @@
+/**
+ * AsyncIdemixService.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import com.ibm.zurich.idmx.dm.Values;
+import com.ibm.zurich.idmx.issuance.IssuanceSpec;
+import com.ibm.zurich.idmx.issuance.Message;
+import com.ibm.zurich.idmx.showproof.Proof;
+import com.ibm.zurich.idmx.showproof.ProofSpec;
+
+/**
+ * Asynchronous facade for an {@link IdemixService}.
+ *
+ * <p>Every operation is queued on an executor dedicated to the card, which
+ * runs the operations one at a time in submission order, and immediately
+ * returns a {@link CompletableFuture} for its result. A failing operation
+ * completes its future exceptionally with the {@link CardServiceException}
+ * reported by the card, instead of the <code>null</code> returned by the
+ * blocking {@link IdemixService#round1(Message)},
+ * {@link IdemixService#round3(Message)} and
+ * {@link IdemixService#buildProof(BigInteger, ProofSpec)}.
+ *
+ * <p>The operations of a card either run on a thread of their own, or on a
+ * shared pool, so that many cards can be driven by a few threads. In both
+ * cases the operations on one card never overlap.
+ */
+public class AsyncIdemixService {
+
+    private final IdemixService service;
+    private final Executor executor;
+    private final ExecutorService owned;
+
+    /**
+     * Construct a new facade running the operations on a thread of its own.
+     *
+     * @param service to the card.
+     */
+    public AsyncIdemixService(final IdemixService service) {
+        this.service = service;
+        this.owned = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "idemix: " + service.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor = owned;
+    }
+
+    /**
+     * Construct a new facade running the operations on a shared pool. The
+     * pool is not shut down when the facade is closed.
+     *
+     * @param service to the card.
+     * @param pool to run the operations on.
+     */
+    public AsyncIdemixService(IdemixService service, Executor pool) {
+        this.service = service;
+        this.owned = null;
+        this.executor = new SerialExecutor(pool);
+    }
+
+    /**
+     * @return the blocking service, which should only be used from jobs
+     *         submitted to this facade.
+     */
+    public IdemixService getService() {
+        return service;
+    }
+
+    /**
+     * Queue a job on the card.
+     *
+     * @param job to run on the card.
+     * @return the pending result of the job.
+     */
+    public <T> CompletableFuture<T> submit(final CardJob<T> job) {
+        Operation<T> operation = new Operation<T>(job);
+        try {
+            executor.execute(operation);
+        } catch (RejectedExecutionException e) {
+            operation.reject(e);
+        }
+        return operation.future;
+    }
+
+    /**
+     * @see IdemixService#open()
+     */
+    public CompletableFuture<Void> open() {
+        return submit(new CardJob<Void>() {
+            public Void run(IdemixService service) throws CardServiceException {
+                service.open();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see IdemixService#sendCredentialPin(byte[])
+     */
+    public CompletableFuture<Integer> sendCredentialPin(final byte[] pin) {
+        return submit(new CardJob<Integer>() {
+            public Integer run(IdemixService service) throws CardServiceException {
+                return service.sendCredentialPin(pin);
+            }
+        });
+    }
+
+    /**
+     * @see IdemixService#sendCardPin(byte[])
+     */
+    public CompletableFuture<Integer> sendCardPin(final byte[] pin) {
+        return submit(new CardJob<Integer>() {
+            public Integer run(IdemixService service) throws CardServiceException {
+                return service.sendCardPin(pin);
+            }
+        });
+    }
+
+    /**
+     * @see IdemixService#setIssuanceSpecification(IssuanceSpec)
+     */
+    public CompletableFuture<Void> setIssuanceSpecification(final IssuanceSpec spec) {
+        return submit(new CardJob<Void>() {
+            public Void run(IdemixService service) throws CardServiceException {
+                service.setIssuanceSpecification(spec);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see IdemixService#setAttributes(IssuanceSpec, Values)
+     */
+    public CompletableFuture<Void> setAttributes(final IssuanceSpec spec, final Values values) {
+        return submit(new CardJob<Void>() {
+            public Void run(IdemixService service) throws CardServiceException {
+                service.setAttributes(spec, values);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see IdemixService#executeRound1(Message)
+     */
+    public CompletableFuture<Message> round1(final Message msg) {
+        return submit(new CardJob<Message>() {
+            public Message run(IdemixService service) throws CardServiceException {
+                return service.executeRound1(msg);
+            }
+        });
+    }
+
+    /**
+     * @see IdemixService#executeRound3(Message)
+     */
+    public CompletableFuture<Void> round3(final Message msg) {
+        return submit(new CardJob<Void>() {
+            public Void run(IdemixService service) throws CardServiceException {
+                service.executeRound3(msg);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see IdemixService#executeBuildProof(BigInteger, ProofSpec)
+     */
+    public CompletableFuture<Proof> buildProof(final BigInteger nonce, final ProofSpec spec) {
+        return submit(new CardJob<Proof>() {
+            public Proof run(IdemixService service) throws CardServiceException {
+                return service.executeBuildProof(nonce, spec);
+            }
+        });
+    }
+
+    /**
+     * @see IdemixService#getAttributes(IssuanceSpec)
+     */
+    public CompletableFuture<HashMap<String, BigInteger>> getAttributes(final IssuanceSpec spec) {
+        return submit(new CardJob<HashMap<String, BigInteger>>() {
+            public HashMap<String, BigInteger> run(IdemixService service)
+            throws CardServiceException {
+                return service.getAttributes(spec);
+            }
+        });
+    }
+
+    /**
+     * @see IdemixService#getCredentials()
+     */
+    public CompletableFuture<Vector<Integer>> getCredentials() {
+        return submit(new CardJob<Vector<Integer>>() {
+            public Vector<Integer> run(IdemixService service) throws CardServiceException {
+                return service.getCredentials();
+            }
+        });
+    }
+
+    /**
+     * Close the service once the queued operations have finished, and stop
+     * the thread of the facade if it has one.
+     *
+     * @return the pending completion of the close.
+     */
+    public CompletableFuture<Void> close() {
+        CompletableFuture<Void> closed = submit(new CardJob<Void>() {
+            public Void run(IdemixService service) {
+                service.close();
+                return null;
+            }
+        });
+        if (owned != null) {
+            owned.shutdown();
+        }
+        return closed;
+    }
+
+    /**
+     * Job queued on the card, with its pending result.
+     */
+    private final class Operation<T> implements Runnable {
+        private final CardJob<T> job;
+        private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        Operation(CardJob<T> job) {
+            this.job = job;
+        }
+
+        public void run() {
+            if (future.isDone()) {
+                // Cancelled while waiting
+                return;
+            }
+            try {
+                future.complete(job.run(service));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        void reject(RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Executor running tasks one at a time, in submission order, on a pool.
+     *
+     * <p>When the pool rejects a task, that task and all tasks queued after
+     * it are rejected, and the next task submitted tries the pool again.
+     */
+    private static final class SerialExecutor implements Executor {
+        private final Executor pool;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private Runnable active = null;
+
+        SerialExecutor(Executor pool) {
+            this.pool = pool;
+        }
+
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+            if (active == null) {
+                next();
+            }
+        }
+
+        /**
+         * Hand the next task to the pool, called on submission and from the
+         * pool when a task completes, hence it never throws.
+         */
+        private synchronized void next() {
+            final Runnable task = tasks.poll();
+            active = task;
+            if (task == null) {
+                return;
+            }
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            next();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                active = null;
+                reject(task, e);
+                Runnable queued;
+                while ((queued = tasks.poll()) != null) {
+                    reject(queued, e);
+                }
+            }
+        }
+
+        private static void reject(Runnable task, RejectedExecutionException e) {
+            if (task instanceof Operation) {
+                ((Operation<?>) task).reject(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * BatchVerifier.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ibm.zurich.idmx.showproof.Proof;
+import com.ibm.zurich.idmx.showproof.ProofSpec;
+
+/**
+ * Verification of a burst of card proofs against the same proof
+ * specification.
+ *
+ * <p>Card proofs consist of a challenge and responses, the commitments are
+ * not sent. Each commitment therefore has to be recomputed to check its
+ * challenge, which rules out combining the verification equations with
+ * random small exponents. Instead the batch is split over the cores, all of
+ * which share the fixed-base tables of the issuer key in a
+ * {@link ProofVerifier}. A proof failing the fast check is verified on its
+ * own by the Idemix verifier, so the result identifies every bad proof.
+ */
+public class BatchVerifier {
+
+    /**
+     * Outcome of the verification of a batch.
+     */
+    public static class Result {
+        private final boolean[] valid;
+        private final long nanos;
+        private final int threads;
+
+        Result(boolean[] valid, long nanos, int threads) {
+            this.valid = valid;
+            this.nanos = nanos;
+            this.threads = threads;
+        }
+
+        /**
+         * @return the number of proofs in the batch.
+         */
+        public int size() {
+            return valid.length;
+        }
+
+        /**
+         * @param i index of the proof in the batch.
+         * @return whether the proof is valid.
+         */
+        public boolean isValid(int i) {
+            return valid[i];
+        }
+
+        /**
+         * @return whether all proofs are valid.
+         */
+        public boolean isAllValid() {
+            return getInvalid().isEmpty();
+        }
+
+        /**
+         * @return the indices of the invalid proofs.
+         */
+        public List<Integer> getInvalid() {
+            List<Integer> invalid = new ArrayList<Integer>();
+            for (int i = 0; i < valid.length; i++) {
+                if (!valid[i]) {
+                    invalid.add(i);
+                }
+            }
+            return invalid;
+        }
+
+        /**
+         * @return the time to verify the batch, in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return the number of threads which verified the batch.
+         */
+        public int getThreads() {
+            return threads;
+        }
+
+        /**
+         * @return the number of proofs verified per second.
+         */
+        public double getThroughput() {
+            return nanos <= 0 ? 0 : valid.length * 1e9 / nanos;
+        }
+
+        /**
+         * @return the number of proofs verified per second per thread.
+         */
+        public double getThroughputPerCore() {
+            return getThroughput() / threads;
+        }
+
+        public String toString() {
+            return String.format("%d proofs, %d invalid, %.1f proofs/s, %.1f proofs/s/core",
+                    size(), getInvalid().size(), getThroughput(), getThroughputPerCore());
+        }
+    }
+
+    private final ProofVerifier verifier;
+    private final int threads;
+    private final ExecutorService executor;
+
+    /**
+     * Construct a new batch verifier using all available processors.
+     */
+    public BatchVerifier() {
+        this(new ProofVerifier(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Construct a new batch verifier.
+     *
+     * @param verifier for the single proofs, holding the tables.
+     * @param threads the number of threads verifying a batch.
+     */
+    public BatchVerifier(ProofVerifier verifier, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be positive");
+        }
+        this.verifier = verifier;
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "batch-verifier-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return the verifier for the single proofs.
+     */
+    public ProofVerifier getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * Verify a batch of proofs.
+     *
+     * @param spec the proof specification shared by all proofs.
+     * @param proofs the proofs.
+     * @param nonces the nonce sent to the card for each proof.
+     * @return the outcome for every proof.
+     * @throws InterruptedException if interrupted while waiting for the
+     *         verification threads.
+     */
+    public Result verify(final ProofSpec spec, final List<Proof> proofs,
+            final List<BigInteger> nonces)
+    throws InterruptedException {
+        if (proofs.size() != nonces.size()) {
+            throw new IllegalArgumentException("A nonce is required for every proof");
+        }
+        final int size = proofs.size();
+        final boolean[] valid = new boolean[size];
+        int chunks = Math.max(1, Math.min(threads, size));
+        long start = System.nanoTime();
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            final int from = (int) ((long) size * chunk / chunks);
+            final int to = (int) ((long) size * (chunk + 1) / chunks);
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        valid[i] = verifier.verify(spec, proofs.get(i), nonces.get(i));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        return new Result(valid, System.nanoTime() - start, chunks);
+    }
+
+    /**
+     * Stop the verification threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
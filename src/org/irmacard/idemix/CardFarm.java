@@ -0,0 +1,526 @@
+/**
+ * CardFarm.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+
+import net.sourceforge.scuba.smartcards.CardService;
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.TerminalCardService;
+
+/**
+ * Scheduler running jobs concurrently on all cards attached to a terminal.
+ *
+ * <p>Every card gets its own {@link IdemixService} and worker thread. Jobs
+ * are put in a single bounded queue, from which the next idle card takes
+ * them. When the queue is full, {@link #submit(CardJob)} blocks until a card has
+ * taken a job, so producers can never outrun the readers.
+ *
+ * <p>A job failing on a card is not retried on another card; its exception
+ * is reported through the returned {@link Future}. A card leaves the farm
+ * when a job fails without a status word from the card, which means the
+ * card or its reader is gone, or when {@link #MAX_CONSECUTIVE_FAILURES}
+ * jobs in a row fail on it, so a dead card cannot fail the jobs meant for
+ * the others. Jobs still queued when the last card leaves the farm,
+ * because it was removed, failed to open or finished after a shutdown,
+ * fail with a {@link RejectedExecutionException}.
+ */
+public class CardFarm {
+
+    /**
+     * Default number of jobs waiting for a card before submission blocks.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    /**
+     * Number of jobs in a row failing on a card after which it leaves the
+     * farm.
+     */
+    public static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+    /**
+     * Status word of a {@link CardServiceException} not caused by a
+     * response of the card.
+     */
+    private static final int SW_NONE = -1;
+
+    /**
+     * Time a worker waits for a job before checking whether it should stop.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private final BlockingQueue<Task<?>> queue;
+    private final Map<String, Card> cards = new LinkedHashMap<String, Card>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong cardFailures = new AtomicLong();
+    private final long started = System.nanoTime();
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Construct a new farm with a queue of {@link #DEFAULT_QUEUE_SIZE} jobs.
+     */
+    public CardFarm() {
+        this(DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Construct a new farm.
+     *
+     * @param queueSize the number of jobs waiting for a card before
+     *        submission blocks.
+     */
+    public CardFarm(int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("Queue size must be positive");
+        }
+        queue = new ArrayBlockingQueue<Task<?>>(queueSize);
+    }
+
+    /**
+     * Bring the farm in line with the cards present in the terminals of the
+     * default terminal factory.
+     *
+     * @return the number of cards in the farm.
+     * @throws CardServiceException if the terminals could not be listed.
+     */
+    public int refresh()
+    throws CardServiceException {
+        return refresh(TerminalFactory.getDefault());
+    }
+
+    /**
+     * Bring the farm in line with the cards present in the terminals of a
+     * factory: cards which were inserted are added, cards which were removed
+     * are stopped.
+     *
+     * @param factory providing the terminals.
+     * @return the number of cards in the farm.
+     * @throws CardServiceException if the terminals could not be listed.
+     */
+    public int refresh(TerminalFactory factory)
+    throws CardServiceException {
+        Set<String> present = new HashSet<String>();
+        List<CardTerminal> inserted = new ArrayList<CardTerminal>();
+        try {
+            for (CardTerminal terminal : factory.terminals().list()) {
+                if (terminal.isCardPresent()) {
+                    present.add(terminal.getName());
+                    inserted.add(terminal);
+                }
+            }
+        } catch (CardException e) {
+            throw new CardServiceException(e.getMessage());
+        }
+
+        synchronized (cards) {
+            for (Card card : new ArrayList<Card>(cards.values())) {
+                if (card.terminal && !present.contains(card.name)) {
+                    card.stop();
+                }
+            }
+        }
+        for (CardTerminal terminal : inserted) {
+            addCard(terminal.getName(), new TerminalCardService(terminal), true);
+        }
+        return size();
+    }
+
+    /**
+     * Add a card to the farm, unless a card with the same name is present.
+     *
+     * @param name identifying the card, usually the name of its reader.
+     * @param service to communicate with the card.
+     * @return whether the card was added.
+     */
+    public boolean addCard(String name, CardService service) {
+        return addCard(name, service, false);
+    }
+
+    private boolean addCard(String name, CardService service, boolean terminal) {
+        synchronized (cards) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Card farm has been shut down");
+            }
+            if (cards.containsKey(name)) {
+                return false;
+            }
+            Card card = new Card(name, new IdemixService(service), terminal);
+            cards.put(name, card);
+            card.thread.start();
+            return true;
+        }
+    }
+
+    /**
+     * Stop using a card. A job running on the card is finished first.
+     *
+     * @param name identifying the card.
+     * @return whether the card was present.
+     */
+    public boolean removeCard(String name) {
+        Card card;
+        synchronized (cards) {
+            card = cards.get(name);
+        }
+        if (card == null) {
+            return false;
+        }
+        card.stop();
+        return true;
+    }
+
+    /**
+     * @return the number of cards in the farm.
+     */
+    public int size() {
+        synchronized (cards) {
+            return cards.size();
+        }
+    }
+
+    /**
+     * Submit a job, waiting for room in the queue if necessary.
+     *
+     * @param job to run on the next idle card.
+     * @return the pending result of the job.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public <T> Future<T> submit(CardJob<T> job)
+    throws InterruptedException {
+        Task<T> task = new Task<T>(job);
+        synchronized (cards) {
+            while (!enqueue(task)) {
+                cards.wait();
+            }
+        }
+        return task.future;
+    }
+
+    /**
+     * Submit a job, waiting a limited time for room in the queue.
+     *
+     * @param job to run on the next idle card.
+     * @param timeout the maximum time to wait.
+     * @param unit of the timeout.
+     * @return the pending result of the job, or null if the queue stayed
+     *         full.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public <T> Future<T> submit(CardJob<T> job, long timeout, TimeUnit unit)
+    throws InterruptedException {
+        Task<T> task = new Task<T>(job);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (cards) {
+            while (!enqueue(task)) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait(cards, left);
+            }
+        }
+        return task.future;
+    }
+
+    /**
+     * Stop accepting jobs. The queued jobs are still run, after which the
+     * cards are closed.
+     */
+    public void shutdown() {
+        synchronized (cards) {
+            shutdown = true;
+            if (cards.isEmpty()) {
+                failQueued(null);
+            }
+            cards.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until all cards have been closed after a shutdown.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit of the timeout.
+     * @return whether all cards have been closed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+    throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<Card> running;
+        synchronized (cards) {
+            running = new ArrayList<Card>(cards.values());
+        }
+        for (Card card : running) {
+            long left = deadline - System.nanoTime();
+            if (left > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(card.thread, left);
+            }
+            if (card.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of jobs accepted by the farm.
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * @return the number of jobs which finished successfully.
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return the number of jobs which failed.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of cards which could not be opened or left the
+     *         farm because their jobs failed.
+     */
+    public long getCardFailures() {
+        return cardFailures.get();
+    }
+
+    /**
+     * @return the number of jobs waiting for a card.
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of finished jobs per second since the farm was
+     *         constructed.
+     */
+    public double getThroughput() {
+        long elapsed = System.nanoTime() - started;
+        return elapsed <= 0 ? 0 : (completed.get() + failed.get()) * 1e9 / elapsed;
+    }
+
+    /**
+     * @return the number of finished jobs per card.
+     */
+    public Map<String, Long> getJobsPerCard() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        synchronized (cards) {
+            for (Card card : cards.values()) {
+                result.put(card.name, card.jobs.get());
+            }
+        }
+        return result;
+    }
+
+    public String toString() {
+        return String.format("%d cards, %d queued, %d completed, %d failed, %.1f jobs/s",
+                size(), getQueued(), getCompleted(), getFailed(), getThroughput());
+    }
+
+    private void checkRunning() {
+        if (shutdown) {
+            throw new RejectedExecutionException("Card farm has been shut down");
+        }
+    }
+
+    /**
+     * Queue a task. The caller holds the lock on the cards, so the farm
+     * cannot shut down or lose its last card between the check and the
+     * insertion.
+     *
+     * @return whether the task was queued, false if the queue is full.
+     */
+    private boolean enqueue(Task<?> task) {
+        checkRunning();
+        if (!queue.offer(task)) {
+            return false;
+        }
+        submitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Fail the queued jobs, as no card is left to run them. The caller
+     * holds the lock on the cards.
+     *
+     * @param cause the failure of the last card, if any.
+     */
+    private void failQueued(Throwable cause) {
+        String message = shutdown ? "Card farm has been shut down" : "No cards left in the farm";
+        Task<?> task;
+        while ((task = queue.poll()) != null) {
+            RejectedExecutionException e = new RejectedExecutionException(message);
+            if (cause != null) {
+                e.initCause(cause);
+            }
+            failed.incrementAndGet();
+            task.future.fail(e);
+        }
+    }
+
+    /**
+     * Job waiting for a card.
+     */
+    private static final class Task<T> implements Callable<T> {
+        private final CardJob<T> job;
+        private final Result<T> future = new Result<T>(this);
+        private IdemixService service;
+
+        Task(CardJob<T> job) {
+            this.job = job;
+        }
+
+        public T call() throws CardServiceException {
+            return job.run(service);
+        }
+    }
+
+    /**
+     * Pending result of a job, which can also be failed without running it.
+     */
+    private static final class Result<T> extends FutureTask<T> {
+        Result(Callable<T> callable) {
+            super(callable);
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+    }
+
+    /**
+     * Card with the worker thread taking jobs from the queue.
+     */
+    private final class Card implements Runnable {
+        private final String name;
+        private final IdemixService service;
+        private final boolean terminal;
+        private final Thread thread;
+        private final AtomicLong jobs = new AtomicLong();
+        private volatile boolean running = true;
+        private int consecutiveFailures = 0;
+        private CardServiceException failure = null;
+
+        Card(String name, IdemixService service, boolean terminal) {
+            this.name = name;
+            this.service = service;
+            this.terminal = terminal;
+            this.thread = new Thread(this, "card-farm: " + name);
+            this.thread.setDaemon(true);
+        }
+
+        void stop() {
+            running = false;
+        }
+
+        public void run() {
+            try {
+                service.open();
+                while (running) {
+                    Task<?> task = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (task == null) {
+                        if (shutdown) {
+                            break;
+                        }
+                        continue;
+                    }
+                    // Wake up a submitter waiting for room in the queue
+                    synchronized (cards) {
+                        cards.notifyAll();
+                    }
+                    run(task);
+                }
+            } catch (CardServiceException e) {
+                failure = e;
+                cardFailures.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                service.close();
+                synchronized (cards) {
+                    if (cards.get(name) == this) {
+                        cards.remove(name);
+                    }
+                    if (cards.isEmpty()) {
+                        failQueued(failure);
+                    }
+                    cards.notifyAll();
+                }
+            }
+        }
+
+        private void run(Task<?> task) {
+            task.service = service;
+            task.future.run();
+            jobs.incrementAndGet();
+            try {
+                task.future.get();
+                completed.incrementAndGet();
+                consecutiveFailures = 0;
+            } catch (ExecutionException e) {
+                failed.incrementAndGet();
+                consecutiveFailures++;
+                Throwable cause = e.getCause();
+                boolean transport = cause instanceof CardServiceException
+                        && ((CardServiceException) cause).getSW() == SW_NONE;
+                if (transport || consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                    // Leave the farm, so the other cards take the queued jobs
+                    if (cause instanceof CardServiceException) {
+                        failure = (CardServiceException) cause;
+                    }
+                    cardFailures.incrementAndGet();
+                    running = false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * CardJob.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+/**
+ * Work to be done on a single card, as run by the {@link CardFarm}, the
+ * {@link AsyncIdemixService} and the {@link SessionExecutor}.
+ *
+ * @param <T> type of the result.
+ */
+public interface CardJob<T> {
+    /**
+     * Run the job.
+     *
+     * @param service to the card, the applet has already been selected.
+     * @return the result of the job.
+     * @throws CardServiceException if the communication with the card
+     *         failed.
+     */
+    T run(IdemixService service) throws CardServiceException;
+}
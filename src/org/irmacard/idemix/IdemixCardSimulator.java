@@ -0,0 +1,758 @@
+/**
+ * IdemixCardSimulator.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.scuba.smartcards.CardService;
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ISO7816;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+/**
+ * Simulated IRMAcard applet, to be used instead of a card in a reader.
+ *
+ * <p>The simulator implements the 0.8 command set as produced by
+ * {@link IdemixSmartcard}: applet selection, PIN verification and update,
+ * issuance, proving and the administrative commands. It keeps track of the
+ * issued credentials, their attributes and flags, and the transaction log.
+ *
+ * <p>The simulator does not perform any cryptography. Values which a real
+ * card computes (commitments, proof responses, randomised signatures) are
+ * random byte strings of the expected length, hence proofs built against
+ * the simulator do not verify. It is intended for load and regression
+ * testing of the terminal side of the protocol. Every APDU can be delayed
+ * by a configurable latency to mimic the card round trip.
+ */
+public class IdemixCardSimulator extends CardService {
+
+    private static final long serialVersionUID = 4715373629421906351L;
+
+    /**
+     * Status words returned by the simulated applet.
+     */
+    private static final int SW_NO_ERROR = 0x9000;
+    private static final int SW_PIN_TRIES = 0x63C0;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    private static final int SW_PIN_BLOCKED = 0x6983;
+    private static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    private static final int SW_COMMAND_NOT_ALLOWED = 0x6986;
+    private static final int SW_FILE_NOT_FOUND = 0x6A82;
+    private static final int SW_RECORD_NOT_FOUND = 0x6A88;
+    private static final int SW_WRONG_P1P2 = 0x6B00;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+    private static final int SW_CLA_NOT_SUPPORTED = 0x6E00;
+
+    /**
+     * Version data returned upon selection: 0.8.1 encoded as expected by
+     * {@link org.irmacard.idemix.util.CardVersion#CardVersion(byte[])}.
+     */
+    private static final byte[] VERSION = {
+        (byte) 0xA5, 0x0B, 0x10, 0x09, 0x02, 0x01, 0x00, 0x02, 0x01, 0x08, 0x02, 0x01, 0x01 };
+
+    /**
+     * Version data of 0.8.1 built with the extended length commands, with
+     * the extra string "ext".
+     */
+    private static final byte[] VERSION_EXTENDED_LENGTH_COMMANDS = {
+        (byte) 0xA5, 0x12, 0x10, 0x10, 0x02, 0x01, 0x00, 0x02, 0x01, 0x08, 0x02, 0x01, 0x01,
+        0x10, 0x05, 0x0C, 0x03, 0x65, 0x78, 0x74 };
+
+    private static final byte[] ATR = {
+        0x3B, (byte) 0x8A, (byte) 0x80, 0x01, 0x49, 0x52, 0x4D, 0x41, 0x63, 0x61, 0x72, 0x64, 0x00, 0x00 };
+
+    /**
+     * ATR announcing extended Lc and Le fields in its card capabilities.
+     */
+    private static final byte[] ATR_EXTENDED_LENGTH = {
+        0x3B, (byte) 0x85, (byte) 0x80, 0x01, (byte) 0x80, 0x73, 0x00, 0x00, 0x40, (byte) 0xB7 };
+
+    /**
+     * Sizes (in bits) of the system parameters from files/parameter/sp.xml.
+     */
+    private static final int L_H = 160;
+    private static final int L_M = 256;
+    private static final int L_PHI = 80;
+    private static final int L_EPRIME = 120;
+    private static final int L_V = 1604;
+
+    private static final int PIN_SIZE = 8;
+    private static final int PIN_TRIES = 3;
+
+    private static final int MAX_CREDENTIALS = 16;
+    private static final int MAX_ATTRIBUTES = 6;
+
+    /**
+     * Log layout, matching {@link org.irmacard.idemix.util.IdemixLogEntry}.
+     */
+    static final int LOG_SIZE = 30;
+    static final int LOG_ENTRY_SIZE = 16;
+    static final int LOG_ENTRIES_PER_APDU = 255 / LOG_ENTRY_SIZE;
+    private static final byte LOG_ACTION_ISSUE = 0x01;
+    private static final byte LOG_ACTION_PROVE = 0x02;
+    private static final byte LOG_ACTION_REMOVE = 0x03;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private boolean open = false;
+    private boolean selected = false;
+
+    private boolean extendedLength = true;
+    private boolean extendedLengthCommands = true;
+
+    private long latency = 0;
+    private final HashMap<Byte, Long> insLatency = new HashMap<Byte, Long>();
+
+    private final byte[][] pins = new byte[2][];
+    private final int[] pinTries = { PIN_TRIES, PIN_TRIES };
+    private final boolean[] pinVerified = new boolean[2];
+
+    private final TreeMap<Short, Credential> credentials = new TreeMap<Short, Credential>();
+    private final byte[][] log = new byte[LOG_SIZE][];
+    private int logHead = 0;
+
+    /** Credential currently being issued, proved or administered. */
+    private Credential current = null;
+    private boolean issuing = false;
+    private boolean proving = false;
+    private short disclose = 0;
+    private int modulusBytes = 128;
+
+    private int transmitted = 0;
+
+    /**
+     * Construct a new simulator with the default PINs (0000 and 000000).
+     */
+    public IdemixCardSimulator() {
+        this(new byte[] { 0x30, 0x30, 0x30, 0x30 },
+             new byte[] { 0x30, 0x30, 0x30, 0x30, 0x30, 0x30 });
+    }
+
+    /**
+     * Construct a new simulator.
+     *
+     * @param credentialPin ASCII encoded credential PIN.
+     * @param cardPin ASCII encoded card (administrative) PIN.
+     */
+    public IdemixCardSimulator(byte[] credentialPin, byte[] cardPin) {
+        pins[IdemixSmartcard.P2_PIN_ATTRIBUTE] = Arrays.copyOf(credentialPin, PIN_SIZE);
+        pins[IdemixSmartcard.P2_PIN_ADMIN] = Arrays.copyOf(cardPin, PIN_SIZE);
+        for (int i = 0; i < LOG_SIZE; i++) {
+            log[i] = new byte[LOG_ENTRY_SIZE];
+        }
+    }
+
+    /**
+     * Set the latency of every APDU round trip.
+     *
+     * @param duration of a round trip.
+     * @param unit of the duration.
+     */
+    public void setLatency(long duration, TimeUnit unit) {
+        latency = unit.toNanos(duration);
+    }
+
+    /**
+     * Set the latency of the round trip of a specific instruction, this
+     * overrides the general latency for that instruction.
+     *
+     * @param ins the instruction byte.
+     * @param duration of a round trip.
+     * @param unit of the duration.
+     */
+    public void setLatency(byte ins, long duration, TimeUnit unit) {
+        insLatency.put(ins, unit.toNanos(duration));
+    }
+
+    /**
+     * Set whether the simulated card accepts extended length APDUs, by
+     * default it does. A card which does not accept them announces so in its
+     * ATR and rejects APDUs in the extended length encoding.
+     *
+     * @param extendedLength whether extended length APDUs are accepted.
+     */
+    public void setExtendedLength(boolean extendedLength) {
+        this.extendedLength = extendedLength;
+    }
+
+    /**
+     * Set whether the simulated applet implements the packed public key and
+     * the single APDU certificate verification, by default it does. An
+     * applet which does not implement them reports a version without
+     * {@link org.irmacard.idemix.util.CardVersion.Feature#EXTENDED_LENGTH_COMMANDS}
+     * and rejects these commands.
+     *
+     * @param extendedLengthCommands whether the commands are implemented.
+     */
+    public void setExtendedLengthCommands(boolean extendedLengthCommands) {
+        this.extendedLengthCommands = extendedLengthCommands;
+    }
+
+    /**
+     * @return the number of APDUs processed by this simulator.
+     */
+    public int getTransmitted() {
+        return transmitted;
+    }
+
+    public void open() throws CardServiceException {
+        open = true;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() {
+        open = false;
+        reset();
+    }
+
+    public byte[] getATR() throws CardServiceException {
+        return extendedLength ? ATR_EXTENDED_LENGTH.clone() : ATR.clone();
+    }
+
+    public String getName() {
+        return "IRMAcard simulator";
+    }
+
+    public byte[] transmitControlCommand(int controlCode, byte[] command)
+    throws CardServiceException {
+        throw new CardServiceException("Control commands are not supported by the simulator");
+    }
+
+    public ResponseAPDU transmit(CommandAPDU capdu) throws CardServiceException {
+        if (!open) {
+            throw new CardServiceException("Simulated card is not open");
+        }
+
+        byte ins = (byte) capdu.getINS();
+        Long delay = insLatency.get(ins);
+        long nanos = delay != null ? delay : latency;
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CardServiceException("Interrupted while waiting for the card");
+            }
+        }
+
+        transmitted++;
+        return process(capdu);
+    }
+
+    /**
+     * Drop the volatile state of the applet, as happens on a card reset.
+     */
+    private void reset() {
+        selected = false;
+        current = null;
+        issuing = false;
+        proving = false;
+        disclose = 0;
+        pinVerified[IdemixSmartcard.P2_PIN_ATTRIBUTE] = false;
+        pinVerified[IdemixSmartcard.P2_PIN_ADMIN] = false;
+    }
+
+    private ResponseAPDU process(CommandAPDU capdu) {
+        int cla = capdu.getCLA() & ~IdemixSmartcard.CLA_COMMAND_CHAINING;
+        byte ins = (byte) capdu.getINS();
+
+        if (!extendedLength && (capdu.getNc() > IdemixSmartcard.MAX_SHORT_LENGTH
+                || capdu.getNe() > IdemixSmartcard.MAX_SHORT_LENGTH + 1)) {
+            return status(SW_WRONG_LENGTH);
+        }
+        if (cla == ISO7816.CLA_ISO7816 && ins == IdemixSmartcard.INS_SELECT_APPLICATION) {
+            return select(capdu);
+        }
+        if (!selected) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        if (cla == ISO7816.CLA_ISO7816) {
+            switch (ins) {
+            case ISO7816.INS_VERIFY:
+                return verifyPin(capdu);
+            case ISO7816.INS_CHANGE_CHV:
+                return updatePin(capdu);
+            case ISO7816.INS_PSO:
+                if (!extendedLengthCommands && capdu.getNc() > IdemixSmartcard.MAX_SHORT_LENGTH) {
+                    return status(SW_WRONG_LENGTH);
+                }
+                return pinVerified[IdemixSmartcard.P2_PIN_ADMIN] ?
+                        status(SW_NO_ERROR) : status(SW_SECURITY_STATUS_NOT_SATISFIED);
+            default:
+                return status(SW_INS_NOT_SUPPORTED);
+            }
+        }
+        if (cla != (IdemixSmartcard.CLA_IRMACARD & 0xff)) {
+            return status(SW_CLA_NOT_SUPPORTED);
+        }
+
+        switch (ins) {
+        case IdemixSmartcard.INS_GENERATE_SECRET:
+            return status(SW_NO_ERROR);
+        case IdemixSmartcard.INS_AUTHENTICATION_SECRET:
+            return pinVerified[IdemixSmartcard.P2_PIN_ADMIN] ?
+                    status(SW_NO_ERROR) : status(SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        // Issuance
+        case IdemixSmartcard.INS_ISSUE_CREDENTIAL:
+            return startIssuance(capdu);
+        case IdemixSmartcard.INS_ISSUE_PUBLIC_KEY:
+            return issuing() ? setPublicKey(capdu) : status(SW_CONDITIONS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_ISSUE_ATTRIBUTES:
+            return issuing() ? setAttribute(capdu) : status(SW_CONDITIONS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_ISSUE_COMMITMENT:
+            return issuing() ? random(modulusBytes) : status(SW_CONDITIONS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_ISSUE_COMMITMENT_PROOF:
+            return issuing() ? commitmentProof(capdu) : status(SW_CONDITIONS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_ISSUE_CHALLENGE:
+            return issuing() ? random(bytes(L_PHI)) : status(SW_CONDITIONS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_ISSUE_SIGNATURE:
+            return issuing() ? status(SW_NO_ERROR) : status(SW_CONDITIONS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_ISSUE_VERIFY:
+            return issuing() ? finishIssuance() : status(SW_CONDITIONS_NOT_SATISFIED);
+
+        // Proving
+        case IdemixSmartcard.INS_PROVE_CREDENTIAL:
+            return startProof(capdu);
+        case IdemixSmartcard.INS_PROVE_COMMITMENT:
+            return proving() ? random(bytes(L_H)) : status(SW_CONDITIONS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_PROVE_SIGNATURE:
+            return proving() ? proveSignature(capdu) : status(SW_CONDITIONS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_PROVE_ATTRIBUTE:
+            return proving() ? proveAttribute(capdu) : status(SW_CONDITIONS_NOT_SATISFIED);
+
+        // Administration
+        case IdemixSmartcard.INS_ADMIN_CREDENTIAL:
+            return admin() ? selectCredential(capdu) : status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_ADMIN_REMOVE:
+            return admin() ? removeCredential(capdu) : status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_ADMIN_ATTRIBUTE:
+            return admin() ? getAttribute(capdu) : status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_ADMIN_FLAGS:
+            return admin() ? flags(capdu) : status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_ADMIN_CREDENTIALS:
+            return admin() ? listCredentials() : status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        case IdemixSmartcard.INS_ADMIN_LOG:
+            return admin() ? getLog(capdu) : status(SW_SECURITY_STATUS_NOT_SATISFIED);
+
+        default:
+            return status(SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    /**************************************************************************/
+    /* Applet selection and PIN handling                                      */
+    /**************************************************************************/
+
+    private ResponseAPDU select(CommandAPDU capdu) {
+        if (capdu.getP1() != IdemixSmartcard.P1_SELECT_BY_NAME
+                || !Arrays.equals(capdu.getData(), IdemixSmartcard.AID)) {
+            selected = false;
+            return status(SW_FILE_NOT_FOUND);
+        }
+
+        reset();
+        selected = true;
+
+        byte[] version = extendedLengthCommands ? VERSION_EXTENDED_LENGTH_COMMANDS : VERSION;
+        byte[] data = new byte[2 + version.length];
+        data[0] = 0x6F;
+        data[1] = (byte) version.length;
+        System.arraycopy(version, 0, data, 2, version.length);
+        return response(data, SW_NO_ERROR);
+    }
+
+    private ResponseAPDU verifyPin(CommandAPDU capdu) {
+        int pinID = capdu.getP2();
+        if (pinID != IdemixSmartcard.P2_PIN_ATTRIBUTE && pinID != IdemixSmartcard.P2_PIN_ADMIN) {
+            return status(SW_WRONG_P1P2);
+        }
+
+        // Query the verification status
+        if (capdu.getNc() == 0) {
+            return pinVerified[pinID] ?
+                    status(SW_NO_ERROR) : status(SW_PIN_TRIES + pinTries[pinID]);
+        }
+
+        if (capdu.getNc() != PIN_SIZE) {
+            return status(SW_WRONG_LENGTH);
+        }
+        if (pinTries[pinID] == 0) {
+            return status(SW_PIN_BLOCKED);
+        }
+        if (!Arrays.equals(capdu.getData(), pins[pinID])) {
+            pinVerified[pinID] = false;
+            pinTries[pinID]--;
+            return status(SW_PIN_TRIES + pinTries[pinID]);
+        }
+
+        pinTries[pinID] = PIN_TRIES;
+        pinVerified[pinID] = true;
+        return status(SW_NO_ERROR);
+    }
+
+    private ResponseAPDU updatePin(CommandAPDU capdu) {
+        int pinID = capdu.getP2();
+        byte[] data = capdu.getData();
+
+        if (pinID == IdemixSmartcard.P2_PIN_ADMIN) {
+            if (data.length != 2 * PIN_SIZE) {
+                return status(SW_WRONG_LENGTH);
+            }
+            if (pinTries[pinID] == 0) {
+                return status(SW_PIN_BLOCKED);
+            }
+            if (!Arrays.equals(Arrays.copyOf(data, PIN_SIZE), pins[pinID])) {
+                pinTries[pinID]--;
+                return status(SW_PIN_TRIES + pinTries[pinID]);
+            }
+            pinTries[pinID] = PIN_TRIES;
+            pins[pinID] = Arrays.copyOfRange(data, PIN_SIZE, 2 * PIN_SIZE);
+        } else if (pinID == IdemixSmartcard.P2_PIN_ATTRIBUTE) {
+            if (!pinVerified[IdemixSmartcard.P2_PIN_ADMIN]) {
+                return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+            }
+            if (data.length != PIN_SIZE) {
+                return status(SW_WRONG_LENGTH);
+            }
+            pinTries[pinID] = PIN_TRIES;
+            pins[pinID] = data;
+        } else {
+            return status(SW_WRONG_P1P2);
+        }
+
+        return status(SW_NO_ERROR);
+    }
+
+    private boolean admin() {
+        return pinVerified[IdemixSmartcard.P2_PIN_ADMIN];
+    }
+
+    /**************************************************************************/
+    /* Issuance                                                               */
+    /**************************************************************************/
+
+    private ResponseAPDU startIssuance(CommandAPDU capdu) {
+        if (!pinVerified[IdemixSmartcard.P2_PIN_ATTRIBUTE]) {
+            return status(SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        // id (2), size (2), flags (3), context (l_H), timestamp (4)
+        byte[] data = capdu.getData();
+        if (data.length != 7 + bytes(L_H) + 4) {
+            return status(SW_WRONG_LENGTH);
+        }
+        short id = getShort(data, 0);
+        int size = getShort(data, 2);
+        if (id == 0 || size < 1 || size > MAX_ATTRIBUTES) {
+            return status(SW_WRONG_P1P2);
+        }
+        if (credentials.containsKey(id)) {
+            return status(SW_COMMAND_NOT_ALLOWED);
+        }
+        if (credentials.size() >= MAX_CREDENTIALS) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        current = new Credential(id, size);
+        current.flags[0] = data[4];
+        current.flags[1] = data[5];
+        current.flags[2] = data[6];
+        issuing = true;
+        proving = false;
+        current.timestamp = Arrays.copyOfRange(data, data.length - 4, data.length);
+        return status(SW_NO_ERROR);
+    }
+
+    private boolean issuing() {
+        return current != null && issuing;
+    }
+
+    private ResponseAPDU setPublicKey(CommandAPDU capdu) {
+        if (capdu.getP1() == IdemixSmartcard.P1_PUBLIC_KEY_PACKED && extendedLengthCommands) {
+            // n, Z, S and P2 R values of equal length
+            int components = 3 + capdu.getP2();
+            if (capdu.getP2() < 1 || capdu.getP2() > current.attributes.length + 1) {
+                return status(SW_WRONG_P1P2);
+            }
+            if (capdu.getNc() % components != 0) {
+                return status(SW_WRONG_LENGTH);
+            }
+            modulusBytes = capdu.getNc() / components;
+            current.modulusBytes = modulusBytes;
+            return status(SW_NO_ERROR);
+        } else if (capdu.getP1() == IdemixSmartcard.P1_PUBLIC_KEY_N) {
+            modulusBytes = capdu.getNc();
+            current.modulusBytes = modulusBytes;
+        } else if (capdu.getP1() > IdemixSmartcard.P1_PUBLIC_KEY_R
+                || (capdu.getP1() == IdemixSmartcard.P1_PUBLIC_KEY_R
+                        && capdu.getP2() > current.attributes.length)) {
+            return status(SW_WRONG_P1P2);
+        }
+        if (capdu.getNc() != current.modulusBytes) {
+            return status(SW_WRONG_LENGTH);
+        }
+        return status(SW_NO_ERROR);
+    }
+
+    private ResponseAPDU setAttribute(CommandAPDU capdu) {
+        int index = capdu.getP1();
+        if (index < 1 || index > current.attributes.length) {
+            return status(SW_WRONG_P1P2);
+        }
+        if (capdu.getNc() != bytes(L_M)) {
+            return status(SW_WRONG_LENGTH);
+        }
+        current.attributes[index - 1] = capdu.getData();
+        return status(SW_NO_ERROR);
+    }
+
+    private ResponseAPDU commitmentProof(CommandAPDU capdu) {
+        switch (capdu.getP1()) {
+        case IdemixSmartcard.P1_PROOF_C:
+            return random(bytes(L_H));
+        case IdemixSmartcard.P1_PROOF_VPRIMEHAT:
+            return random(bytes(current.modulusBytes * 8 + L_PHI + 2 * L_H));
+        case IdemixSmartcard.P1_PROOF_SHAT:
+            return random(bytes(L_M + L_PHI + L_H + 1));
+        default:
+            return status(SW_WRONG_P1P2);
+        }
+    }
+
+    private ResponseAPDU finishIssuance() {
+        for (byte[] attribute : current.attributes) {
+            if (attribute == null) {
+                return status(SW_CONDITIONS_NOT_SATISFIED);
+            }
+        }
+
+        credentials.put(current.id, current);
+        log(LOG_ACTION_ISSUE, current, new byte[5]);
+        current = null;
+        issuing = false;
+        return status(SW_NO_ERROR);
+    }
+
+    /**************************************************************************/
+    /* Proving                                                                */
+    /**************************************************************************/
+
+    private ResponseAPDU startProof(CommandAPDU capdu) {
+        // id (2), disclosure mask (2), context (l_H), timestamp (4)
+        byte[] data = capdu.getData();
+        if (data.length != 4 + bytes(L_H) + 4) {
+            return status(SW_WRONG_LENGTH);
+        }
+        Credential credential = credentials.get(getShort(data, 0));
+        if (credential == null) {
+            return status(SW_RECORD_NOT_FOUND);
+        }
+
+        current = credential;
+        disclose = getShort(data, 2);
+        issuing = false;
+        proving = true;
+        current.timestamp = Arrays.copyOfRange(data, data.length - 4, data.length);
+
+        byte[] details = new byte[5];
+        details[0] = data[2];
+        details[1] = data[3];
+        log(LOG_ACTION_PROVE, current, details);
+        return status(SW_NO_ERROR);
+    }
+
+    private boolean proving() {
+        return current != null && proving;
+    }
+
+    private ResponseAPDU proveSignature(CommandAPDU capdu) {
+        switch (capdu.getP1()) {
+        case IdemixSmartcard.P1_SIGNATURE_A:
+            return random(current.modulusBytes);
+        case IdemixSmartcard.P1_SIGNATURE_E:
+            return random(bytes(L_EPRIME + L_PHI + L_H + 1));
+        case IdemixSmartcard.P1_SIGNATURE_V:
+            return random(bytes(L_V + L_PHI + L_H + 1));
+        default:
+            return status(SW_WRONG_P1P2);
+        }
+    }
+
+    private ResponseAPDU proveAttribute(CommandAPDU capdu) {
+        int index = capdu.getP1();
+        if (index > current.attributes.length) {
+            return status(SW_WRONG_P1P2);
+        }
+        if (index > 0 && (disclose & (1 << index)) != 0) {
+            return response(current.attributes[index - 1], SW_NO_ERROR);
+        }
+        return random(bytes(L_M + L_PHI + L_H + 1));
+    }
+
+    /**************************************************************************/
+    /* Administration                                                         */
+    /**************************************************************************/
+
+    private ResponseAPDU selectCredential(CommandAPDU capdu) {
+        if (capdu.getNc() != 2) {
+            return status(SW_WRONG_LENGTH);
+        }
+        Credential credential = credentials.get(getShort(capdu.getData(), 0));
+        if (credential == null) {
+            return status(SW_RECORD_NOT_FOUND);
+        }
+        current = credential;
+        issuing = false;
+        proving = false;
+        return status(SW_NO_ERROR);
+    }
+
+    private ResponseAPDU removeCredential(CommandAPDU capdu) {
+        if (current == null || issuing) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        byte[] data = capdu.getData();
+        current.timestamp = Arrays.copyOfRange(data, data.length - 4, data.length);
+        credentials.remove(current.id);
+        log(LOG_ACTION_REMOVE, current, new byte[5]);
+        current = null;
+        return status(SW_NO_ERROR);
+    }
+
+    private ResponseAPDU getAttribute(CommandAPDU capdu) {
+        if (current == null || issuing) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        int index = capdu.getP1();
+        if (index < 1 || index > current.attributes.length) {
+            return status(SW_WRONG_P1P2);
+        }
+        return response(current.attributes[index - 1], SW_NO_ERROR);
+    }
+
+    private ResponseAPDU flags(CommandAPDU capdu) {
+        if (current == null || issuing) {
+            return status(SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (capdu.getNc() == 0) {
+            return response(current.flags, SW_NO_ERROR);
+        }
+        if (capdu.getNc() != current.flags.length) {
+            return status(SW_WRONG_LENGTH);
+        }
+        System.arraycopy(capdu.getData(), 0, current.flags, 0, current.flags.length);
+        return status(SW_NO_ERROR);
+    }
+
+    private ResponseAPDU listCredentials() {
+        byte[] data = new byte[2 * MAX_CREDENTIALS];
+        int i = 0;
+        for (short id : credentials.keySet()) {
+            data[i++] = (byte) (id >> 8);
+            data[i++] = (byte) (id & 0xff);
+        }
+        return response(data, SW_NO_ERROR);
+    }
+
+    private ResponseAPDU getLog(CommandAPDU capdu) {
+        int start = capdu.getP1();
+        if (start >= LOG_SIZE) {
+            return status(SW_WRONG_P1P2);
+        }
+
+        // Entries are returned newest first
+        int count = Math.min(LOG_ENTRIES_PER_APDU, LOG_SIZE - start);
+        byte[] data = new byte[count * LOG_ENTRY_SIZE];
+        for (int i = 0; i < count; i++) {
+            int index = (logHead - 1 - start - i + 2 * LOG_SIZE) % LOG_SIZE;
+            System.arraycopy(log[index], 0, data, i * LOG_ENTRY_SIZE, LOG_ENTRY_SIZE);
+        }
+        return response(data, SW_NO_ERROR);
+    }
+
+    /**
+     * Append an entry to the transaction log, overwriting the oldest entry.
+     */
+    private void log(byte action, Credential credential, byte[] details) {
+        byte[] entry = log[logHead];
+        Arrays.fill(entry, (byte) 0x00);
+        System.arraycopy(credential.timestamp, 0, entry, 0, 4);
+        entry[8] = action;
+        entry[9] = (byte) (credential.id >> 8);
+        entry[10] = (byte) (credential.id & 0xff);
+        System.arraycopy(details, 0, entry, 11, 5);
+        logHead = (logHead + 1) % LOG_SIZE;
+    }
+
+    /**************************************************************************/
+    /* Helpers                                                                */
+    /**************************************************************************/
+
+    private static int bytes(int bits) {
+        return (bits + 7) / 8;
+    }
+
+    private static short getShort(byte[] array, int idx) {
+        return (short) ((array[idx] << 8) | (array[idx + 1] & 0xff));
+    }
+
+    private ResponseAPDU random(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return response(data, SW_NO_ERROR);
+    }
+
+    private static ResponseAPDU status(int sw) {
+        return response(new byte[0], sw);
+    }
+
+    private static ResponseAPDU response(byte[] data, int sw) {
+        byte[] rapdu = new byte[data.length + 2];
+        System.arraycopy(data, 0, rapdu, 0, data.length);
+        rapdu[data.length] = (byte) (sw >> 8);
+        rapdu[data.length + 1] = (byte) (sw & 0xff);
+        return new ResponseAPDU(rapdu);
+    }
+
+    /**
+     * Credential as stored on the simulated card.
+     */
+    private static class Credential {
+        final short id;
+        final byte[][] attributes;
+        final byte[] flags = new byte[3];
+        int modulusBytes = 128;
+        byte[] timestamp = new byte[4];
+
+        Credential(short id, int size) {
+            this.id = id;
+            this.attributes = new byte[size][];
+        }
+    }
+}
@@ -21,17 +21,22 @@ package org.irmacard.idemix;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.interfaces.RSAPublicKey;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Vector;
 
+import org.irmacard.idemix.util.ApduTrace;
+import org.irmacard.idemix.util.CardCapabilities;
 import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.CommandMetrics;
 import org.irmacard.idemix.util.IdemixFlags;
 import org.irmacard.idemix.util.IdemixLogEntry;
+import org.irmacard.idemix.util.IdemixLogEntryView;
+import org.irmacard.idemix.util.LogWatermark;
 
 import net.sourceforge.scuba.smartcards.CardService;
 import net.sourceforge.scuba.smartcards.CardServiceException;
@@ -41,7 +46,6 @@ import net.sourceforge.scuba.smartcards.ProtocolCommands;
 import net.sourceforge.scuba.smartcards.ProtocolResponse;
 import net.sourceforge.scuba.smartcards.ProtocolResponses;
 import net.sourceforge.scuba.smartcards.ResponseAPDU;
-import net.sourceforge.scuba.util.Hex;
 
 import com.ibm.zurich.idmx.api.ProverInterface;
 import com.ibm.zurich.idmx.api.RecipientInterface;
@@ -68,11 +72,6 @@ implements ProverInterface, RecipientInterface {
      */
     private static final long serialVersionUID = -6317383635196413L;
 
-    /**
-     * Control the amount of output generated by this class.
-     */
-    private static final boolean VERBOSE = true;
-
     /**
      * SCUBA service to communicate with the card.
      */
@@ -93,6 +92,22 @@ implements ProverInterface, RecipientInterface {
      */
     protected CardVersion cardVersion = null;
 
+    /**
+     * Executor used to send batches of protocol commands to the card.
+     */
+    protected ProtocolExecutor executor;
+
+    /**
+     * Whether extended length APDUs are sent to the card, this is decided
+     * when the applet is selected.
+     */
+    protected boolean extendedLength = false;
+
+    /**
+     * Whether the terminal transports extended length APDUs.
+     */
+    protected boolean terminalExtendedLength = false;
+
     /**************************************************************************/
     /* SCUBA / Smart Card Setup                                               */
     /**************************************************************************/
@@ -105,6 +120,7 @@ implements ProverInterface, RecipientInterface {
      */
     public IdemixService(CardService service) {
         this.service = service;
+        this.executor = new ProtocolExecutor(this);
     }
 
     /**
@@ -117,10 +133,14 @@ implements ProverInterface, RecipientInterface {
     public IdemixService(CardService service, short credentialId) {
         this.service = service;
         this.credentialId = credentialId;
+        this.executor = new ProtocolExecutor(this);
     }
 
     /**
      * Open a communication channel to an Idemix applet.
+     *
+     * @throws CardServiceException if the applet could not be selected or
+     *         its version could not be determined.
      */
     public void open()
     throws CardServiceException {
@@ -146,11 +166,40 @@ implements ProverInterface, RecipientInterface {
                 System.arraycopy(response, i, data, 0, length);
                 cardVersion = new CardVersion(data);
             } else {
-                System.err.println("Unknown response value");
+                throw new CardServiceException("Unknown response value");
             }
         }
 
-        System.out.println("Found card application: " + cardVersion.toString());
+        getTrace().message("Found card application: " + cardVersion);
+
+        // Decided once per session, before any protocol is started
+        CardCapabilities capabilities = new CardCapabilities(service.getATR());
+        extendedLength = terminalExtendedLength
+                && cardVersion != null
+                && cardVersion.supports(CardVersion.Feature.EXTENDED_LENGTH_COMMANDS)
+                && capabilities.isExtendedLengthSupported()
+                && capabilities.isT1Supported()
+                && probeExtendedLength();
+    }
+
+    /**
+     * Select the applet again with an extended length APDU. If the reader
+     * or the card rejects it, the applet is selected with a short APDU and
+     * the session falls back to short APDUs.
+     *
+     * @return whether the extended length APDU was accepted.
+     * @throws CardServiceException if the applet cannot be selected again.
+     */
+    private boolean probeExtendedLength()
+    throws CardServiceException {
+        try {
+            execute(IdemixSmartcard.selectApplicationCommandExtended);
+            return true;
+        } catch (CardServiceException e) {
+            getTrace().message("Extended length rejected, using short APDUs: " + e.getMessage());
+            execute(IdemixSmartcard.selectApplicationCommand);
+            return false;
+        }
     }
 
     /**
@@ -163,7 +212,11 @@ implements ProverInterface, RecipientInterface {
     }
 
     /**
-     * Send an APDU over the communication channel to the smart card.
+     * Send an APDU over the communication channel to the smart card. All
+     * protocol commands pass through here as well, so subclasses can
+     * override it to wrap or intercept the traffic. The executor sending
+     * the protocol commands records them in the trace and the metrics;
+     * APDUs transmitted directly are not recorded.
      *
      * @param apdu the APDU to be send to the smart card.
      * @return ResponseAPDU the response from the smart card.
@@ -171,22 +224,25 @@ implements ProverInterface, RecipientInterface {
      */
     public ResponseAPDU transmit(CommandAPDU capdu)
     throws CardServiceException {
+        return service.transmit(capdu);
+    }
 
-        if (VERBOSE) {
-            System.out.println();
-            System.out.println("C: " + Hex.bytesToHexString(capdu.getBytes()));
-        }
-
-        long start = System.nanoTime();
-        ResponseAPDU rapdu = service.transmit(capdu);
-        long duration = (System.nanoTime() - start)/1000000;
-
-        if (VERBOSE) {
-            System.out.println(" duration: " + duration + " ms");
-            System.out.println("R: " + Hex.bytesToHexString(rapdu.getBytes()));
-        }
+    /**
+     * Get the trace of the APDUs exchanged by this service.
+     *
+     * @return the trace set for this service, or the default trace.
+     */
+    public ApduTrace getTrace() {
+        return executor.getTrace();
+    }
 
-        return rapdu;
+    /**
+     * Set the trace of the APDUs exchanged by this service.
+     *
+     * @param trace to use, or null to use the default trace.
+     */
+    public void setTrace(ApduTrace trace) {
+        executor.setTrace(trace);
     }
 
     public byte[] transmitControlCommand(int controlCode, byte[] command)
@@ -221,18 +277,7 @@ implements ProverInterface, RecipientInterface {
      */
     public ProtocolResponse execute(ProtocolCommand command)
     throws CardServiceException {
-        ResponseAPDU response = transmit(command.getAPDU());
-
-        if (response.getSW() != 0x00009000) {
-            // don't bother with the rest of the commands...
-            throw new CardServiceException(String.format(
-                    "Command failed: \"%s\", SW: %04x (%s)",
-                    command.getDescription(), response.getSW(),
-                    command.getErrorMessage(response.getSW())),
-                    response.getSW());
-        }
-
-        return new ProtocolResponse(command.getKey(), response);
+        return executor.execute(command);
     }
 
     /**
@@ -244,14 +289,36 @@ implements ProverInterface, RecipientInterface {
      */
     public ProtocolResponses execute(ProtocolCommands commands)
     throws CardServiceException {
-        ProtocolResponses responses = new ProtocolResponses();
+        return executor.execute(commands);
+    }
 
-        for (ProtocolCommand command: commands) {
-            ProtocolResponse response = execute(command);
-            responses.put(response.getKey(), response);
-        }
+    /**
+     * Get the timing of the most recently executed list of protocol commands.
+     *
+     * @return the timing, or null if no list has been executed yet.
+     */
+    public ProtocolExecutor.Timing getLastExecutionTiming() {
+        return executor.getLastTiming();
+    }
 
-        return responses;
+    /**
+     * Get the metrics in which the latencies of the protocol commands
+     * executed by this service are recorded.
+     *
+     * @return the metrics set for this service, or the default metrics.
+     */
+    public CommandMetrics getMetrics() {
+        return executor.getMetrics();
+    }
+
+    /**
+     * Set the metrics in which the latencies of the protocol commands
+     * executed by this service are recorded.
+     *
+     * @param metrics to use, or null to use the default metrics.
+     */
+    public void setMetrics(CommandMetrics metrics) {
+        executor.setMetrics(metrics);
     }
 
     /**
@@ -467,9 +534,7 @@ implements ProverInterface, RecipientInterface {
     public Message round1(final Message msg) {
         // Hide CardServiceExceptions, instead return null on failure
         try {
-            ProtocolCommands commands = IdemixSmartcard.round1Commands(getCardVersion(), issuanceSpec, msg);
-            ProtocolResponses responses = execute(commands);
-            return IdemixSmartcard.processRound1Responses(getCardVersion(), responses);
+            return executeRound1(msg);
 
         // Report caught exceptions
         } catch (CardServiceException e) {
@@ -479,6 +544,21 @@ implements ProverInterface, RecipientInterface {
         }
     }
 
+    /**
+     * Execute the first round of the issuance protocol, like
+     * {@link #round1(Message)}, but report failures as exceptions.
+     *
+     * @param msg the first message from the issuer.
+     * @return the message for the issuer.
+     * @throws CardServiceException if an error occurred.
+     */
+    public Message executeRound1(final Message msg)
+    throws CardServiceException {
+        ProtocolCommands commands = IdemixSmartcard.round1Commands(getCardVersion(), issuanceSpec, msg);
+        ProtocolResponses responses = execute(commands);
+        return IdemixSmartcard.processRound1Responses(getCardVersion(), responses);
+    }
+
 
     /**
      * Called with the second protocol flow as input, outputs the Credential.
@@ -492,8 +572,7 @@ implements ProverInterface, RecipientInterface {
     public Credential round3(final Message msg) {
         // Hide CardServiceExceptions, instead return null on failure
         try {
-            // send Signature
-            execute(IdemixSmartcard.round3Commands(getCardVersion(), issuanceSpec, msg));
+            executeRound3(msg);
 
             // Do NOT return the generated Idemix credential
             return null;
@@ -506,6 +585,19 @@ implements ProverInterface, RecipientInterface {
         }
     }
 
+    /**
+     * Execute the third round of the issuance protocol, like
+     * {@link #round3(Message)}, but report failures as exceptions.
+     *
+     * @param msg the signature message from the issuer.
+     * @throws CardServiceException if an error occurred.
+     */
+    public void executeRound3(final Message msg)
+    throws CardServiceException {
+        // send Signature
+        execute(IdemixSmartcard.round3Commands(getCardVersion(), issuanceSpec, msg));
+    }
+
     /**
      * Builds an Identity mixer show-proof data structure, which can be passed
      * to the verifier for verification.
@@ -515,12 +607,7 @@ implements ProverInterface, RecipientInterface {
     public Proof buildProof(final BigInteger nonce, final ProofSpec spec) {
         // Hide CardServiceExceptions, instead return null on failure
         try {
-            ProtocolCommands commands;
-
-            commands = IdemixSmartcard.buildProofCommands(getCardVersion(),
-                   nonce, spec, credentialId);
-            ProtocolResponses responses = execute(commands);
-            return IdemixSmartcard.processBuildProofResponses(getCardVersion(), responses, spec);
+            return executeBuildProof(nonce, spec);
         // Report caught exceptions
         } catch (CardServiceException e) {
             System.err.println(e.getMessage() + "\n");
@@ -529,6 +616,49 @@ implements ProverInterface, RecipientInterface {
         }
     }
 
+    /**
+     * Build a proof, like {@link #buildProof(BigInteger, ProofSpec)}, but
+     * report failures as exceptions.
+     *
+     * @param nonce from the verifier.
+     * @param spec the specification of the proof.
+     * @return the proof.
+     * @throws CardServiceException if an error occurred.
+     */
+    public Proof executeBuildProof(final BigInteger nonce, final ProofSpec spec)
+    throws CardServiceException {
+        ProtocolCommands commands = IdemixSmartcard.buildProofCommands(getCardVersion(),
+                nonce, spec, credentialId);
+        ProtocolResponses responses = execute(commands);
+        return IdemixSmartcard.processBuildProofResponses(getCardVersion(), responses, spec);
+    }
+
+    /**
+     * Build a proof for every CL predicate of the specification, each over
+     * its own credential, in a single batch of commands. The card stays
+     * selected and verified between the proofs, so the credential PIN is
+     * only needed once.
+     *
+     * <p>The card computes the challenge of every proof itself, so the
+     * proofs are independent: they are not linked by a common challenge
+     * or master secret and do not show that the credentials are held by
+     * one card. Every proof is verified against its own predicate with
+     * {@link ProofVerifier#verify(ProofSpec, int, Proof, BigInteger)}.
+     *
+     * @param nonce from the verifier, shared by all proofs.
+     * @param spec the specification of the proofs.
+     * @param ids the id of the credential for every predicate.
+     * @return the proof for every predicate, in order.
+     * @throws CardServiceException if an error occurred.
+     */
+    public List<Proof> executeBuildProofs(final BigInteger nonce, final ProofSpec spec, short[] ids)
+    throws CardServiceException {
+        ProtocolCommands commands = IdemixSmartcard.buildProofCommands(getCardVersion(),
+                nonce, spec, ids);
+        ProtocolResponses responses = execute(commands);
+        return IdemixSmartcard.processBuildProofResponses(getCardVersion(), responses, spec, ids);
+    }
+
     /**
      * Set the specification of a certificate issuance:
      *
@@ -542,8 +672,8 @@ implements ProverInterface, RecipientInterface {
      */
     public void setIssuanceSpecification(IssuanceSpec spec) throws CardServiceException {
         issuanceSpec = spec;
-
-        execute(IdemixSmartcard.setIssuanceSpecificationCommands(getCardVersion(), spec, credentialId));
+        execute(IdemixSmartcard.setIssuanceSpecificationCommands(getCardVersion(), spec, credentialId,
+                extendedLength));
     }
 
     /**
@@ -620,25 +750,72 @@ implements ProverInterface, RecipientInterface {
      * @throws CardServiceException
      */
     public List<IdemixLogEntry> getLogEntries() throws CardServiceException {
-        ProtocolResponse response;
-        Vector<IdemixLogEntry> list = new Vector<IdemixLogEntry>();
+        return getLogEntries(null);
+    }
+
+    /**
+     * Get the log entries which are newer than a watermark, newest first.
+     * No further log pages are requested once the watermark is reached.
+     *
+     * @param since the watermark of the entries already ingested, or null
+     *        to get all entries including the empty ones.
+     * @return the new log entries.
+     * @throws CardServiceException if an error occurred.
+     */
+    public List<IdemixLogEntry> getLogEntries(LogWatermark since) throws CardServiceException {
+        final Vector<IdemixLogEntry> list = new Vector<IdemixLogEntry>();
+        final ApduTrace trace = getTrace();
+
+        visitLogEntries(since, new IdemixLogEntryView.Visitor() {
+            public boolean visit(IdemixLogEntryView entry) {
+                IdemixLogEntry log_entry = entry.toEntry();
+                if (trace.isEnabled()) {
+                    trace.data(log_entry.getBytes());
+                }
+                list.add(log_entry);
+                return true;
+            }
+        });
+
+        return list;
+    }
+
+    /**
+     * Pass the log entries which are newer than a watermark to a visitor,
+     * newest first. The entries are decoded in place from the responses of
+     * the card, no objects are allocated per entry. No further log pages
+     * are requested once the watermark is reached or the visitor stops.
+     *
+     * @param since the watermark of the entries already ingested, or null
+     *        to visit all entries including the empty ones.
+     * @param visitor receiving the entries.
+     * @return the number of visited entries.
+     * @throws CardServiceException if an error occurred.
+     */
+    public int visitLogEntries(LogWatermark since, IdemixLogEntryView.Visitor visitor)
+    throws CardServiceException {
+        IdemixLogEntryView view = new IdemixLogEntryView();
+        int visited = 0;
 
         for (byte start_entry = 0; start_entry < LOG_SIZE;
                 start_entry = (byte) (start_entry + LOG_ENTRIES_PER_APDU)) {
-            response = execute(IdemixSmartcard.getLogCommand(getCardVersion(), start_entry));
-            byte[] data = response.getData();
+            ProtocolResponse response = execute(IdemixSmartcard.getLogCommand(getCardVersion(), start_entry));
+            ByteBuffer data = ByteBuffer.wrap(response.getData());
             for (int entry = 0; entry < LOG_ENTRIES_PER_APDU
                     && entry + start_entry < LOG_SIZE; entry++) {
 
-                byte[] log_entry = Arrays.copyOfRange(data, LOG_ENTRY_SIZE
-                        * entry, LOG_ENTRY_SIZE * (entry + 1));
-
-                System.out.println(Hex.bytesToHexString(log_entry));
-                list.add(new IdemixLogEntry(log_entry));
+                view.wrap(data, LOG_ENTRY_SIZE * entry);
+                if (since != null && since.isReached(view)) {
+                    return visited;
+                }
+                visited++;
+                if (!visitor.visit(view)) {
+                    return visited;
+                }
             }
         }
 
-        return list;
+        return visited;
     }
 
     public void setCAKey(RSAPublicKey caKey) throws CardServiceException {
@@ -646,11 +823,55 @@ implements ProverInterface, RecipientInterface {
     }
 
     public void verifyCertificate(Certificate cert) throws CertificateEncodingException, CardServiceException {
-        execute(IdemixSmartcard.verifyCertificateCommands(getCardVersion(), cert));
+        execute(IdemixSmartcard.verifyCertificateCommands(getCardVersion(), cert, extendedLength));
+    }
+
+    /**
+     * Extended length APDUs are used when they are enabled with
+     * {@link #setTerminalExtendedLength(boolean)}, the applet reports
+     * {@link CardVersion.Feature#EXTENDED_LENGTH_COMMANDS}, the answer to reset of the card announces them as well as the
+     * T=1 protocol, and the card accepts an extended length select. This is
+     * decided when the applet is selected; the commands are not resent with
+     * short APDUs halfway through a protocol.
+     *
+     * @return whether extended length APDUs are sent to the card.
+     */
+    public boolean isExtendedLength() {
+        return extendedLength;
+    }
+
+    /**
+     * Override whether extended length APDUs are sent to the card. Note that
+     * this is decided again when the applet is selected.
+     *
+     * @param extendedLength whether to send extended length APDUs.
+     */
+    public void setExtendedLength(boolean extendedLength) {
+        this.extendedLength = extendedLength;
+    }
+
+    /**
+     * @return whether extended length APDUs are enabled.
+     */
+    public boolean isTerminalExtendedLength() {
+        return terminalExtendedLength;
+    }
+
+    /**
+     * Set whether extended length APDUs may be used, false by default. Only
+     * enable this when the terminal transports them. Applets which do not
+     * report {@link CardVersion.Feature#EXTENDED_LENGTH_COMMANDS}, such as
+     * the released IRMAcard applets, keep getting short APDUs. Takes effect
+     * when the applet is selected.
+     *
+     * @param terminalExtendedLength whether extended length APDUs may be
+     *        used.
+     */
+    public void setTerminalExtendedLength(boolean terminalExtendedLength) {
+        this.terminalExtendedLength = terminalExtendedLength;
     }
 
     public CardVersion getCardVersion() {
-        System.out.println("[IdemixService] Returned version: " + cardVersion);
         return cardVersion;
     }
 }
@@ -20,18 +20,23 @@
 package org.irmacard.idemix;
 
 import java.math.BigInteger;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.WeakHashMap;
 
 import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.CardVersion.Feature;
 import org.irmacard.idemix.util.IdemixFlags;
 
 import net.sourceforge.scuba.smartcards.CommandAPDU;
@@ -39,6 +44,7 @@ import net.sourceforge.scuba.smartcards.ISO7816;
 import net.sourceforge.scuba.smartcards.ProtocolCommand;
 import net.sourceforge.scuba.smartcards.ProtocolCommands;
 import net.sourceforge.scuba.smartcards.ProtocolErrors;
+import net.sourceforge.scuba.smartcards.ProtocolResponse;
 import net.sourceforge.scuba.smartcards.ProtocolResponses;
 
 import com.ibm.zurich.idmx.dm.Values;
@@ -71,204 +77,222 @@ public class IdemixSmartcard {
     /**
      * AID of the IRMAcard application: ASCII encoding of "IRMAcard".
      */
-    private static final byte[] AID = {(byte) 0xF8, 0x49, 0x52, 0x4D, 0x41, 0x63, 0x61, 0x72, 0x64};
-    private static final byte[] AID_0_7 = {0x49, 0x52, 0x4D, 0x41, 0x63, 0x61, 0x72, 0x64};
+    static final byte[] AID = {(byte) 0xF8, 0x49, 0x52, 0x4D, 0x41, 0x63, 0x61, 0x72, 0x64};
+    static final byte[] AID_0_7 = {0x49, 0x52, 0x4D, 0x41, 0x63, 0x61, 0x72, 0x64};
 
     /**
      * INStruction to select an application.
      */
-    private static final byte INS_SELECT_APPLICATION = (byte) 0xA4;
+    static final byte INS_SELECT_APPLICATION = (byte) 0xA4;
 
     /**
      * P1 parameter for select by name.
      */
-    private static final byte P1_SELECT_BY_NAME = 0x04;
+    static final byte P1_SELECT_BY_NAME = 0x04;
 
 
     /**
      * CLAss to be used for IRMA APDUs.
      */
-    private static final byte CLA_IRMACARD = (byte) 0x80;
+    static final byte CLA_IRMACARD = (byte) 0x80;
 
     /**
      * CLAss mask to indicate command chaining.
      */
-    private static final byte CLA_COMMAND_CHAINING = 0x10;
+    static final byte CLA_COMMAND_CHAINING = 0x10;
+
+    /**
+     * Maximum length of the command data in a short APDU.
+     */
+    static final int MAX_SHORT_LENGTH = 255;
+
+    /**
+     * Maximum length of the command data in an extended length APDU.
+     */
+    static final int MAX_EXTENDED_LENGTH = 65535;
 
     /**
      * INStruction to generate the master secret on the card.
      */
-    private static final byte INS_GENERATE_SECRET = 0x01;
+    static final byte INS_GENERATE_SECRET = 0x01;
 
     /**
      * INStruction to generate the master secret on the card.
      */
-    private static final byte INS_AUTHENTICATION_SECRET = 0x02;
+    static final byte INS_AUTHENTICATION_SECRET = 0x02;
 
     /**
      * INStruction to start issuing a credential (and to set the corresponding
      * context and issuance information).
      */
-    private static final byte INS_ISSUE_CREDENTIAL = 0x10;
+    static final byte INS_ISSUE_CREDENTIAL = 0x10;
 
     /**
      * INStruction to issue the the issuer public key.
      */
-    private static final byte INS_ISSUE_PUBLIC_KEY = 0x11;
+    static final byte INS_ISSUE_PUBLIC_KEY = 0x11;
 
     /**
      * INStruction to issue the attributes.
      */
-    private static final byte INS_ISSUE_ATTRIBUTES = 0x12;
+    static final byte INS_ISSUE_ATTRIBUTES = 0x12;
 
     /**
      * combined hidden attributes (U).
      */
-    private static final byte INS_ISSUE_COMMITMENT = 0x1A;
+    static final byte INS_ISSUE_COMMITMENT = 0x1A;
 
     /**
      * INStruction to receive the zero-knowledge proof for correct construction
      * of U (c, v^', s_A).
      */
-    private static final byte INS_ISSUE_COMMITMENT_PROOF = 0x1B;
+    static final byte INS_ISSUE_COMMITMENT_PROOF = 0x1B;
 
     /**
      * INStruction to receive the second nonce (n_2).
      */
-    private static final byte INS_ISSUE_CHALLENGE = 0x1C;
+    static final byte INS_ISSUE_CHALLENGE = 0x1C;
 
     /**
      * INStruction to send the blind signature (A, e, v'').
      */
-    private static final byte INS_ISSUE_SIGNATURE = 0x1D;
+    static final byte INS_ISSUE_SIGNATURE = 0x1D;
 
     /**
      * INStruction to verify the signature and the zero-knowledge proof.
      */
-    private static final byte INS_ISSUE_VERIFY = 0x1F;
+    static final byte INS_ISSUE_VERIFY = 0x1F;
 
     /**
      * INStruction to start proving attributes from a credential (and to set
      * the corresponding context).
      */
-    private static final byte INS_PROVE_CREDENTIAL = 0x20;
+    static final byte INS_PROVE_CREDENTIAL = 0x20;
 
     /**
      * INStruction to send the challenge (m) to be signed in the proof and
      * receive the commitment for the proof (a).
      */
-    private static final byte INS_PROVE_COMMITMENT = 0x2A;
+    static final byte INS_PROVE_COMMITMENT = 0x2A;
 
     /**
      * INStruction to receive the values A', e^ and v^.
      */
-    private static final byte INS_PROVE_SIGNATURE = 0x2B;
+    static final byte INS_PROVE_SIGNATURE = 0x2B;
 
     /**
      * INStruction to receive the disclosed attributes (A_i).
      */
-    private static final byte INS_PROVE_ATTRIBUTE = 0x2C;
+    static final byte INS_PROVE_ATTRIBUTE = 0x2C;
 
     /**
      * INStruction to select a credential on the card.
      */
-    private static final byte INS_ADMIN_CREDENTIAL = 0x30;
+    static final byte INS_ADMIN_CREDENTIAL = 0x30;
 
     /**
      * INStruction to remove a credential from the card.
      */
-    private static final byte INS_ADMIN_REMOVE = 0x31;
+    static final byte INS_ADMIN_REMOVE = 0x31;
 
     /**
      * INStruction to get an attribute from the current selected credential.
      */
-    private static final byte INS_ADMIN_ATTRIBUTE = 0x32;
+    static final byte INS_ADMIN_ATTRIBUTE = 0x32;
 
     /**
      * INStruction to get the flags of a credential.
      */
-    private static final byte INS_ADMIN_FLAGS = 0x33;
+    static final byte INS_ADMIN_FLAGS = 0x33;
 
     /**
      * INStruction to get a list of credentials stored on the card.
      */
-    private static final byte INS_ADMIN_CREDENTIALS = 0x3A;
+    static final byte INS_ADMIN_CREDENTIALS = 0x3A;
 
     /**
      * INStruction to get the transaction log from the card.
      */
-    private static final byte INS_ADMIN_LOG = 0x3B;
+    static final byte INS_ADMIN_LOG = 0x3B;
 
 
     /**
      * P1 parameter for the n value from the issuer public key.
      */
-    private static final byte P1_PUBLIC_KEY_N = 0x00;
+    static final byte P1_PUBLIC_KEY_N = 0x00;
 
     /**
      * P1 parameter for the s value from the issuer public key.
      */
-    private static final byte P1_PUBLIC_KEY_S = 0x01;
+    static final byte P1_PUBLIC_KEY_S = 0x01;
 
     /**
      * P1 parameter for the z value from the issuer public key.
      */
-    private static final byte P1_PUBLIC_KEY_Z = 0x02;
+    static final byte P1_PUBLIC_KEY_Z = 0x02;
 
     /**
      * P1 parameter for the R values from the issuer public key.
      */
-    private static final byte P1_PUBLIC_KEY_R = 0x03;
+    static final byte P1_PUBLIC_KEY_R = 0x03;
+
+    /**
+     * P1 parameter for n, Z, S and the R values from the issuer public key
+     * packed into a single extended length APDU, P2 holds the number of R
+     * values. Only applets reporting
+     * {@link Feature#EXTENDED_LENGTH_COMMANDS} implement it.
+     */
+    static final byte P1_PUBLIC_KEY_PACKED = 0x04;
 
     /**
      * P1 parameter for the A value from a signature.
      */
-    private static final byte P1_SIGNATURE_A = 0x01;
+    static final byte P1_SIGNATURE_A = 0x01;
 
     /**
      * P1 parameter for the e value from a signature.
      */
-    private static final byte P1_SIGNATURE_E = 0x02;
+    static final byte P1_SIGNATURE_E = 0x02;
 
     /**
      * P1 parameter for the v value from a signature.
      */
-    private static final byte P1_SIGNATURE_V = 0x03;
+    static final byte P1_SIGNATURE_V = 0x03;
 
     /**
      * P1 parameter for the challenge of a proof.
      */
-    private static final byte P1_SIGNATURE_PROOF_C = 0x04;
+    static final byte P1_SIGNATURE_PROOF_C = 0x04;
 
     /**
      * P1 parameter for the s_e response of a proof.
      */
-    private static final byte P1_SIGNATURE_PROOF_S_E = 0x05;
+    static final byte P1_SIGNATURE_PROOF_S_E = 0x05;
 
     /**
      * P1 parameter for the challenge of a proof.
      */
-    private static final byte P1_PROOF_C = 0x01;
+    static final byte P1_PROOF_C = 0x01;
 
     /**
      * P1 parameter for the vPrimeHat response of a proof.
      */
-    private static final byte P1_PROOF_VPRIMEHAT = 0x02;
+    static final byte P1_PROOF_VPRIMEHAT = 0x02;
 
     /**
      * P1 parameter for the sHat response of a proof.
      */
-    private static final byte P1_PROOF_SHAT = 0x03;
+    static final byte P1_PROOF_SHAT = 0x03;
 
     /**
      * P1 parameter for the modulus of an RSA key.
      */
-    private static final byte P1_RSA_MODULUS = 0x00;
+    static final byte P1_RSA_MODULUS = 0x00;
 
     /**
      * P1 parameter for the exponent of an RSA key.
      */
-    private static final byte P1_RSA_EXPONENT = 0x01;
+    static final byte P1_RSA_EXPONENT = 0x01;
 
     /**
      * P2 parameter for the attribute PIN.
@@ -283,12 +307,35 @@ public class IdemixSmartcard {
     /**
      * Values for backward-compatibility with older cards.
      */
-    private static final byte INS_ISSUE_SIGNATURE_0_7 = 0x1D;
-    private static final byte INS_ISSUE_SIGNATURE_PROOF_0_7 = 0x1E;
-    private static final byte P1_SIGNATURE_VERIFY_0_7 = 0x00;
-    private static final byte P1_PROOF_VERIFY_0_7 = 0x00;
-    private static final byte P1_PROOF_C_0_7 = 0x01;
-    private static final byte P1_PROOF_S_E_0_7 = 0x04;
+    static final byte INS_ISSUE_SIGNATURE_0_7 = 0x1D;
+    static final byte INS_ISSUE_SIGNATURE_PROOF_0_7 = 0x1E;
+    static final byte P1_SIGNATURE_VERIFY_0_7 = 0x00;
+    static final byte P1_PROOF_VERIFY_0_7 = 0x00;
+    static final byte P1_PROOF_C_0_7 = 0x01;
+    static final byte P1_PROOF_S_E_0_7 = 0x04;
+
+    /**
+     * Slots of the responses to {@link #round1Commands}.
+     */
+    static final int SLOT_ROUND1_U = 0;
+    static final int SLOT_ROUND1_C = 1;
+    static final int SLOT_ROUND1_VHATPRIME = 2;
+    static final int SLOT_ROUND1_SHAT = 3;
+    static final int SLOT_ROUND1_N2 = 4;
+    static final String[] ROUND1_KEYS =
+            { "nonce_n1", "proof_c", "vHatPrime", "proof_s_A", "nonce_n2" };
+
+    /**
+     * Slots of the responses to {@link #buildProofCommands}, the attributes
+     * follow in the order of the credential structure.
+     */
+    static final int SLOT_PROOF_C = 1;
+    static final int SLOT_PROOF_A = 2;
+    static final int SLOT_PROOF_E = 3;
+    static final int SLOT_PROOF_V = 4;
+    static final int SLOT_PROOF_MASTER = 5;
+    static final int SLOT_PROOF_ATTRIBUTES = 6;
+
     /**
      * Produces an unsigned byte-array representation of a BigInteger.
      *
@@ -334,27 +381,236 @@ public class IdemixSmartcard {
      * @return an array with a fixed length.
      */
     public static byte[] fixLength(BigInteger integer, int length_in_bits) {
-        byte[] array = BigIntegerToUnsignedByteArray(integer);
-        int length;
+        byte[] fixed = new byte[(length_in_bits + 7) / 8];
+        fixLength(integer, length_in_bits, fixed, 0);
+        return fixed;
+    }
 
-        length = length_in_bits/8;
-        if (length_in_bits % 8 != 0){
-            length++;
+    /**
+     * Write the unsigned big-endian representation of a BigInteger with a
+     * fixed length into a buffer.
+     *
+     * <p>Apart from the single copy made by {@link BigInteger#toByteArray()},
+     * which is the only way to access the magnitude, no intermediate arrays
+     * are allocated: the value and its padding are written in place.
+     *
+     * @param integer to be written, must not be negative.
+     * @param length_in_bits the length of the integer in bits.
+     * @param buffer to write the integer to.
+     * @param offset in the buffer to start writing.
+     * @return the offset directly after the written integer.
+     */
+    public static int fixLength(BigInteger integer, int length_in_bits, byte[] buffer, int offset) {
+        int length = (length_in_bits + 7) / 8;
+        byte[] array = integer.toByteArray();
+
+        // Skip the sign byte, if any
+        int start = (array.length > 1 && array[0] == 0) ? 1 : 0;
+        int size = array.length - start;
+        if (integer.signum() < 0 || size > length) {
+            throw new IllegalArgumentException("Integer does not fit in " + length_in_bits + " bits");
         }
 
-        assert (array.length <= length);
+        int padding = length - size;
+        Arrays.fill(buffer, offset, offset + padding, (byte) 0x00);
+        System.arraycopy(array, start, buffer, offset + padding, size);
+        return offset + length;
+    }
 
-        int padding = length - array.length;
-        byte[] fixed = new byte[length];
-        Arrays.fill(fixed, (byte) 0x00);
-        System.arraycopy(array, 0, fixed, padding, array.length);
-        return fixed;
+    /**
+     * Write the unsigned big-endian representation of a BigInteger with a
+     * fixed length into a buffer, at its current position.
+     *
+     * @param integer to be written, must not be negative.
+     * @param length_in_bits the length of the integer in bits.
+     * @param buffer to write the integer to.
+     * @throws BufferOverflowException if the integer does not fit in the
+     *         remaining bytes of the buffer, in which case nothing is written.
+     */
+    public static void fixLength(BigInteger integer, int length_in_bits, ByteBuffer buffer) {
+        int length = (length_in_bits + 7) / 8;
+        if (buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        byte[] array = integer.toByteArray();
+
+        // Skip the sign byte, if any
+        int start = (array.length > 1 && array[0] == 0) ? 1 : 0;
+        int size = array.length - start;
+        if (integer.signum() < 0 || size > length) {
+            throw new IllegalArgumentException("Integer does not fit in " + length_in_bits + " bits");
+        }
+
+        for (int i = size; i < length; i++) {
+            buffer.put((byte) 0x00);
+        }
+        buffer.put(array, start, size);
+    }
+
+    /**
+     * Write the current time (in seconds since the epoch) into a buffer.
+     *
+     * @param buffer to write the time stamp to.
+     * @param offset in the buffer to start writing.
+     * @return the offset directly after the time stamp.
+     */
+    private static int putTimeStamp(byte[] buffer, int offset) {
+        int time = (int) (System.currentTimeMillis() / 1000);
+        buffer[offset] = (byte) (time >> 24);
+        buffer[offset + 1] = (byte) (time >> 16);
+        buffer[offset + 2] = (byte) (time >> 8);
+        buffer[offset + 3] = (byte) time;
+        return offset + 4;
     }
 
     private static byte[] addTimeStamp(byte[] argument) {
-        int time = (int) ((new Date()).getTime() / 1000);
-        return ByteBuffer.allocate(argument.length + 4).put(argument)
-                .putInt(time).array();
+        byte[] data = Arrays.copyOf(argument, argument.length + 4);
+        putTimeStamp(data, argument.length);
+        return data;
+    }
+
+    /**
+     * Cache of encoded issuer public key commands.
+     */
+    private static final PublicKeyCommandCache publicKeyCache = new PublicKeyCommandCache();
+
+    /**
+     * Get the cache of encoded issuer public key commands, e.g. to inspect
+     * its metrics.
+     *
+     * @return the cache used by {@link #setPublicKeyCommands}.
+     */
+    public static PublicKeyCommandCache getPublicKeyCache() {
+        return publicKeyCache;
+    }
+
+    /**
+     * Cache of compiled proof plans.
+     */
+    private static final ProofPlanCache proofPlanCache = new ProofPlanCache();
+
+    /**
+     * Get the cache of compiled proof plans, e.g. to inspect its metrics.
+     *
+     * @return the cache used by {@link #getProofPlan}.
+     */
+    public static ProofPlanCache getProofPlanCache() {
+        return proofPlanCache;
+    }
+
+    /**
+     * Get the compiled plan to build proofs.
+     *
+     * @param cv version of the card.
+     * @param spec Proof specification
+     * @param id id of credential
+     * @return the plan, from the cache if it was compiled before.
+     */
+    public static ProofPlan getProofPlan(CardVersion cv, ProofSpec spec, short id) {
+        return proofPlanCache.get(cv, spec, id);
+    }
+
+    /**
+     * Get the compiled plan to build proofs for one of the predicates of a
+     * proof specification.
+     *
+     * @param cv version of the card.
+     * @param spec Proof specification
+     * @param predicate index of the CL predicate in the specification
+     * @param id id of credential
+     * @return the plan, from the cache if it was compiled before.
+     */
+    public static ProofPlan getProofPlan(CardVersion cv, ProofSpec spec, int predicate, short id) {
+        return proofPlanCache.get(cv, spec, predicate, id);
+    }
+
+    /**
+     * Keys and descriptions of the attribute commands of a proof, per
+     * credential structure, so they are not built for every proof.
+     */
+    private static final Map<CredentialStructure, AttributeKeys> attributeKeys =
+            new WeakHashMap<CredentialStructure, AttributeKeys>();
+
+    static final class AttributeKeys {
+        final String[] keys;
+        final String[] revealed;
+        final String[] hidden;
+
+        /**
+         * The keys of all commands of a proof, by slot.
+         */
+        final String[] slots;
+
+        AttributeKeys(CredentialStructure cred) {
+            int n = cred.getAttributeStructs().size();
+            keys = new String[n];
+            revealed = new String[n];
+            hidden = new String[n];
+            slots = new String[SLOT_PROOF_ATTRIBUTES + n];
+            slots[0] = "startprove";
+            slots[SLOT_PROOF_C] = "challenge_c";
+            slots[SLOT_PROOF_A] = "signature_A";
+            slots[SLOT_PROOF_E] = "signature_e";
+            slots[SLOT_PROOF_V] = "signature_v";
+            slots[SLOT_PROOF_MASTER] = "master";
+            int j = 0;
+            for (AttributeStructure attribute : cred.getAttributeStructs()) {
+                int i = attribute.getKeyIndex();
+                keys[j] = "attr_" + attribute.getName();
+                slots[SLOT_PROOF_ATTRIBUTES + j] = keys[j];
+                revealed[j] = "Get disclosed attribute (@index " + i + ").";
+                hidden[j++] = "Get random value (@index " + i + ").";
+            }
+        }
+    }
+
+    static AttributeKeys attributeKeys(CredentialStructure cred) {
+        synchronized (attributeKeys) {
+            AttributeKeys keys = attributeKeys.get(cred);
+            if (keys == null) {
+                keys = new AttributeKeys(cred);
+                attributeKeys.put(cred, keys);
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Get the responses as slots, if the commands in the slots from offset
+     * on have the expected keys, each followed by the suffix. Otherwise the
+     * responses come from another batch, or from one in another order, and
+     * have to be read by key.
+     */
+    private static IndexedResponses slots(ProtocolResponses responses, int offset,
+            String[] keys, String suffix) {
+        if (!(responses instanceof IndexedResponses)) {
+            return null;
+        }
+        IndexedResponses indexed = (IndexedResponses) responses;
+        if (offset < 0 || offset + keys.length > indexed.slots()) {
+            return null;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            String key = indexed.get(offset + i).getKey();
+            if (suffix.length() == 0 ? !keys[i].equals(key)
+                    : key == null || key.length() != keys[i].length() + suffix.length()
+                            || !key.startsWith(keys[i]) || !key.endsWith(suffix)) {
+                return null;
+            }
+        }
+        return indexed;
+    }
+
+    private static BigInteger value(IndexedResponses indexed, ProtocolResponses responses,
+            int slot, String key) {
+        return value(indexed, responses, slot, key, "");
+    }
+
+    private static BigInteger value(IndexedResponses indexed, ProtocolResponses responses,
+            int slot, String key, String suffix) {
+        ProtocolResponse response = indexed != null ? indexed.get(slot)
+                : responses.get(suffix.length() == 0 ? key : key + suffix);
+        return new BigInteger(1, response.getData());
     }
 
     /**************************************************************************/
@@ -374,6 +630,17 @@ public class IdemixSmartcard {
                      new CommandAPDU(ISO7816.CLA_ISO7816,
                                 INS_SELECT_APPLICATION, P1_SELECT_BY_NAME, 0x00, AID_0_7, 256)); // LE == 0 is required.
 
+    /**
+     * Select the application with an extended length APDU, to check that
+     * the reader and the card transport them.
+     */
+    public static ProtocolCommand selectApplicationCommandExtended =
+            new ProtocolCommand(
+                    "selectapplet",
+                    "Select IRMAcard application (extended length)",
+                     new CommandAPDU(ISO7816.CLA_ISO7816,
+                                INS_SELECT_APPLICATION, P1_SELECT_BY_NAME, 0x00, AID, MAX_EXTENDED_LENGTH + 1));
+
     /**
      * Get the APDU commands for setting the specification of
      * a certificate issuance:
@@ -387,12 +654,26 @@ public class IdemixSmartcard {
      * @return
      */
     public static ProtocolCommands setIssuanceSpecificationCommands(CardVersion cv, IssuanceSpec spec, short id) {
+        return setIssuanceSpecificationCommands(cv, spec, id, false);
+    }
+
+    /**
+     * Get the APDU commands for setting the specification of
+     * a certificate issuance, optionally packing the issuer public key
+     * into a single extended length APDU.
+     *
+     * @param spec the specification to be set
+     * @param id
+     * @param extended whether the card accepts extended length APDUs.
+     * @return
+     */
+    public static ProtocolCommands setIssuanceSpecificationCommands(CardVersion cv, IssuanceSpec spec, short id, boolean extended) {
         ProtocolCommands commands = new ProtocolCommands();
 
         commands.add(startIssuanceCommand(cv, spec, id));
 
         commands.addAll(setPublicKeyCommands(cv, spec.getPublicKey(),
-                    spec.getCredentialStructure().getAttributeStructs().size() + 1));
+                    spec.getCredentialStructure().getAttributeStructs().size() + 1, extended));
         return commands;
     }
 
@@ -400,11 +681,69 @@ public class IdemixSmartcard {
      * Get the APDU commands for setting the public key on
      * the card.
      *
+     * <p>The encoded commands are cached per public key, hence the key
+     * should not be modified once it is in use.
+     *
      * @param spec Issuance spec to get the public key from.
      * @return
      */
     public static ProtocolCommands setPublicKeyCommands(CardVersion cv, IssuerPublicKey pubKey, int pubKeyElements) {
+        return setPublicKeyCommands(cv, pubKey, pubKeyElements, false);
+    }
+
+    /**
+     * Get the APDU commands for setting the public key on
+     * the card. If the card accepts extended length APDUs and the applet
+     * supports {@link Feature#EXTENDED_LENGTH_COMMANDS}, the whole key is
+     * packed into a single APDU.
+     *
+     * @param spec Issuance spec to get the public key from.
+     * @param extended whether the card accepts extended length APDUs.
+     * @return
+     */
+    public static ProtocolCommands setPublicKeyCommands(CardVersion cv, IssuerPublicKey pubKey, int pubKeyElements, boolean extended) {
+        int l_n = pubKey.getGroupParams().getSystemParams().getL_n();
+        extended &= cv.supports(Feature.EXTENDED_LENGTH_COMMANDS)
+                && (3 + pubKeyElements) * ((l_n + 7) / 8) <= MAX_EXTENDED_LENGTH;
+
+        ProtocolCommands cached = publicKeyCache.get(cv, pubKey, pubKeyElements, extended);
+        if (cached == null) {
+            cached = extended ?
+                    encodePackedPublicKeyCommands(cv, pubKey, pubKeyElements) :
+                    encodePublicKeyCommands(cv, pubKey, pubKeyElements);
+            publicKeyCache.put(cv, pubKey, pubKeyElements, extended, cached);
+        }
+
+        ProtocolCommands commands = new ProtocolCommands();
+        commands.addAll(cached);
+        return commands;
+    }
+
+    /**
+     * Write n, Z, S and the first elements of R of a public key, each
+     * l_n bits long, one after another into a single array.
+     *
+     * @param pubKey to be written.
+     * @param pubKeyElements the number of elements of R to be written.
+     * @return the encoded public key.
+     */
+    private static byte[] encodePublicKey(IssuerPublicKey pubKey, int pubKeyElements) {
         int l_n = pubKey.getGroupParams().getSystemParams().getL_n();
+        byte[] data = new byte[(3 + pubKeyElements) * ((l_n + 7) / 8)];
+
+        int offset = fixLength(pubKey.getN(), l_n, data, 0);
+        offset = fixLength(pubKey.getCapZ(), l_n, data, offset);
+        offset = fixLength(pubKey.getCapS(), l_n, data, offset);
+        BigInteger[] pubKeyElement = pubKey.getCapR();
+        for (int i = 0; i < pubKeyElements; i++) {
+            offset = fixLength(pubKeyElement[i], l_n, data, offset);
+        }
+        return data;
+    }
+
+    private static ProtocolCommands encodePublicKeyCommands(CardVersion cv, IssuerPublicKey pubKey, int pubKeyElements) {
+        int length = (pubKey.getGroupParams().getSystemParams().getL_n() + 7) / 8;
+        byte[] data = encodePublicKey(pubKey, pubKeyElements);
 
         ProtocolCommands commands = new ProtocolCommands();
         commands.add(
@@ -413,7 +752,7 @@ public class IdemixSmartcard {
                         "Set public key (n)",
                         new CommandAPDU(
                                 CLA_IRMACARD, INS_ISSUE_PUBLIC_KEY, P1_PUBLIC_KEY_N, 0x00,
-                                fixLength(pubKey.getN(), l_n))));
+                                data, 0, length)));
 
         commands.add(
                 new ProtocolCommand(
@@ -421,7 +760,7 @@ public class IdemixSmartcard {
                         "Set public key (Z)",
                         new CommandAPDU(
                                 CLA_IRMACARD, INS_ISSUE_PUBLIC_KEY, P1_PUBLIC_KEY_Z, 0x00,
-                                fixLength(pubKey.getCapZ(), l_n))));
+                                data, length, length)));
 
         commands.add(
                 new ProtocolCommand(
@@ -429,9 +768,8 @@ public class IdemixSmartcard {
                         "Set public key (S)",
                         new CommandAPDU(
                                 CLA_IRMACARD, INS_ISSUE_PUBLIC_KEY, P1_PUBLIC_KEY_S, 0x00,
-                                fixLength(pubKey.getCapS(), l_n))));
+                                data, 2 * length, length)));
 
-        BigInteger[] pubKeyElement = pubKey.getCapR();
         for (int i = 0; i < pubKeyElements; i++) {
             commands.add(
                     new ProtocolCommand(
@@ -439,12 +777,26 @@ public class IdemixSmartcard {
                             "Set public key element (R@index " + i + ")",
                             new CommandAPDU(
                                     CLA_IRMACARD, INS_ISSUE_PUBLIC_KEY, P1_PUBLIC_KEY_R, i,
-                                    fixLength(pubKeyElement[i], l_n))));
+                                    data, (3 + i) * length, length)));
         }
 
         return commands;
     }
 
+    private static ProtocolCommands encodePackedPublicKeyCommands(CardVersion cv, IssuerPublicKey pubKey, int pubKeyElements) {
+        byte[] data = encodePublicKey(pubKey, pubKeyElements);
+
+        ProtocolCommands commands = new ProtocolCommands();
+        commands.add(
+                new ProtocolCommand(
+                        "publickey",
+                        "Set public key (n, Z, S, R@index 0-" + (pubKeyElements - 1) + ")",
+                        new CommandAPDU(
+                                CLA_IRMACARD, INS_ISSUE_PUBLIC_KEY, P1_PUBLIC_KEY_PACKED, pubKeyElements,
+                                data)));
+        return commands;
+    }
+
 
     /**
      * Get the APDU commands to start issuance.
@@ -460,27 +812,23 @@ public class IdemixSmartcard {
         IdemixFlags flags = new IdemixFlags();
         byte[] flagBytes = flags.getFlagBytes();
 
-        byte[] data;
-        if (cv.newer(new CardVersion(0, 7, 2))) {
-            System.out.println("Commands for 0.8 card series");
-            data = new byte[4 + flagBytes.length + l_H/8];
+        byte[] data = new byte[4 + flagBytes.length + l_H/8 + 4];
+        if (cv.supports(Feature.PROTOCOL_0_8)) {
             data[0] = (byte) (id >> 8);
             data[1] = (byte) (id & 0x00ff);
             data[2] = (byte) (spec.getCredentialStructure().getAttributeStructs().size() >> 8);
             data[3] = (byte) (spec.getCredentialStructure().getAttributeStructs().size() & 0xff);
             System.arraycopy(flagBytes, 0, data, 4, flagBytes.length);
-            System.arraycopy(fixLength(spec.getContext(), l_H), 0, data, 4 + flagBytes.length, l_H/8);
+            fixLength(spec.getContext(), l_H, data, 4 + flagBytes.length);
         } else {
-            System.out.println("Commands for 0.7 card series");
-            data = new byte[2 + l_H/8 + 2 + flagBytes.length];
             data[0] = (byte) (id >> 8);
             data[1] = (byte) (id & 0xff);
-            System.arraycopy(fixLength(spec.getContext(), l_H), 0, data, 2, l_H/8);
+            fixLength(spec.getContext(), l_H, data, 2);
             data[l_H/8 + 2] = (byte) (spec.getCredentialStructure().getAttributeStructs().size() >> 8);
             data[l_H/8 + 3] = (byte) (spec.getCredentialStructure().getAttributeStructs().size() & 0xff);
             System.arraycopy(flagBytes, 0, data, l_H/8 + 4, flagBytes.length);
         }
-        data = addTimeStamp(data);
+        putTimeStamp(data, data.length - 4);
 
         return new ProtocolCommand(
                                 "start_issuance",
@@ -499,28 +847,47 @@ public class IdemixSmartcard {
      * @return
      */
     public static ProtocolCommand startProofCommand(CardVersion cv, ProofSpec spec, short id, short D) {
+        return startProofCommand(startProofData(cv, spec, id, D));
+    }
+
+    /**
+     * Encode the data of the command to start a proof, leaving room for the
+     * timestamp.
+     */
+    static byte[] startProofData(CardVersion cv, ProofSpec spec, short id, short D) {
         int l_H = spec.getGroupParams().getSystemParams().getL_H();
 
-        byte[] data;
-        if (cv.newer(new CardVersion(0,7,2))) {
-            data = new byte[4 + l_H/8];
+        byte[] data = new byte[4 + l_H/8 + 4];
+        if (cv.supports(Feature.PROTOCOL_0_8)) {
             data[0] = (byte) (id >> 8);
             data[1] = (byte) (id & 0xff);
             data[2] = (byte) (D >> 8);
             data[3] = (byte) (D & 0xff);
-            System.arraycopy(fixLength(spec.getContext(), l_H), 0, data, 4, l_H/8);
+            fixLength(spec.getContext(), l_H, data, 4);
         } else {
-            data = new byte[2 + l_H/8 + 2];
             data[0] = (byte) (id >> 8);
             data[1] = (byte) (id & 0xff);
-            System.arraycopy(fixLength(spec.getContext(), l_H), 0, data, 2, l_H/8);
+            fixLength(spec.getContext(), l_H, data, 2);
             data[l_H/8 + 2] = (byte) (D >> 8);
             data[l_H/8 + 3] = (byte) (D & 0xff);
         }
-        data = addTimeStamp(data);
+        return data;
+    }
+
+    /**
+     * Get the command to start a proof, stamping a copy of the data with
+     * the current time.
+     */
+    static ProtocolCommand startProofCommand(byte[] startData) {
+        return startProofCommand(startData, "startprove");
+    }
+
+    static ProtocolCommand startProofCommand(byte[] startData, String key) {
+        byte[] data = startData.clone();
+        putTimeStamp(data, data.length - 4);
 
         return new ProtocolCommand(
-                                "startprove",
+                                key,
                                 "Start credential proof.",
                                 new CommandAPDU(
                                     CLA_IRMACARD, INS_PROVE_CREDENTIAL, 0x00, 0x00, data),
@@ -531,7 +898,7 @@ public class IdemixSmartcard {
     public static ProtocolCommands generateMasterSecretCommand(CardVersion cv) {
         ProtocolCommands commands = new ProtocolCommands();
 
-        if (!cv.newer(new CardVersion(0,7,2))) {
+        if (!cv.supports(Feature.PROTOCOL_0_8)) {
             commands.add(new ProtocolCommand(
                         "generatesecret",
                         "Generate master secret",
@@ -547,13 +914,17 @@ public class IdemixSmartcard {
     public static ProtocolCommands initialiseAuthenticationKey(CardVersion cv, RSAPrivateKey key) {
         ProtocolCommands commands = new ProtocolCommands();
 
-        if (!cv.older(new CardVersion(0,8))) {
+        if (cv.supports(Feature.AUTHENTICATION_KEY)) {
+            byte[] data = new byte[2 * 16];
+            fixLength(key.getPrivateExponent(), 128, data,
+                    fixLength(key.getModulus(), 128, data, 0));
+
             commands.add(new ProtocolCommand(
                     "initauthmod",
                     "Initialise the RSA modulus of the authentication key",
                     new CommandAPDU(
                             CLA_IRMACARD, INS_AUTHENTICATION_SECRET, P1_RSA_MODULUS, 0x00,
-                            fixLength(key.getModulus(), 128))
+                            data, 0, 16)
                     ));
 
             commands.add(new ProtocolCommand(
@@ -561,7 +932,7 @@ public class IdemixSmartcard {
                     "Initialise the RSA exponent of the authentication key",
                     new CommandAPDU(
                             CLA_IRMACARD, INS_AUTHENTICATION_SECRET, P1_RSA_EXPONENT, 0x00,
-                            fixLength(key.getPrivateExponent(), 128))
+                            data, 16, 16)
                     ));
         }
 
@@ -583,7 +954,7 @@ public class IdemixSmartcard {
     public static ProtocolCommands queryPinCommand(CardVersion cv, byte pinID) {
         ProtocolCommands commands = new ProtocolCommands();
 
-        if (!cv.older(new CardVersion(0,8, null, "alpha0", 0))) {
+        if (cv.supports(Feature.PIN_QUERY)) {
             commands.add(new ProtocolCommand(
                         "querypin",
                         "Query PIN verification status",
@@ -598,7 +969,7 @@ public class IdemixSmartcard {
     public static ProtocolCommands updatePinCommand(CardVersion cv, byte pinID, byte[] oldPin, byte[] newPin) {
         ProtocolCommands commands = new ProtocolCommands();
         byte[] pinBytes;
-        if (cv.newer(new CardVersion(0,7,2))) {
+        if (cv.supports(Feature.PROTOCOL_0_8)) {
             if (pinID == P2_PIN_ADMIN) {
                 pinBytes = new byte[16];
                 System.arraycopy(oldPin, 0, pinBytes, 0, oldPin.length);
@@ -637,16 +1008,20 @@ public class IdemixSmartcard {
         ProtocolCommands commands = new ProtocolCommands();
         Vector<AttributeStructure> structs = spec.getCredentialStructure().getAttributeStructs();
         int L_m = spec.getPublicKey().getGroupParams().getSystemParams().getL_m();
+        int length = (L_m + 7) / 8;
+        byte[] data = new byte[structs.size() * length];
         int i = 1;
         for (AttributeStructure struct : structs) {
             BigInteger attr = (BigInteger) values.get(struct.getName()).getContent();
+            int offset = (i - 1) * length;
+            fixLength(attr, L_m, data, offset);
             commands.add(
                     new ProtocolCommand(
                             "setattr"+i,
                             "Set attribute (m@index" + i + ")",
                             new CommandAPDU(
                                     CLA_IRMACARD, INS_ISSUE_ATTRIBUTES, i, 0x00,
-                                    fixLength(attr, L_m))));
+                                    data, offset, length)));
             i += 1;
         }
         return commands;
@@ -658,13 +1033,15 @@ public class IdemixSmartcard {
         BigInteger theNonce1 = msg.getIssuanceElement(
                 IssuanceProtocolValues.nonce);
         int L_Phi = spec.getPublicKey().getGroupParams().getSystemParams().getL_Phi();
+        byte[] nonce = new byte[(L_Phi + 7) / 8];
+        fixLength(theNonce1, L_Phi, nonce, 0);
         commands.add(
                 new ProtocolCommand(
                         "nonce_n1",
                         "Issue nonce n1",
                         new CommandAPDU(
                                 CLA_IRMACARD, INS_ISSUE_COMMITMENT, 0x00, 0x00,
-                                fixLength(theNonce1,L_Phi))));
+                                nonce)));
         commands.add(
                 new ProtocolCommand(
                         "proof_c",
@@ -700,19 +1077,21 @@ public class IdemixSmartcard {
                 new TreeMap<String, BigInteger>();
         HashMap<String, SValue> sValues = new HashMap<String, SValue>();
 
+        IndexedResponses indexed = slots(responses, 0, ROUND1_KEYS, "");
+
         issuanceProtocolValues.put(IssuanceProtocolValues.capU,
-                new BigInteger(1, responses.get("nonce_n1").getData()));
+                value(indexed, responses, SLOT_ROUND1_U, "nonce_n1"));
 
-        BigInteger challenge = new BigInteger(1, responses.get("proof_c").getData());
+        BigInteger challenge = value(indexed, responses, SLOT_ROUND1_C, "proof_c");
 
         additionalValues.put(IssuanceSpec.vHatPrime,
-                new BigInteger(1, responses.get("vHatPrime").getData()));
+                value(indexed, responses, SLOT_ROUND1_VHATPRIME, "vHatPrime"));
 
         sValues.put(IssuanceSpec.MASTER_SECRET_NAME,
-                new SValue(new BigInteger(1, responses.get("proof_s_A").getData())));
+                new SValue(value(indexed, responses, SLOT_ROUND1_SHAT, "proof_s_A")));
 
         issuanceProtocolValues.put(IssuanceProtocolValues.nonce,
-                new BigInteger(1, responses.get("nonce_n2").getData()));
+                value(indexed, responses, SLOT_ROUND1_N2, "nonce_n2"));
 
         // Return the next protocol message
         return new Message(issuanceProtocolValues,
@@ -723,49 +1102,58 @@ public class IdemixSmartcard {
     public static ProtocolCommands round3Commands(CardVersion cv, IssuanceSpec spec, final Message msg) {
         ProtocolCommands commands = new ProtocolCommands();
         SystemParameters sysPars = spec.getPublicKey().getGroupParams().getSystemParams();
+        int l_n = sysPars.getL_n();
+
+        // A, e, v'', c' and s_e one after another
+        byte[] data = new byte[2 * ((l_n + 7) / 8) + (sysPars.getL_e() + 7) / 8
+                + (sysPars.getL_v() + 7) / 8 + (sysPars.getL_H() + 7) / 8];
+        int offset_e = fixLength(msg.getIssuanceElement(IssuanceProtocolValues.capA),
+                l_n, data, 0);
+        int offset_v = fixLength(msg.getIssuanceElement(IssuanceProtocolValues.e),
+                sysPars.getL_e(), data, offset_e);
+        int offset_c = fixLength(msg.getIssuanceElement(IssuanceProtocolValues.vPrimePrime),
+                sysPars.getL_v(), data, offset_v);
+        int offset_s_e = fixLength(msg.getProof().getChallenge(),
+                sysPars.getL_H(), data, offset_c);
+        fixLength((BigInteger) msg.getProof().getSValue(IssuanceSpec.s_e).getValue(),
+                l_n, data, offset_s_e);
 
-        BigInteger A = msg.getIssuanceElement(IssuanceProtocolValues.capA);
         commands.add(
                 new ProtocolCommand(
                         "signature_A",
                         "Issue signature A",
                         new CommandAPDU(
                                 CLA_IRMACARD, INS_ISSUE_SIGNATURE, P1_SIGNATURE_A, 0x00,
-                                fixLength(A, sysPars.getL_n()))));
-        BigInteger e = msg.getIssuanceElement(IssuanceProtocolValues.e);
+                                data, 0, offset_e)));
         commands.add(
                 new ProtocolCommand(
                         "signature_e",
                         "Issue signature e",
                         new CommandAPDU(
                                 CLA_IRMACARD, INS_ISSUE_SIGNATURE, P1_SIGNATURE_E, 0x00,
-                                fixLength(e, sysPars.getL_e()))));
-        BigInteger v = msg.getIssuanceElement(IssuanceProtocolValues.vPrimePrime);
+                                data, offset_e, offset_v - offset_e)));
         commands.add(
                 new ProtocolCommand(
                         "vPrimePrime",
                         "Issue signature v''",
                         new CommandAPDU(
                                 CLA_IRMACARD, INS_ISSUE_SIGNATURE, P1_SIGNATURE_V, 0x00,
-                                fixLength(v, sysPars.getL_v()))));
-        if (cv.newer(new CardVersion(0,7,2))) {
-	        BigInteger c = msg.getProof().getChallenge();
+                                data, offset_v, offset_c - offset_v)));
+        if (cv.supports(Feature.PROTOCOL_0_8)) {
 	        commands.add(
 	                new ProtocolCommand(
 	                        "proof_c",
 	                        "Issue proof c'",
 	                        new CommandAPDU(
 	                                CLA_IRMACARD, INS_ISSUE_SIGNATURE, P1_SIGNATURE_PROOF_C, 0x00,
-	                                fixLength(c, sysPars.getL_H()))));
-	        BigInteger s_e =
-	                (BigInteger) msg.getProof().getSValue(IssuanceSpec.s_e).getValue();
+	                                data, offset_c, offset_s_e - offset_c)));
 	        commands.add(
 	                new ProtocolCommand(
 	                        "proof_s_e",
 	                        "Issue proof s_e",
 	                        new CommandAPDU(
 	                                CLA_IRMACARD, INS_ISSUE_SIGNATURE, P1_SIGNATURE_PROOF_S_E, 0x00,
-	                                fixLength(s_e, sysPars.getL_n()))));
+	                                data, offset_s_e, data.length - offset_s_e)));
 	        commands.add(
 	                new ProtocolCommand(
 	                        "issue_verify",
@@ -779,23 +1167,20 @@ public class IdemixSmartcard {
 	                        "Verify issuance results (signature & proof)",
 	                        new CommandAPDU(
 	                                CLA_IRMACARD, INS_ISSUE_SIGNATURE_0_7, P1_SIGNATURE_VERIFY_0_7, 0x00)));
-	        BigInteger c = msg.getProof().getChallenge();
 	        commands.add(
 	                new ProtocolCommand(
 	                        "proof_c",
 	                        "Issue proof c'",
 	                        new CommandAPDU(
 	                                CLA_IRMACARD, INS_ISSUE_SIGNATURE_PROOF_0_7, P1_PROOF_C_0_7, 0x00,
-	                                fixLength(c, sysPars.getL_H()))));
-	        BigInteger s_e =
-	                (BigInteger) msg.getProof().getSValue(IssuanceSpec.s_e).getValue();
+	                                data, offset_c, offset_s_e - offset_c)));
 	        commands.add(
 	                new ProtocolCommand(
 	                        "proof_s_e",
 	                        "Issue proof s_e",
 	                        new CommandAPDU(
 	                                CLA_IRMACARD, INS_ISSUE_SIGNATURE_PROOF_0_7, P1_PROOF_S_E_0_7, 0x00,
-	                                fixLength(s_e, sysPars.getL_n()))));
+	                                data, offset_s_e, data.length - offset_s_e)));
 	        commands.add(
 	                new ProtocolCommand(
 	                        "issue_verify",
@@ -808,105 +1193,119 @@ public class IdemixSmartcard {
 
 
 
+    /**
+     * Get the APDU commands to build a proof, using the cached plan for the
+     * proof specification and credential.
+     *
+     * @param cv version of the card.
+     * @param nonce from the verifier.
+     * @param spec Proof specification
+     * @param id id of credential
+     * @return the commands.
+     */
     public static ProtocolCommands buildProofCommands(CardVersion cv, final BigInteger nonce, final ProofSpec spec, short id) {
-        ProtocolCommands commands = new ProtocolCommands();
-        // Set the system parameters
-        SystemParameters sysPars = spec.getGroupParams().getSystemParams();
+        return getProofPlan(cv, spec, id).commands(nonce);
+    }
 
+    public static Proof processBuildProofResponses(CardVersion cv, ProtocolResponses responses, final ProofSpec spec) {
         Predicate predicate = spec.getPredicates().firstElement();
         if (predicate.getPredicateType() != PredicateType.CL) {
             throw new RuntimeException("Unimplemented predicate.");
         }
         CLPredicate pred = ((CLPredicate) predicate);
-        CredentialStructure cred = (CredentialStructure)
-                StructureStore.getInstance().get(pred.getCredStructLocation());
-
-        // Determine the disclosure selection bitmask
-        short D = 0;
-        for (AttributeStructure attribute : cred.getAttributeStructs()) {
-            Identifier identifier = pred.getIdentifier(attribute.getName());
-            if (identifier.isRevealed()) {
-                D |= 1 << attribute.getKeyIndex();
-            }
-        }
+        StructureStore store = StructureStore.getInstance();
+        CredentialStructure cred = (CredentialStructure) store.get(
+               pred.getCredStructLocation());
 
-        commands.add(
-                startProofCommand(cv, spec, id, D));
-        commands.add(
-                new ProtocolCommand(
-                        "challenge_c",
-                        "Send challenge n1",
-                        new CommandAPDU(CLA_IRMACARD, INS_PROVE_COMMITMENT, 0x00, 0x00,
-                                fixLength(nonce, sysPars.getL_Phi()))));
-        commands.add(
-                new ProtocolCommand(
-                        "signature_A",
-                        "Get random signature A",
-                        new CommandAPDU(CLA_IRMACARD, INS_PROVE_SIGNATURE, P1_SIGNATURE_A, 0x00)));
-        commands.add(
-                new ProtocolCommand(
-                        "signature_e",
-                        "Get random signature e^",
-                        new CommandAPDU(CLA_IRMACARD, INS_PROVE_SIGNATURE, P1_SIGNATURE_E, 0x00)));
-        commands.add(
-                new ProtocolCommand(
-                        "signature_v",
-                        "Get random signature v^",
-                            new CommandAPDU(CLA_IRMACARD, INS_PROVE_SIGNATURE, P1_SIGNATURE_V, 0x00)));
-        commands.add(
-                new ProtocolCommand(
-                        "master",
-                        "Get random value (@index 0).",
-                        new CommandAPDU(CLA_IRMACARD, INS_PROVE_ATTRIBUTE, 0x00, 0x00)));
+        return processProofResponses(responses, 0, pred, cred, "");
+    }
 
-        // iterate over all the identifiers
-        for (AttributeStructure attribute : cred.getAttributeStructs()) {
-            String attName = attribute.getName();
-            Identifier identifier = pred.getIdentifier(attName);
-            int i = attribute.getKeyIndex();
-            commands.add(
-                    new ProtocolCommand(
-                            "attr_"+attName,
-                            (identifier.isRevealed() ? "Get disclosed attribute" : "Get random value") + " (@index " + i + ").",
-                            new CommandAPDU(CLA_IRMACARD, INS_PROVE_ATTRIBUTE, i, 0x00)));
+    /**
+     * Get the APDU commands to build a proof for every CL predicate of the
+     * specification, back to back in a single batch.
+     *
+     * <p>The card computes the challenge of every proof itself, so the
+     * result is an independent proof per predicate, all for the same nonce,
+     * which does not link the credentials to one holder. The commands
+     * for the predicate at index k &gt; 0 have keys ending in "#k".
+     *
+     * @param cv version of the card.
+     * @param nonce from the verifier.
+     * @param spec Proof specification with only CL predicates
+     * @param ids id of the credential for every predicate
+     * @return the commands.
+     */
+    public static ProtocolCommands buildProofCommands(CardVersion cv, final BigInteger nonce, final ProofSpec spec, short[] ids) {
+        if (ids.length != spec.getPredicates().size()) {
+            throw new IllegalArgumentException("A credential is required for every predicate");
+        }
+        ProtocolCommands commands = new ProtocolCommands();
+        for (int k = 0; k < ids.length; k++) {
+            commands.addAll(getProofPlan(cv, spec, k, ids[k]).commands(nonce));
         }
         return commands;
     }
 
-    public static Proof processBuildProofResponses(CardVersion cv, ProtocolResponses responses, final ProofSpec spec) {
-        HashMap<String, SValue> sValues = new HashMap<String, SValue>();
-        TreeMap<String, BigInteger> commonList = new TreeMap<String, BigInteger>();
-
-        Predicate predicate = spec.getPredicates().firstElement();
-        if (predicate.getPredicateType() != PredicateType.CL) {
-            throw new RuntimeException("Unimplemented predicate.");
+    /**
+     * Process the responses to the commands of
+     * {@link #buildProofCommands(CardVersion, BigInteger, ProofSpec, short[])}.
+     *
+     * @param cv version of the card.
+     * @param responses returned by the card.
+     * @param spec Proof specification with only CL predicates
+     * @param ids id of the credential for every predicate
+     * @return the proof for every predicate, in order, to be verified with
+     *         {@link ProofVerifier#verify(ProofSpec, int, Proof, BigInteger)}.
+     */
+    public static List<Proof> processBuildProofResponses(CardVersion cv, ProtocolResponses responses, final ProofSpec spec, short[] ids) {
+        if (ids.length != spec.getPredicates().size()) {
+            throw new IllegalArgumentException("A credential is required for every predicate");
         }
-        CLPredicate pred = ((CLPredicate) predicate);
-        StructureStore store = StructureStore.getInstance();
-        CredentialStructure cred = (CredentialStructure) store.get(
-               pred.getCredStructLocation());
+        List<Proof> proofs = new ArrayList<Proof>(ids.length);
+        int offset = 0;
+        for (int k = 0; k < ids.length; k++) {
+            ProofPlan plan = getProofPlan(cv, spec, k, ids[k]);
+            proofs.add(plan.process(responses, offset));
+            offset += plan.size();
+        }
+        return proofs;
+    }
 
+    /**
+     * Assemble the proof for a CL predicate from the responses of the card,
+     * which are read from the slots starting at offset when they hold the
+     * commands of the proof, or by their keys with the suffix of the
+     * predicate otherwise.
+     */
+    static Proof processProofResponses(ProtocolResponses responses, int offset,
+            CLPredicate pred, CredentialStructure cred, String suffix) {
+        HashMap<String, SValue> sValues = new HashMap<String, SValue>();
+        TreeMap<String, BigInteger> commonList = new TreeMap<String, BigInteger>();
+        AttributeKeys keys = attributeKeys(cred);
+        IndexedResponses indexed = slots(responses, offset, keys.slots, suffix);
 
-        BigInteger challenge = new BigInteger(1, responses.get("challenge_c").getData());
+        BigInteger challenge = value(indexed, responses, offset + SLOT_PROOF_C, "challenge_c", suffix);
 
         commonList.put(pred.getTempCredName(),
-                        new BigInteger(1, responses.get("signature_A").getData()));
+                        value(indexed, responses, offset + SLOT_PROOF_A, "signature_A", suffix));
 
         sValues.put(pred.getTempCredName(),
                 new SValue(
                         new SValuesProveCL(
-                                new BigInteger(1, responses.get("signature_e").getData()),
-                                new BigInteger(1, responses.get("signature_v").getData())
+                                value(indexed, responses, offset + SLOT_PROOF_E, "signature_e", suffix),
+                                value(indexed, responses, offset + SLOT_PROOF_V, "signature_v", suffix)
                                 )));
 
         sValues.put(IssuanceSpec.MASTER_SECRET_NAME,
-                new SValue(new BigInteger(1, responses.get("master").getData())));
+                new SValue(value(indexed, responses, offset + SLOT_PROOF_MASTER, "master", suffix)));
 
+        int j = 0;
         for (AttributeStructure attribute : cred.getAttributeStructs()) {
-            String attName = attribute.getName();
-            Identifier identifier = pred.getIdentifier(attName);
+            Identifier identifier = pred.getIdentifier(attribute.getName());
             sValues.put(identifier.getName(),
-                    new SValue(new BigInteger(1, responses.get("attr_" + attName).getData())));
+                    new SValue(value(indexed, responses, offset + SLOT_PROOF_ATTRIBUTES + j,
+                            keys.keys[j], suffix)));
+            j++;
         }
 
         // Return the generated proof, based on the proof specification
@@ -921,7 +1320,7 @@ public class IdemixSmartcard {
     }
 
     public static ProtocolCommand selectCredentialCommand(CardVersion cv, short id) {
-        if (cv.newer(new CardVersion(0,7,2))) {
+        if (cv.supports(Feature.PROTOCOL_0_8)) {
             byte[] data = new byte[2];
             data[0] = (byte) (id >> 8);
             data[1] = (byte) (id & 0xff);
@@ -954,7 +1353,7 @@ public class IdemixSmartcard {
 
     public static ProtocolCommand removeCredentialCommand(CardVersion cv, short id) {
         byte[] empty = {};
-        if (cv.newer(new CardVersion(0,7,2))) {
+        if (cv.supports(Feature.PROTOCOL_0_8)) {
             return new ProtocolCommand(
                     "removecredential",
                     "Remove credential (id " + id + ")",
@@ -989,9 +1388,31 @@ public class IdemixSmartcard {
     }
 
     public static ProtocolCommands verifyCertificateCommands(CardVersion cv, Certificate cert) throws CertificateEncodingException {
+        return verifyCertificateCommands(cv, cert, false);
+    }
+
+    /**
+     * Get the APDU commands for verifying a certificate. If the card accepts
+     * extended length APDUs and the applet supports
+     * {@link Feature#EXTENDED_LENGTH_COMMANDS}, the certificate is sent in a
+     * single APDU, otherwise it is chained in chunks of 255 bytes.
+     *
+     * @param cert the certificate to be verified.
+     * @param extended whether the card accepts extended length APDUs.
+     * @return
+     */
+    public static ProtocolCommands verifyCertificateCommands(CardVersion cv, Certificate cert, boolean extended) throws CertificateEncodingException {
         ProtocolCommands commands = new ProtocolCommands();
-        if (!cv.older(new CardVersion(0,8))) {
+        if (cv.supports(Feature.CERTIFICATE_VERIFICATION)) {
             byte[] certBytes = cert.getEncoded();
+            if (extended && cv.supports(Feature.EXTENDED_LENGTH_COMMANDS)
+                    && certBytes.length <= MAX_EXTENDED_LENGTH) {
+                commands.add(new ProtocolCommand(
+                    "cert_0",
+                    "Verify certificate",
+                    new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_PSO, 0x00, 0xBE, certBytes)));
+                return commands;
+            }
             for (int offset = 0; offset < certBytes.length - 1; offset += 255) {
                 commands.add(new ProtocolCommand(
                     "cert_" + offset,
@@ -1006,16 +1427,20 @@ public class IdemixSmartcard {
     public static ProtocolCommands setCAKeyCommands(CardVersion cv, RSAPublicKey caKey) {
         ProtocolCommands commands = new ProtocolCommands();
 
-        if (!cv.older(new CardVersion(0,8))) {
+        if (cv.supports(Feature.CERTIFICATE_VERIFICATION)) {
+            byte[] data = new byte[2 * 128];
+            fixLength(caKey.getModulus(), 1024, data,
+                    fixLength(caKey.getPublicExponent(), 1024, data, 0));
+
             commands.add(new ProtocolCommand(
                     "caExp",
                     "Set CA public key exponent",
-                    new CommandAPDU(CLA_IRMACARD, INS_AUTHENTICATION_SECRET, 2, 0, fixLength(caKey.getPublicExponent(), 1024))));
+                    new CommandAPDU(CLA_IRMACARD, INS_AUTHENTICATION_SECRET, 2, 0, data, 0, 128)));
 
             commands.add(new ProtocolCommand(
                     "caMod",
                     "Set CA public key modulus",
-                    new CommandAPDU(CLA_IRMACARD, INS_AUTHENTICATION_SECRET, 3, 0, fixLength(caKey.getModulus(), 1024))));
+                    new CommandAPDU(CLA_IRMACARD, INS_AUTHENTICATION_SECRET, 3, 0, data, 128, 128)));
         }
 
         return commands;
@@ -0,0 +1,73 @@
+/**
+ * IndexedResponses.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import net.sourceforge.scuba.smartcards.ProtocolCommand;
+import net.sourceforge.scuba.smartcards.ProtocolResponse;
+import net.sourceforge.scuba.smartcards.ProtocolResponses;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+/**
+ * Responses to a batch of commands, which can also be read by the position
+ * of their command in the batch.
+ *
+ * <p>The command builders of {@link IdemixSmartcard} put every command at a
+ * fixed slot of the batch, so the matching processors read the responses
+ * from an array instead of building and hashing their keys. The responses
+ * are also available by key as usual, hence an instance can be used
+ * wherever {@link ProtocolResponses} are expected.
+ */
+public class IndexedResponses extends ProtocolResponses {
+
+    private static final long serialVersionUID = -2830474614786651320L;
+
+    private final ProtocolResponse[] slots;
+
+    /**
+     * Construct the responses to a batch of commands.
+     *
+     * @param commands the batch, in the order it was sent.
+     * @param rapdus the response to every command of the batch.
+     */
+    public IndexedResponses(ProtocolCommand[] commands, ResponseAPDU[] rapdus) {
+        if (commands.length != rapdus.length) {
+            throw new IllegalArgumentException("A response is required for every command");
+        }
+        slots = new ProtocolResponse[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            String key = commands[i].getKey();
+            slots[i] = new ProtocolResponse(key, rapdus[i]);
+            put(key, slots[i]);
+        }
+    }
+
+    /**
+     * @param slot the position of the command in the batch.
+     * @return the response to the command.
+     */
+    public ProtocolResponse get(int slot) {
+        return slots[slot];
+    }
+
+    /**
+     * @return the number of commands in the batch.
+     */
+    public int slots() {
+        return slots.length;
+    }
+}
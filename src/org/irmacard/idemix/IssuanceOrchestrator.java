@@ -0,0 +1,271 @@
+/**
+ * IssuanceOrchestrator.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import com.ibm.zurich.idmx.dm.Values;
+import com.ibm.zurich.idmx.issuance.IssuanceSpec;
+import com.ibm.zurich.idmx.issuance.Issuer;
+import com.ibm.zurich.idmx.issuance.Message;
+
+/**
+ * Issuance of a credential to a card, overlapping the work of the issuer
+ * with the communication with the card.
+ *
+ * <p>The issuance specification and the attributes take many APDUs to send,
+ * but the first message of the issuer does not depend on them. The
+ * orchestrator therefore starts the issuer on another thread before setting
+ * up the card, and only waits for it when the card needs its message. The
+ * latency of this phase becomes the maximum instead of the sum of the card
+ * setup and the issuer preparation:
+ * <pre>
+ *   card:    setIssuanceSpecification, setAttributes | round1 |        | round3
+ *   issuer:  round0 (and precomputation)             |        | round2 |
+ * </pre>
+ * The remaining rounds depend on each other and run in sequence.
+ *
+ * <p>Finding the prime e of the signature is the most expensive part of the
+ * work of the issuer that does not depend on the card. The Idemix
+ * {@link Issuer} does it in round 2, after the card has answered, so only a
+ * {@link PooledIssuer}, which takes e and v'' in round 0, moves it into the
+ * overlap with the card setup.
+ */
+public class IssuanceOrchestrator {
+
+    /**
+     * Issuer side of a single issuance.
+     */
+    public interface IssuerSession {
+        /**
+         * Start the issuance. This runs concurrently with the card setup,
+         * so it is the place for any work which does not depend on the
+         * recipient, such as loading keys or taking the values of the
+         * signature from a
+         * {@link org.irmacard.idemix.util.SignatureValuePool}.
+         *
+         * @return the first message for the recipient, or null on failure.
+         */
+        Message round0();
+
+        /**
+         * Compute the signature on the commitment of the recipient.
+         *
+         * @param msg the message from the recipient.
+         * @return the signature message for the recipient, or null on
+         *         failure.
+         */
+        Message round2(Message msg);
+    }
+
+    /**
+     * Time spent in the phases of an issuance, in nanoseconds.
+     */
+    public static class Timing {
+        private final long cardSetupNanos;
+        private final long issuerStartNanos;
+        private final long totalNanos;
+
+        Timing(long cardSetupNanos, long issuerStartNanos, long totalNanos) {
+            this.cardSetupNanos = cardSetupNanos;
+            this.issuerStartNanos = issuerStartNanos;
+            this.totalNanos = totalNanos;
+        }
+
+        /**
+         * @return the time to send the issuance specification and the
+         *         attributes to the card.
+         */
+        public long getCardSetupNanos() {
+            return cardSetupNanos;
+        }
+
+        /**
+         * @return the time the issuer needed for its first round, which
+         *         overlapped with the card setup.
+         */
+        public long getIssuerStartNanos() {
+            return issuerStartNanos;
+        }
+
+        /**
+         * @return the duration of the whole issuance.
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public String toString() {
+            return String.format("card setup %.2f ms, issuer start %.2f ms, total %.2f ms",
+                    cardSetupNanos / 1e6, issuerStartNanos / 1e6, totalNanos / 1e6);
+        }
+    }
+
+    private final Executor executor;
+
+    /**
+     * Construct a new orchestrator running the issuers on daemon threads of
+     * its own.
+     */
+    public IssuanceOrchestrator() {
+        this(newIssuerExecutor());
+    }
+
+    /**
+     * Construct a new orchestrator.
+     *
+     * @param executor to run the issuers on.
+     */
+    public IssuanceOrchestrator(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Adapt an Idemix issuer. Its round 0 only picks a nonce, so the
+     * overlap saves little; prefer {@link #session(PooledIssuer)}.
+     *
+     * @param issuer for a single issuance.
+     * @return the issuer session.
+     */
+    public static IssuerSession session(final Issuer issuer) {
+        return new IssuerSession() {
+            public Message round0() {
+                return issuer.round0();
+            }
+
+            public Message round2(Message msg) {
+                return issuer.round2(msg);
+            }
+        };
+    }
+
+    /**
+     * Adapt an issuer signing with pooled values. Round 0 takes the prime e
+     * and v'' from the pool while the card is set up, generating them on
+     * the issuer thread if the pool runs empty, so round 2 only
+     * exponentiates.
+     *
+     * @param issuer for a single issuance.
+     * @return the issuer session.
+     */
+    public static IssuerSession session(final PooledIssuer issuer) {
+        return new IssuerSession() {
+            public Message round0() {
+                return issuer.round0();
+            }
+
+            public Message round2(Message msg) {
+                return issuer.round2(msg);
+            }
+        };
+    }
+
+    /**
+     * Issue a credential to a card. The card must have been opened, and the
+     * credential PIN must have been verified.
+     *
+     * @param card to issue the credential to.
+     * @param spec the issuance specification.
+     * @param values the attributes of the credential.
+     * @param issuer the issuer side of this issuance.
+     * @return the time spent in the phases of the issuance.
+     * @throws CardServiceException if the communication with the card failed.
+     * @throws IllegalStateException if the issuer failed.
+     */
+    public Timing issue(IdemixService card, IssuanceSpec spec, Values values,
+            final IssuerSession issuer)
+    throws CardServiceException {
+        long start = System.nanoTime();
+        final long[] issuerNanos = new long[1];
+        FutureTask<Message> round0 = new FutureTask<Message>(new Callable<Message>() {
+            public Message call() {
+                long issuerStart = System.nanoTime();
+                Message msg = issuer.round0();
+                issuerNanos[0] = System.nanoTime() - issuerStart;
+                return msg;
+            }
+        });
+        executor.execute(round0);
+
+        long cardSetup;
+        try {
+            card.setIssuanceSpecification(spec);
+            card.setAttributes(spec, values);
+            cardSetup = System.nanoTime() - start;
+        } catch (CardServiceException e) {
+            round0.cancel(true);
+            throw e;
+        }
+
+        Message msg = card.executeRound1(checked(await(round0), 0));
+        msg = checked(issuer.round2(msg), 2);
+        card.executeRound3(msg);
+
+        return new Timing(cardSetup, issuerNanos[0], System.nanoTime() - start);
+    }
+
+    private static Message await(FutureTask<Message> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Issuer failed", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Message checked(Message msg, int round) {
+        if (msg == null) {
+            throw new IllegalStateException("Issuer failed in round " + round);
+        }
+        return msg;
+    }
+
+    private static ExecutorService newIssuerExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger issuers = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "issuer-" + issuers.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * LogSync.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.irmacard.idemix.util.LogWatermark;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+/**
+ * Incremental synchronisation of the transaction logs of cards.
+ *
+ * <p>For every card the newest log entry already ingested is remembered as a
+ * {@link LogWatermark}. A synchronisation only returns the entries which are
+ * newer and stops requesting log pages from the card once it reaches the
+ * watermark, so reading a card which has not been used since the previous
+ * synchronisation costs a single APDU.
+ *
+ * <p>The card cannot be identified from the log, hence the caller supplies
+ * a stable identifier for it.
+ */
+public class LogSync {
+
+    /**
+     * Storage of the watermarks of the synchronised cards.
+     */
+    public interface WatermarkStore {
+        /**
+         * @param cardId identifier of the card.
+         * @return the stored watermark, or null if there is none.
+         * @throws IOException if the store could not be read.
+         */
+        LogWatermark load(String cardId) throws IOException;
+
+        /**
+         * @param cardId identifier of the card.
+         * @param watermark the new watermark of the card.
+         * @throws IOException if the store could not be written.
+         */
+        void store(String cardId, LogWatermark watermark) throws IOException;
+    }
+
+    /**
+     * Store keeping the watermarks in memory.
+     */
+    public static class MemoryStore implements WatermarkStore {
+        private final ConcurrentMap<String, LogWatermark> watermarks =
+                new ConcurrentHashMap<String, LogWatermark>();
+
+        public LogWatermark load(String cardId) {
+            return watermarks.get(cardId);
+        }
+
+        public void store(String cardId, LogWatermark watermark) {
+            watermarks.put(cardId, watermark);
+        }
+    }
+
+    /**
+     * Store persisting the watermarks in a properties file, which is
+     * rewritten on every update.
+     */
+    public static class FileStore implements WatermarkStore {
+        private final File file;
+        private final Properties watermarks = new Properties();
+
+        /**
+         * Construct a store, loading the watermarks if the file exists.
+         *
+         * @param file to persist the watermarks in.
+         * @throws IOException if the existing file could not be read.
+         */
+        public FileStore(File file) throws IOException {
+            this.file = file;
+            if (file.exists()) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    watermarks.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        public synchronized LogWatermark load(String cardId) {
+            String hex = watermarks.getProperty(cardId);
+            return hex == null ? null : LogWatermark.fromHexString(hex);
+        }
+
+        public synchronized void store(String cardId, LogWatermark watermark)
+        throws IOException {
+            watermarks.setProperty(cardId, watermark.toHexString());
+
+            File tmp = new File(file.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                watermarks.store(out, "IRMA card log watermarks");
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Could not replace " + file);
+                }
+            }
+        }
+    }
+
+    private final WatermarkStore store;
+
+    /**
+     * Construct a new synchronisation keeping the watermarks in memory.
+     */
+    public LogSync() {
+        this(new MemoryStore());
+    }
+
+    /**
+     * Construct a new synchronisation.
+     *
+     * @param store for the watermarks of the cards.
+     */
+    public LogSync(WatermarkStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Get the log entries of a card which have not been ingested yet, and
+     * move its watermark to the newest of them.
+     *
+     * @param service connected to the card, the card PIN should have been
+     *        verified.
+     * @param cardId identifier of the card.
+     * @return the new log entries, newest first.
+     * @throws CardServiceException if the log could not be read.
+     * @throws IOException if the watermark could not be loaded or stored.
+     */
+    public List<IdemixLogEntry> sync(IdemixService service, String cardId)
+    throws CardServiceException, IOException {
+        LogWatermark since = store.load(cardId);
+        List<IdemixLogEntry> entries = service.getLogEntries(
+                since == null ? LogWatermark.NONE : since);
+
+        if (!entries.isEmpty()) {
+            store.store(cardId, new LogWatermark(entries.get(0)));
+        }
+        return entries;
+    }
+
+    /**
+     * Get the watermark of a card.
+     *
+     * @param cardId identifier of the card.
+     * @return the watermark, or {@link LogWatermark#NONE} if the card has not
+     *         been synchronised.
+     * @throws IOException if the watermark could not be loaded.
+     */
+    public LogWatermark getWatermark(String cardId) throws IOException {
+        LogWatermark watermark = store.load(cardId);
+        return watermark == null ? LogWatermark.NONE : watermark;
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * PooledIssuer.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import org.irmacard.idemix.util.SignatureValuePool;
+
+import com.ibm.zurich.idmx.dm.Values;
+import com.ibm.zurich.idmx.dm.structure.AttributeStructure;
+import com.ibm.zurich.idmx.issuance.IssuanceSpec;
+import com.ibm.zurich.idmx.issuance.Message;
+import com.ibm.zurich.idmx.issuance.Message.IssuanceProtocolValues;
+import com.ibm.zurich.idmx.key.IssuerKeyPair;
+import com.ibm.zurich.idmx.key.IssuerPublicKey;
+import com.ibm.zurich.idmx.showproof.Proof;
+import com.ibm.zurich.idmx.showproof.sval.SValue;
+import com.ibm.zurich.idmx.utils.SystemParameters;
+import com.ibm.zurich.idmx.utils.Utils;
+
+/**
+ * Issuer side of the issuance of a credential to a card, signing with the
+ * values of a {@link SignatureValuePool}.
+ *
+ * <p>The card only supports attributes known to the issuer and keeps the
+ * master secret hidden, so the commitment U of the card is
+ * S^v' * R_0^m_0. The issuer:
+ * <ol>
+ * <li>in {@link #round0()}, picks the nonce n1 and takes the prime e and
+ *     v'' of the signature from the pool;</li>
+ * <li>in {@link #round2(Message)}, verifies the proof of U, computes
+ *     A = (Z / (U * S^v'' * prod R_i^m_i))^(1/e) and proves that A is
+ *     correct.</li>
+ * </ol>
+ * The messages are those of the Idemix {@link com.ibm.zurich.idmx.issuance.Issuer},
+ * but round 2 no longer searches for a prime.
+ *
+ * <p>An instance serves a single issuance.
+ */
+public class PooledIssuer {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final IssuerKeyPair key;
+    private final IssuanceSpec spec;
+    private final Values values;
+    private final SignatureValuePool pool;
+
+    private BigInteger nonce;
+    private SignatureValuePool.Randomness signature;
+
+    /**
+     * Construct the issuer side of an issuance.
+     *
+     * @param key of the issuer, matching the public key of the spec.
+     * @param spec the issuance specification.
+     * @param values the attributes of the credential.
+     * @param pool to take the values of the signature from.
+     */
+    public PooledIssuer(IssuerKeyPair key, IssuanceSpec spec, Values values,
+            SignatureValuePool pool) {
+        this.key = key;
+        this.spec = spec;
+        this.values = values;
+        this.pool = pool;
+    }
+
+    /**
+     * Start the issuance.
+     *
+     * @return the message with the nonce n1 for the recipient.
+     */
+    public Message round0() {
+        SystemParameters sp = spec.getPublicKey().getGroupParams().getSystemParams();
+        signature = pool.take(sp);
+        nonce = new BigInteger(sp.getL_Phi(), random);
+
+        HashMap<IssuanceProtocolValues, BigInteger> issuanceProtocolValues =
+                new HashMap<IssuanceProtocolValues, BigInteger>();
+        issuanceProtocolValues.put(IssuanceProtocolValues.nonce, nonce);
+        return new Message(issuanceProtocolValues, null);
+    }
+
+    /**
+     * Sign the commitment of the recipient.
+     *
+     * @param msg the message from the recipient, as returned by
+     *        {@link IdemixSmartcard#processRound1Responses}.
+     * @return the signature message for the recipient, or null if the
+     *         proof of the commitment is invalid.
+     */
+    public Message round2(Message msg) {
+        if (nonce == null) {
+            throw new IllegalStateException("Round 0 has not been run");
+        }
+        IssuerPublicKey pk = spec.getPublicKey();
+        SystemParameters sp = pk.getGroupParams().getSystemParams();
+        BigInteger n = pk.getN();
+        BigInteger capS = pk.getCapS();
+        BigInteger[] capR = pk.getCapR();
+
+        // Verify the proof of U
+        BigInteger capU = msg.getIssuanceElement(IssuanceProtocolValues.capU);
+        Proof proof = msg.getProof();
+        BigInteger c = proof.getChallenge();
+        BigInteger vHatPrime = proof.getCommonValue(IssuanceSpec.vHatPrime);
+        BigInteger mHat = (BigInteger) proof.getSValue(IssuanceSpec.MASTER_SECRET_NAME).getValue();
+        if (vHatPrime.abs().bitLength() > sp.getL_n() + 2 * sp.getL_Phi() + sp.getL_H() + 1
+                || mHat.abs().bitLength() > sp.getL_m() + sp.getL_Phi() + sp.getL_H() + 1) {
+            return null;
+        }
+        BigInteger capUHat = capU.modPow(c, n).modInverse(n)
+                .multiply(capS.modPow(vHatPrime, n))
+                .multiply(capR[0].modPow(mHat, n)).mod(n);
+        Vector<BigInteger> list = new Vector<BigInteger>();
+        list.add(spec.getContext());
+        list.add(capU);
+        list.add(capUHat);
+        list.add(nonce);
+        if (!c.equals(Utils.computeHash(list, sp.getL_H()))) {
+            return null;
+        }
+
+        // Sign U and the attributes
+        BigInteger e = signature.getE();
+        BigInteger vPrimePrime = signature.getVPrimePrime();
+        BigInteger order = key.getPrivateKey().getPPrime().multiply(
+                key.getPrivateKey().getQPrime());
+        BigInteger eInverse = e.modInverse(order);
+
+        BigInteger capQ = capU.multiply(capS.modPow(vPrimePrime, n)).mod(n);
+        for (AttributeStructure attribute : spec.getCredentialStructure().getAttributeStructs()) {
+            BigInteger m = (BigInteger) values.get(attribute.getName()).getContent();
+            capQ = capQ.multiply(capR[attribute.getKeyIndex()].modPow(m, n)).mod(n);
+        }
+        capQ = pk.getCapZ().multiply(capQ.modInverse(n)).mod(n);
+        BigInteger capA = capQ.modPow(eInverse, n);
+
+        // Prove that A is correct: c' = H(context, Q, A, n2, Q^r)
+        BigInteger r = new BigInteger(order.bitLength() + sp.getL_Phi(), random).mod(order);
+        list = new Vector<BigInteger>();
+        list.add(spec.getContext());
+        list.add(capQ);
+        list.add(capA);
+        list.add(msg.getIssuanceElement(IssuanceProtocolValues.nonce));
+        list.add(capQ.modPow(r, n));
+        BigInteger cPrime = Utils.computeHash(list, sp.getL_H());
+        BigInteger s_e = r.subtract(cPrime.multiply(eInverse)).mod(order);
+
+        HashMap<IssuanceProtocolValues, BigInteger> issuanceProtocolValues =
+                new HashMap<IssuanceProtocolValues, BigInteger>();
+        issuanceProtocolValues.put(IssuanceProtocolValues.capA, capA);
+        issuanceProtocolValues.put(IssuanceProtocolValues.e, e);
+        issuanceProtocolValues.put(IssuanceProtocolValues.vPrimePrime, vPrimePrime);
+        HashMap<String, SValue> sValues = new HashMap<String, SValue>();
+        sValues.put(IssuanceSpec.s_e, new SValue(s_e));
+        return new Message(issuanceProtocolValues,
+                new Proof(cPrime, sValues, new TreeMap<String, BigInteger>()));
+    }
+}
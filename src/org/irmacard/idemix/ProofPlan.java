@@ -0,0 +1,243 @@
+/**
+ * ProofPlan.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import java.math.BigInteger;
+
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.CardVersion.Feature;
+
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ProtocolCommand;
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+import net.sourceforge.scuba.smartcards.ProtocolResponses;
+
+import com.ibm.zurich.idmx.dm.structure.AttributeStructure;
+import com.ibm.zurich.idmx.dm.structure.CredentialStructure;
+import com.ibm.zurich.idmx.showproof.Identifier;
+import com.ibm.zurich.idmx.showproof.Proof;
+import com.ibm.zurich.idmx.showproof.ProofSpec;
+import com.ibm.zurich.idmx.showproof.predicates.CLPredicate;
+import com.ibm.zurich.idmx.showproof.predicates.Predicate;
+import com.ibm.zurich.idmx.showproof.predicates.Predicate.PredicateType;
+import com.ibm.zurich.idmx.utils.StructureStore;
+
+/**
+ * The commands to build a proof, compiled for a proof specification, a
+ * credential and a card.
+ *
+ * <p>Of the commands of a proof only two depend on the proof itself: the
+ * start of the proof carries a timestamp and the challenge carries the
+ * nonce. The plan resolves the credential structure, computes the
+ * disclosure mask and encodes all other commands once, so building the
+ * commands for a proof only copies the start data and encodes the nonce.
+ * The commands keep the slots expected by
+ * {@link IdemixSmartcard#processBuildProofResponses}.
+ *
+ * <p>A plan compiles one CL predicate of the specification. The plans of
+ * the predicates after the first use keys ending in "#" and the index of
+ * the predicate, so the commands of several plans can be sent in one batch.
+ *
+ * <p>Plans are cached by {@link IdemixSmartcard#getProofPlan}. A plan is
+ * immutable and may be shared between threads.
+ */
+public class ProofPlan {
+
+    private final ProofSpec spec;
+    private final int predicate;
+    private final short id;
+    private final CLPredicate pred;
+    private final CredentialStructure cred;
+    private final String suffix;
+    private final boolean protocol08;
+    private final short disclosure;
+    private final int l_Phi;
+
+    /**
+     * Data of the start command, with room for the timestamp at the end.
+     */
+    private final byte[] startData;
+
+    /**
+     * The commands following the challenge.
+     */
+    private final ProtocolCommand[] values;
+
+    /**
+     * Compile the plan for a proof.
+     *
+     * @param cv version of the card.
+     * @param spec the proof specification.
+     * @param id of the credential.
+     */
+    ProofPlan(CardVersion cv, ProofSpec spec, short id) {
+        this(cv, spec, 0, id);
+    }
+
+    /**
+     * Compile the plan for one of the predicates of a proof.
+     *
+     * @param cv version of the card.
+     * @param spec the proof specification.
+     * @param predicate index of the CL predicate in the specification.
+     * @param id of the credential.
+     */
+    ProofPlan(CardVersion cv, ProofSpec spec, int predicate, short id) {
+        this.spec = spec;
+        this.predicate = predicate;
+        this.id = id;
+        this.protocol08 = cv.supports(Feature.PROTOCOL_0_8);
+        this.l_Phi = spec.getGroupParams().getSystemParams().getL_Phi();
+        this.suffix = predicate == 0 ? "" : "#" + predicate;
+
+        Predicate p = spec.getPredicates().get(predicate);
+        if (p.getPredicateType() != PredicateType.CL) {
+            throw new RuntimeException("Unimplemented predicate.");
+        }
+        pred = ((CLPredicate) p);
+        cred = (CredentialStructure)
+                StructureStore.getInstance().get(pred.getCredStructLocation());
+
+        // Determine the disclosure selection bitmask
+        short D = 0;
+        for (AttributeStructure attribute : cred.getAttributeStructs()) {
+            Identifier identifier = pred.getIdentifier(attribute.getName());
+            if (identifier.isRevealed()) {
+                D |= 1 << attribute.getKeyIndex();
+            }
+        }
+        this.disclosure = D;
+        this.startData = IdemixSmartcard.startProofData(cv, spec, id, D);
+
+        IdemixSmartcard.AttributeKeys keys = IdemixSmartcard.attributeKeys(cred);
+        values = new ProtocolCommand[IdemixSmartcard.SLOT_PROOF_ATTRIBUTES - 2 + keys.keys.length];
+        int v = 0;
+        values[v++] = new ProtocolCommand(
+                "signature_A" + suffix,
+                "Get random signature A",
+                new CommandAPDU(IdemixSmartcard.CLA_IRMACARD, IdemixSmartcard.INS_PROVE_SIGNATURE,
+                        IdemixSmartcard.P1_SIGNATURE_A, 0x00));
+        values[v++] = new ProtocolCommand(
+                "signature_e" + suffix,
+                "Get random signature e^",
+                new CommandAPDU(IdemixSmartcard.CLA_IRMACARD, IdemixSmartcard.INS_PROVE_SIGNATURE,
+                        IdemixSmartcard.P1_SIGNATURE_E, 0x00));
+        values[v++] = new ProtocolCommand(
+                "signature_v" + suffix,
+                "Get random signature v^",
+                new CommandAPDU(IdemixSmartcard.CLA_IRMACARD, IdemixSmartcard.INS_PROVE_SIGNATURE,
+                        IdemixSmartcard.P1_SIGNATURE_V, 0x00));
+        values[v++] = new ProtocolCommand(
+                "master" + suffix,
+                "Get random value (@index 0).",
+                new CommandAPDU(IdemixSmartcard.CLA_IRMACARD, IdemixSmartcard.INS_PROVE_ATTRIBUTE,
+                        0x00, 0x00));
+
+        // iterate over all the identifiers
+        int j = 0;
+        for (AttributeStructure attribute : cred.getAttributeStructs()) {
+            Identifier identifier = pred.getIdentifier(attribute.getName());
+            int i = attribute.getKeyIndex();
+            values[v++] = new ProtocolCommand(
+                    keys.keys[j] + suffix,
+                    identifier.isRevealed() ? keys.revealed[j] : keys.hidden[j],
+                    new CommandAPDU(IdemixSmartcard.CLA_IRMACARD, IdemixSmartcard.INS_PROVE_ATTRIBUTE,
+                            i, 0x00));
+            j++;
+        }
+    }
+
+    /**
+     * Build the commands for a proof.
+     *
+     * @param nonce from the verifier.
+     * @return the commands, to be processed by
+     *         {@link IdemixSmartcard#processBuildProofResponses}.
+     */
+    public ProtocolCommands commands(BigInteger nonce) {
+        byte[] data = new byte[(l_Phi + 7) / 8];
+        IdemixSmartcard.fixLength(nonce, l_Phi, data, 0);
+
+        ProtocolCommands commands = new ProtocolCommands();
+        commands.add(IdemixSmartcard.startProofCommand(startData, "startprove" + suffix));
+        commands.add(
+                new ProtocolCommand(
+                        "challenge_c" + suffix,
+                        "Send challenge n1",
+                        new CommandAPDU(IdemixSmartcard.CLA_IRMACARD,
+                                IdemixSmartcard.INS_PROVE_COMMITMENT, 0x00, 0x00,
+                                data)));
+        for (ProtocolCommand command : values) {
+            commands.add(command);
+        }
+        return commands;
+    }
+
+    /**
+     * Assemble the proof from the responses to the commands of this plan.
+     *
+     * @param responses returned by the card.
+     * @param offset position of the start command of this plan in the batch.
+     * @return the proof for the predicate of this plan.
+     */
+    public Proof process(ProtocolResponses responses, int offset) {
+        return IdemixSmartcard.processProofResponses(responses, offset, pred, cred, suffix);
+    }
+
+    /**
+     * @return the proof specification.
+     */
+    public ProofSpec getSpec() {
+        return spec;
+    }
+
+    /**
+     * @return the index of the predicate in the proof specification.
+     */
+    public int getPredicate() {
+        return predicate;
+    }
+
+    /**
+     * @return the id of the credential.
+     */
+    public short getCredentialId() {
+        return id;
+    }
+
+    /**
+     * @return whether the plan uses the command encoding of the 0.8 series.
+     */
+    public boolean isProtocol08() {
+        return protocol08;
+    }
+
+    /**
+     * @return the mask of the disclosed attributes.
+     */
+    public short getDisclosure() {
+        return disclosure;
+    }
+
+    /**
+     * @return the number of commands of a proof.
+     */
+    public int size() {
+        return 2 + values.length;
+    }
+}
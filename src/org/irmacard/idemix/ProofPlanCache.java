@@ -0,0 +1,126 @@
+/**
+ * ProofPlanCache.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.CardVersion.Feature;
+import org.irmacard.idemix.util.LruCache;
+
+import com.ibm.zurich.idmx.showproof.ProofSpec;
+
+/**
+ * Bounded cache of compiled proof plans.
+ *
+ * <p>Entries are keyed by the identity of the {@link ProofSpec}, the index
+ * of the predicate, the id of the credential and whether the card uses the
+ * command encoding of the 0.8 series, which is the only capability of the
+ * card affecting the commands of a proof. When the cache is full, the least
+ * recently used entry is evicted.
+ */
+public class ProofPlanCache extends LruCache<ProofPlanCache.Key, ProofPlan> {
+
+    /**
+     * Default maximum number of cached plans.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Construct a new cache holding at most {@link #DEFAULT_CAPACITY} plans.
+     */
+    public ProofPlanCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct a new cache.
+     *
+     * @param capacity the maximum number of cached plans.
+     */
+    public ProofPlanCache(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * Get the plan for a proof, compiling it if it is not cached.
+     *
+     * @param cv version of the card.
+     * @param spec the proof specification.
+     * @param id of the credential.
+     * @return the plan.
+     */
+    public ProofPlan get(CardVersion cv, ProofSpec spec, short id) {
+        return get(cv, spec, 0, id);
+    }
+
+    /**
+     * Get the plan for one of the predicates of a proof, compiling it if it
+     * is not cached.
+     *
+     * @param cv version of the card.
+     * @param spec the proof specification.
+     * @param predicate index of the CL predicate in the specification.
+     * @param id of the credential.
+     * @return the plan.
+     */
+    public ProofPlan get(CardVersion cv, ProofSpec spec, int predicate, short id) {
+        Key key = new Key(spec, predicate, id, cv.supports(Feature.PROTOCOL_0_8));
+        ProofPlan plan = get(key);
+        if (plan != null) {
+            return plan;
+        }
+
+        // Compile outside the lock, a concurrent miss compiles the same plan
+        plan = new ProofPlan(cv, spec, predicate, id);
+        put(key, plan);
+        return plan;
+    }
+
+    /**
+     * Cache key, comparing the proof specification by identity.
+     */
+    static final class Key {
+        private final ProofSpec spec;
+        private final int predicate;
+        private final short id;
+        private final boolean protocol08;
+
+        Key(ProofSpec spec, int predicate, short id, boolean protocol08) {
+            this.spec = spec;
+            this.predicate = predicate;
+            this.id = id;
+            this.protocol08 = protocol08;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return spec == k.spec && predicate == k.predicate && id == k.id
+                    && protocol08 == k.protocol08;
+        }
+
+        public int hashCode() {
+            int hash = System.identityHashCode(spec);
+            hash = 31 * hash + predicate;
+            hash = 31 * hash + id;
+            hash = 31 * hash + (protocol08 ? 1 : 0);
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * ProofVerifier.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.irmacard.idemix.util.FixedBaseTable;
+
+import com.ibm.zurich.idmx.dm.structure.AttributeStructure;
+import com.ibm.zurich.idmx.dm.structure.CredentialStructure;
+import com.ibm.zurich.idmx.issuance.IssuanceSpec;
+import com.ibm.zurich.idmx.key.IssuerPublicKey;
+import com.ibm.zurich.idmx.showproof.Identifier;
+import com.ibm.zurich.idmx.showproof.Proof;
+import com.ibm.zurich.idmx.showproof.ProofSpec;
+import com.ibm.zurich.idmx.showproof.Verifier;
+import com.ibm.zurich.idmx.showproof.predicates.CLPredicate;
+import com.ibm.zurich.idmx.showproof.predicates.Predicate;
+import com.ibm.zurich.idmx.showproof.predicates.Predicate.PredicateType;
+import com.ibm.zurich.idmx.showproof.sval.SValuesProveCL;
+import com.ibm.zurich.idmx.utils.StructureStore;
+import com.ibm.zurich.idmx.utils.SystemParameters;
+import com.ibm.zurich.idmx.utils.Utils;
+
+/**
+ * Verifier for the proofs built by the card, using precomputed tables for
+ * the bases of the issuer public key.
+ *
+ * <p>A card proof is a single CL predicate. Verifying it recomputes
+ * <pre>
+ *   T = Z^-c * A'^(e^ + c * 2^(l_e - 1)) * S^v^ * prod_hidden R_i^m^_i
+ *       * prod_revealed R_i^(c * m_i)
+ * </pre>
+ * and checks that hashing it with the context, A' and the nonce yields the
+ * challenge c. All bases but A' are part of the issuer public key, so for
+ * every key a {@link FixedBaseTable} is built once per base and kept as long
+ * as the key is loaded; the product is then a single multi-exponentiation.
+ *
+ * <p>A proof is accepted when its responses e^ and m^_i are within the
+ * bounds of the Idemix specification and the recomputed challenge matches.
+ * Any other proof, and any proof specification with other predicates, is
+ * passed to the Idemix {@link Verifier}, so the tables only ever speed up
+ * the common case.
+ *
+ * <p>The proofs built in a single session for a specification with several
+ * CL predicates hold one predicate each, which the Idemix verifier cannot
+ * check. They are verified one by one against their own predicate with
+ * {@link #verify(ProofSpec, int, Proof, BigInteger)}.
+ */
+public class ProofVerifier {
+
+    /**
+     * Tables for the bases of an issuer public key.
+     */
+    private static final class KeyTables {
+        final SystemParameters sp;
+        final BigInteger n;
+        final FixedBaseTable[] bases;
+
+        // bases[0] = Z, bases[1] = S, bases[2 + i] = R_i
+        KeyTables(IssuerPublicKey pk) {
+            sp = pk.getGroupParams().getSystemParams();
+            n = pk.getN();
+            int l_H = sp.getL_H();
+            int l_s = sp.getL_m() + sp.getL_Phi() + l_H + 2;
+            BigInteger[] capR = pk.getCapR();
+
+            bases = new FixedBaseTable[2 + capR.length];
+            bases[0] = new FixedBaseTable(pk.getCapZ(), n, l_H);
+            bases[1] = new FixedBaseTable(pk.getCapS(), n, sp.getL_v() + sp.getL_Phi() + l_H + 2);
+            for (int i = 0; i < capR.length; i++) {
+                bases[2 + i] = new FixedBaseTable(capR[i], n, Math.max(l_s, sp.getL_m() + l_H));
+            }
+        }
+    }
+
+    private final Map<IssuerPublicKey, KeyTables> tables =
+            new WeakHashMap<IssuerPublicKey, KeyTables>();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong delegated = new AtomicLong();
+
+    /**
+     * Verify a proof.
+     *
+     * @param spec the proof specification.
+     * @param proof the proof, as returned by
+     *        {@link IdemixSmartcard#processBuildProofResponses}.
+     * @param nonce the nonce sent to the card.
+     * @return whether the proof is valid.
+     */
+    public boolean verify(ProofSpec spec, Proof proof, BigInteger nonce) {
+        BigInteger challenge = computeChallenge(spec, proof, nonce);
+        if (challenge != null && challenge.equals(proof.getChallenge())
+                && checkLengths(spec, proof)) {
+            accepted.incrementAndGet();
+            return true;
+        }
+        delegated.incrementAndGet();
+        return new Verifier(spec, proof, nonce).verify();
+    }
+
+    /**
+     * Verify the proof for one of the predicates of a specification, as
+     * returned by
+     * {@link IdemixSmartcard#processBuildProofResponses(org.irmacard.idemix.util.CardVersion,
+     * net.sourceforge.scuba.smartcards.ProtocolResponses, ProofSpec, short[])}.
+     * The proofs of the other predicates are independent of it, so a valid
+     * proof for every predicate does not show that the credentials are held
+     * by one card.
+     *
+     * @param spec the proof specification.
+     * @param predicate index of the CL predicate in the specification.
+     * @param proof the proof for that predicate.
+     * @param nonce the nonce sent to the card.
+     * @return whether the proof is valid, false if the predicate is not a
+     *         CL predicate or the proof is for another predicate.
+     */
+    public boolean verify(ProofSpec spec, int predicate, Proof proof, BigInteger nonce) {
+        CLPredicate pred = predicate(spec, predicate);
+        if (pred == null || proof.getCommonValue(pred.getTempCredName()) == null) {
+            return false;
+        }
+        if (!computeChallenge(spec, pred, proof, nonce).equals(proof.getChallenge())
+                || !checkLengths(spec, pred, proof)) {
+            return false;
+        }
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Recompute the challenge of a card proof with the tables of the issuer
+     * public key.
+     *
+     * @param spec the proof specification.
+     * @param proof the proof.
+     * @param nonce the nonce sent to the card.
+     * @return the challenge, or null if the specification is not a single
+     *         CL predicate.
+     */
+    public BigInteger computeChallenge(ProofSpec spec, Proof proof, BigInteger nonce) {
+        CLPredicate pred = predicate(spec);
+        if (pred == null) {
+            return null;
+        }
+        return computeChallenge(spec, pred, proof, nonce);
+    }
+
+    private BigInteger computeChallenge(ProofSpec spec, CLPredicate pred, Proof proof,
+            BigInteger nonce) {
+        StructureStore store = StructureStore.getInstance();
+        IssuerPublicKey pk = (IssuerPublicKey) store.get(pred.getIssuerPublicKeyId());
+        CredentialStructure cred = (CredentialStructure) store.get(pred.getCredStructLocation());
+        KeyTables t = tables(pk);
+        int attributes = cred.getAttributeStructs().size();
+
+        BigInteger c = proof.getChallenge();
+        BigInteger capAPrime = proof.getCommonValue(pred.getTempCredName());
+        SValuesProveCL cl = (SValuesProveCL) proof.getSValue(pred.getTempCredName()).getValue();
+
+        FixedBaseTable[] bases = new FixedBaseTable[3 + attributes];
+        BigInteger[] exponents = new BigInteger[3 + attributes];
+        bases[0] = t.bases[0];
+        exponents[0] = c.negate();
+        bases[1] = t.bases[1];
+        exponents[1] = cl.getVHat();
+        bases[2] = t.bases[2];
+        exponents[2] = (BigInteger) proof.getSValue(IssuanceSpec.MASTER_SECRET_NAME).getValue();
+
+        int i = 3;
+        for (AttributeStructure attribute : cred.getAttributeStructs()) {
+            Identifier identifier = pred.getIdentifier(attribute.getName());
+            BigInteger value = (BigInteger) proof.getSValue(identifier.getName()).getValue();
+            bases[i] = t.bases[2 + attribute.getKeyIndex()];
+            exponents[i++] = identifier.isRevealed() ? c.multiply(value) : value;
+        }
+
+        BigInteger capT = FixedBaseTable.product(bases, exponents);
+        BigInteger eExponent = cl.getEHat().add(c.shiftLeft(t.sp.getL_e() - 1));
+        capT = capT.multiply(capAPrime.modPow(eExponent, t.n)).mod(t.n);
+
+        Vector<BigInteger> list = new Vector<BigInteger>();
+        list.add(spec.getContext());
+        list.add(capAPrime);
+        list.add(capT);
+        list.add(nonce);
+        return Utils.computeHash(list, t.sp.getL_H());
+    }
+
+    /**
+     * Check the lengths of the responses of a card proof:
+     * e^ in &plusmn;{0,1}^(l'_e + l_Phi + l_H + 1) and, for the master
+     * secret and the hidden attributes, m^_i in
+     * &plusmn;{0,1}^(l_m + l_Phi + l_H + 1).
+     *
+     * @param spec the proof specification.
+     * @param proof the proof.
+     * @return whether all responses are within their bounds, false if the
+     *         specification is not a single CL predicate.
+     */
+    public static boolean checkLengths(ProofSpec spec, Proof proof) {
+        CLPredicate pred = predicate(spec);
+        if (pred == null) {
+            return false;
+        }
+        return checkLengths(spec, pred, proof);
+    }
+
+    private static boolean checkLengths(ProofSpec spec, CLPredicate pred, Proof proof) {
+        SystemParameters sp = spec.getGroupParams().getSystemParams();
+        int l_eHat = sp.getL_ePrime() + sp.getL_Phi() + sp.getL_H() + 1;
+        int l_mHat = sp.getL_m() + sp.getL_Phi() + sp.getL_H() + 1;
+
+        SValuesProveCL cl = (SValuesProveCL) proof.getSValue(pred.getTempCredName()).getValue();
+        if (cl.getEHat().abs().bitLength() > l_eHat) {
+            return false;
+        }
+        BigInteger master = (BigInteger) proof.getSValue(IssuanceSpec.MASTER_SECRET_NAME).getValue();
+        if (master.abs().bitLength() > l_mHat) {
+            return false;
+        }
+        CredentialStructure cred = (CredentialStructure) StructureStore.getInstance().get(
+                pred.getCredStructLocation());
+        for (AttributeStructure attribute : cred.getAttributeStructs()) {
+            Identifier identifier = pred.getIdentifier(attribute.getName());
+            BigInteger value = (BigInteger) proof.getSValue(identifier.getName()).getValue();
+            if (!identifier.isRevealed() && value.abs().bitLength() > l_mHat) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the attribute values revealed by a card proof.
+     *
+     * @param spec the proof specification.
+     * @param proof the proof.
+     * @return the revealed values by identifier name.
+     */
+    public static HashMap<String, BigInteger> getRevealedValues(ProofSpec spec, Proof proof) {
+        HashMap<String, BigInteger> values = new HashMap<String, BigInteger>();
+        CLPredicate pred = predicate(spec);
+        if (pred == null) {
+            return values;
+        }
+        CredentialStructure cred = (CredentialStructure) StructureStore.getInstance().get(
+                pred.getCredStructLocation());
+        for (AttributeStructure attribute : cred.getAttributeStructs()) {
+            Identifier identifier = pred.getIdentifier(attribute.getName());
+            if (identifier.isRevealed()) {
+                values.put(identifier.getName(),
+                        (BigInteger) proof.getSValue(identifier.getName()).getValue());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the number of proofs accepted using the tables.
+     */
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    /**
+     * @return the number of proofs passed to the Idemix verifier.
+     */
+    public long getDelegated() {
+        return delegated.get();
+    }
+
+    /**
+     * @return the number of issuer public keys with tables.
+     */
+    public synchronized int getKeys() {
+        return tables.size();
+    }
+
+    private synchronized KeyTables tables(IssuerPublicKey pk) {
+        KeyTables t = tables.get(pk);
+        if (t == null) {
+            t = new KeyTables(pk);
+            tables.put(pk, t);
+        }
+        return t;
+    }
+
+    private static CLPredicate predicate(ProofSpec spec) {
+        if (spec.getPredicates().size() != 1) {
+            return null;
+        }
+        return predicate(spec, 0);
+    }
+
+    private static CLPredicate predicate(ProofSpec spec, int index) {
+        if (index < 0 || index >= spec.getPredicates().size()) {
+            return null;
+        }
+        Predicate predicate = spec.getPredicates().get(index);
+        if (predicate.getPredicateType() != PredicateType.CL) {
+            return null;
+        }
+        return (CLPredicate) predicate;
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * ProtocolExecutor.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import org.irmacard.idemix.util.ApduTrace;
+import org.irmacard.idemix.util.CommandMetrics;
+
+import net.sourceforge.scuba.smartcards.CardService;
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ProtocolCommand;
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+import net.sourceforge.scuba.smartcards.ProtocolResponse;
+import net.sourceforge.scuba.smartcards.ProtocolResponses;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+/**
+ * Execution of a batch of protocol commands, one after the other, with
+ * timing.
+ *
+ * <p>The commands are sent in order and the batch stops at the first one
+ * failing. The responses are returned as {@link IndexedResponses}, and the
+ * timing of the last batch is kept for inspection. Every round trip is
+ * timed once, the measurement is passed to both the {@link ApduTrace} and
+ * the {@link CommandMetrics}.
+ */
+public class ProtocolExecutor {
+
+    /**
+     * Status word signalling successful execution of a command.
+     */
+    private static final int SW_NO_ERROR = 0x00009000;
+
+    /**
+     * Service used to transmit the APDUs to the card.
+     */
+    private final CardService service;
+
+    /**
+     * Timing of the most recently executed batch.
+     */
+    private volatile Timing lastTiming = null;
+
+    /**
+     * Metrics to record the command latencies in, null to use the default.
+     */
+    private volatile CommandMetrics metrics = null;
+
+    /**
+     * Trace to record the exchanged APDUs in, null to use the default.
+     */
+    private volatile ApduTrace trace = null;
+
+    /**
+     * Construct a new executor transmitting its commands over some service.
+     *
+     * @param service the service to use for communication with the applet.
+     */
+    public ProtocolExecutor(CardService service) {
+        this.service = service;
+    }
+
+    /**
+     * Execute a protocol command on the smart card.
+     *
+     * @param command to be executed on the card.
+     * @return the response received from the card.
+     * @throws CardServiceException if an error occurred.
+     */
+    public ProtocolResponse execute(ProtocolCommand command)
+    throws CardServiceException {
+        CommandAPDU capdu = command.getAPDU();
+
+        ApduTrace trace = getTrace();
+        trace.command(capdu);
+        long sent = System.nanoTime();
+        ResponseAPDU rapdu = service.transmit(capdu);
+        long duration = System.nanoTime() - sent;
+        trace.response(rapdu, duration);
+        getMetrics().record(command.getKey(), capdu.getINS(), duration,
+                rapdu.getSW());
+
+        if (rapdu.getSW() != SW_NO_ERROR) {
+            throw failure(command, rapdu);
+        }
+
+        return new ProtocolResponse(command.getKey(), rapdu);
+    }
+
+    /**
+     * Execute a list of protocol commands on the smart card.
+     *
+     * @param commands to be executed on the card.
+     * @return the responses received from the card, which can also be read
+     *         by the position of their command.
+     * @throws CardServiceException if an error occurred.
+     */
+    public ProtocolResponses execute(ProtocolCommands commands)
+    throws CardServiceException {
+        long start = System.nanoTime();
+        int count = commands.size();
+
+        // Collect the whole batch before talking to the card
+        ProtocolCommand[] batch = new ProtocolCommand[count];
+        CommandAPDU[] capdus = new CommandAPDU[count];
+        int i = 0;
+        for (ProtocolCommand command : commands) {
+            batch[i] = command;
+            capdus[i] = command.getAPDU();
+            i++;
+        }
+
+        // Send the batch
+        CommandMetrics metrics = getMetrics();
+        ApduTrace trace = getTrace();
+        ResponseAPDU[] rapdus = new ResponseAPDU[count];
+        long card = 0;
+        for (i = 0; i < count; i++) {
+            trace.command(capdus[i]);
+            long sent = System.nanoTime();
+            ResponseAPDU rapdu = service.transmit(capdus[i]);
+            long duration = System.nanoTime() - sent;
+            trace.response(rapdu, duration);
+            card += duration;
+            metrics.record(batch[i].getKey(), capdus[i].getINS(), duration,
+                    rapdu.getSW());
+
+            if (rapdu.getSW() != SW_NO_ERROR) {
+                lastTiming = new Timing(i + 1, card, System.nanoTime() - start);
+                // don't bother with the rest of the commands...
+                throw failure(batch[i], rapdu);
+            }
+            rapdus[i] = rapdu;
+        }
+
+        ProtocolResponses responses = new IndexedResponses(batch, rapdus);
+
+        lastTiming = new Timing(count, card, System.nanoTime() - start);
+        return responses;
+    }
+
+    /**
+     * Get the timing of the most recently executed batch.
+     *
+     * @return the timing, or null if no batch has been executed yet.
+     */
+    public Timing getLastTiming() {
+        return lastTiming;
+    }
+
+    /**
+     * Get the metrics in which the command latencies are recorded.
+     *
+     * @return the metrics set for this executor, or the default metrics.
+     */
+    public CommandMetrics getMetrics() {
+        CommandMetrics m = metrics;
+        return m != null ? m : CommandMetrics.getDefault();
+    }
+
+    /**
+     * Set the metrics in which the command latencies are recorded.
+     *
+     * @param metrics to use, or null to use the default metrics.
+     */
+    public void setMetrics(CommandMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the trace in which the exchanged APDUs are recorded.
+     *
+     * @return the trace set for this executor, or the default trace.
+     */
+    public ApduTrace getTrace() {
+        ApduTrace t = trace;
+        return t != null ? t : ApduTrace.getDefault();
+    }
+
+    /**
+     * Set the trace in which the exchanged APDUs are recorded.
+     *
+     * @param trace to use, or null to use the default trace.
+     */
+    public void setTrace(ApduTrace trace) {
+        this.trace = trace;
+    }
+
+    private static CardServiceException failure(ProtocolCommand command,
+            ResponseAPDU rapdu) {
+        return new CardServiceException(String.format(
+                "Command failed: \"%s\", SW: %04x (%s)",
+                command.getDescription(), rapdu.getSW(),
+                command.getErrorMessage(rapdu.getSW())),
+                rapdu.getSW());
+    }
+
+    /**
+     * Timing of the execution of a single batch of commands.
+     */
+    public static class Timing {
+
+        private final int commands;
+        private final long cardNanos;
+        private final long totalNanos;
+
+        Timing(int commands, long cardNanos, long totalNanos) {
+            this.commands = commands;
+            this.cardNanos = cardNanos;
+            this.totalNanos = totalNanos;
+        }
+
+        /**
+         * @return the number of commands sent to the card.
+         */
+        public int getCommands() {
+            return commands;
+        }
+
+        /**
+         * @return the time spent waiting for the card, in nanoseconds.
+         */
+        public long getCardNanos() {
+            return cardNanos;
+        }
+
+        /**
+         * @return the time spent on the host, in nanoseconds.
+         */
+        public long getHostNanos() {
+            return totalNanos - cardNanos;
+        }
+
+        /**
+         * @return the total time spent on the batch, in nanoseconds.
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public String toString() {
+            return String.format("%d commands in %d us (card %d us, host %d us)",
+                    commands, totalNanos / 1000, cardNanos / 1000,
+                    getHostNanos() / 1000);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * PublicKeyCommandCache.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.LruCache;
+
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+
+import com.ibm.zurich.idmx.key.IssuerPublicKey;
+
+/**
+ * Bounded cache of encoded issuer public key commands.
+ *
+ * <p>Entries are keyed by the identity of the {@link IssuerPublicKey}, the
+ * card version, the number of key elements sent and whether the key is
+ * packed into extended length APDUs. When the cache is full,
+ * the least recently used entry is evicted.
+ */
+public class PublicKeyCommandCache
+extends LruCache<PublicKeyCommandCache.Key, ProtocolCommands> {
+
+    /**
+     * Default maximum number of cached command sets.
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Construct a new cache holding at most {@link #DEFAULT_CAPACITY}
+     * command sets.
+     */
+    public PublicKeyCommandCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct a new cache.
+     *
+     * @param capacity the maximum number of cached command sets.
+     */
+    public PublicKeyCommandCache(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * Look up the encoded commands for a public key.
+     *
+     * @param cv version of the card the commands are meant for.
+     * @param pubKey the issuer public key.
+     * @param pubKeyElements the number of R elements sent.
+     * @return the cached commands, or null if there are none.
+     */
+    public ProtocolCommands get(CardVersion cv, IssuerPublicKey pubKey, int pubKeyElements) {
+        return get(cv, pubKey, pubKeyElements, false);
+    }
+
+    /**
+     * Look up the encoded commands for a public key.
+     *
+     * @param cv version of the card the commands are meant for.
+     * @param pubKey the issuer public key.
+     * @param pubKeyElements the number of R elements sent.
+     * @param extended whether the key is packed into extended length APDUs.
+     * @return the cached commands, or null if there are none.
+     */
+    public ProtocolCommands get(CardVersion cv, IssuerPublicKey pubKey, int pubKeyElements,
+            boolean extended) {
+        return get(new Key(cv, pubKey, pubKeyElements, extended));
+    }
+
+    /**
+     * Store the encoded commands for a public key. The commands should not
+     * be modified after they have been stored.
+     *
+     * @param cv version of the card the commands are meant for.
+     * @param pubKey the issuer public key.
+     * @param pubKeyElements the number of R elements sent.
+     * @param commands the encoded commands.
+     */
+    public void put(CardVersion cv, IssuerPublicKey pubKey, int pubKeyElements,
+            ProtocolCommands commands) {
+        put(cv, pubKey, pubKeyElements, false, commands);
+    }
+
+    /**
+     * Store the encoded commands for a public key. The commands should not
+     * be modified after they have been stored.
+     *
+     * @param cv version of the card the commands are meant for.
+     * @param pubKey the issuer public key.
+     * @param pubKeyElements the number of R elements sent.
+     * @param extended whether the key is packed into extended length APDUs.
+     * @param commands the encoded commands.
+     */
+    public void put(CardVersion cv, IssuerPublicKey pubKey, int pubKeyElements,
+            boolean extended, ProtocolCommands commands) {
+        put(new Key(cv, pubKey, pubKeyElements, extended), commands);
+    }
+
+    /**
+     * Cache key, comparing the public key by identity.
+     */
+    static final class Key {
+        private final CardVersion cv;
+        private final IssuerPublicKey pubKey;
+        private final int pubKeyElements;
+        private final boolean extended;
+
+        Key(CardVersion cv, IssuerPublicKey pubKey, int pubKeyElements, boolean extended) {
+            this.cv = cv;
+            this.pubKey = pubKey;
+            this.pubKeyElements = pubKeyElements;
+            this.extended = extended;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return pubKey == k.pubKey && pubKeyElements == k.pubKeyElements
+                    && extended == k.extended
+                    && (cv == null ? k.cv == null : cv.equals(k.cv));
+        }
+
+        public int hashCode() {
+            int hash = System.identityHashCode(pubKey);
+            hash = 31 * hash + pubKeyElements;
+            hash = 31 * hash + (extended ? 1 : 0);
+            hash = 31 * hash + (cv == null ? 0 : cv.hashCode());
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * SessionExecutor.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.scuba.smartcards.CardService;
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+/**
+ * Executor running a complete session per card on a thread of its own.
+ *
+ * <p>A session opens the card and selects the applet, optionally verifies
+ * the credential PIN, runs a {@link CardJob} and closes the card again.
+ * All of this is blocking, which is cheap when the sessions run on virtual
+ * threads: a thread waiting for the card is unmounted from its carrier, so
+ * hundreds of cards can be served by a handful of platform threads.
+ *
+ * <p>Virtual threads are used when the runtime provides them (Java 21 and
+ * newer), they are looked up reflectively so the library still runs on older
+ * runtimes, where every session gets a platform thread from a cached pool.
+ * The locks on the path to the card are {@link java.util.concurrent.locks}
+ * locks rather than monitors, so a blocked session does not pin its carrier
+ * thread.
+ */
+public class SessionExecutor {
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Construct a new executor running the sessions on virtual threads, or
+     * on platform threads if the runtime does not support virtual threads;
+     * {@link #isVirtual()} tells which.
+     */
+    public SessionExecutor() {
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        if (virtualThreads != null) {
+            executor = virtualThreads;
+            virtual = true;
+        } else {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger sessions = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "card-session-" + sessions.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            virtual = false;
+        }
+    }
+
+    /**
+     * Construct a new executor running the sessions on a given executor.
+     *
+     * @param executor to run the sessions on, it is shut down along with
+     *        this executor.
+     */
+    public SessionExecutor(ExecutorService executor) {
+        this.executor = executor;
+        this.virtual = false;
+    }
+
+    /**
+     * Create an executor starting a virtual thread per task.
+     *
+     * @return the executor, or null if the runtime does not support
+     *         virtual threads.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            // Older runtime, or a preview feature which has not been enabled
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the sessions run on virtual threads, false if the
+     *         executor fell back to platform threads or was given one.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Run a session on a card.
+     *
+     * @param card the service to the card, it is closed when the session
+     *        ends.
+     * @param job to run once the applet has been selected.
+     * @return the pending result of the job.
+     */
+    public <T> CompletableFuture<T> submit(CardService card, CardJob<T> job) {
+        return submit(card, null, job);
+    }
+
+    /**
+     * Run a session on a card, verifying the credential PIN before the job.
+     *
+     * @param card the service to the card, it is closed when the session
+     *        ends.
+     * @param pin ASCII encoded credential PIN, or null to skip the
+     *        verification.
+     * @param job to run once the PIN has been verified.
+     * @return the pending result of the job, which fails with the status
+     *         word 63CX if the PIN was rejected.
+     */
+    public <T> CompletableFuture<T> submit(final CardService card, final byte[] pin,
+            final CardJob<T> job) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    // Count before completing, so callers see the counts
+                    active.incrementAndGet();
+                    T result;
+                    try {
+                        result = session(card, pin, job);
+                    } catch (Throwable e) {
+                        failed.incrementAndGet();
+                        active.decrementAndGet();
+                        future.completeExceptionally(e);
+                        return;
+                    }
+                    completed.incrementAndGet();
+                    active.decrementAndGet();
+                    future.complete(result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static <T> T session(CardService card, byte[] pin, CardJob<T> job)
+    throws CardServiceException {
+        IdemixService service = new IdemixService(card);
+        try {
+            service.open();
+            if (pin != null) {
+                int tries = service.sendCredentialPin(pin);
+                if (tries != -1) {
+                    throw new CardServiceException("PIN rejected, " + tries + " tries left",
+                            0x63C0 | tries);
+                }
+            }
+            return job.run(service);
+        } finally {
+            service.close();
+        }
+    }
+
+    /**
+     * @return the number of sessions which finished successfully.
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return the number of sessions which failed.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of sessions currently running.
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * Stop accepting sessions, the running sessions are finished.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Wait until all sessions have finished after a shutdown.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit of the timeout.
+     * @return whether all sessions have finished.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+    throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,390 @@
+/**
+ * SessionState.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+import net.sourceforge.scuba.smartcards.ProtocolResponse;
+import net.sourceforge.scuba.smartcards.ProtocolResponses;
+
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.ProtocolCodec;
+
+import com.ibm.zurich.idmx.issuance.IssuanceSpec;
+import com.ibm.zurich.idmx.issuance.Message;
+import com.ibm.zurich.idmx.showproof.Proof;
+import com.ibm.zurich.idmx.showproof.ProofSpec;
+import com.ibm.zurich.idmx.utils.StructureStore;
+
+/**
+ * State of a step of the protocol in indirect mode, between building the
+ * commands and processing the responses of the card.
+ *
+ * <p>The state only holds identifiers: the card version, the issuer public
+ * key and credential structure of the issuance specification or the proof
+ * specification, the nonce and the keys of the expected responses, which
+ * are interned like in {@link ProtocolCodec}. It can therefore be encoded
+ * in a token of about a hundred bytes, which any node of the backend can
+ * restore as long as the structures are loaded in its
+ * {@link StructureStore}:
+ * <pre>
+ *   ProtocolCommands commands = IdemixSmartcard.buildProofCommands(cv, nonce, spec, id);
+ *   byte[] token = SessionState.proof(cv, specId, nonce, commands).encode(key);
+ *   // relay the commands, possibly to another node and back
+ *   Proof proof = SessionState.decode(token, key, maxAge).processBuildProofResponses(responses);
+ * </pre>
+ * A token encoded with a key carries an HMAC-SHA256 over its contents, so
+ * it can be handed to the relay without it being able to change the nonce
+ * or the specification. Such a token is only accepted until it reaches its
+ * maximum age, within which it can still be replayed. The state of the
+ * Idemix issuer itself is not part of the token.
+ */
+public class SessionState implements Serializable {
+
+    private static final long serialVersionUID = 6143202466830528475L;
+
+    /**
+     * Step of the protocol of which the responses are awaited.
+     */
+    public enum Step { ISSUE_ROUND1, ISSUE_ROUND3, PROVE };
+
+    private static final int SW_NO_ERROR = 0x00009000;
+    private static final byte VERSION = 1;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+
+    private final Step step;
+    private final CardVersion cardVersion;
+    private final URI first;
+    private final URI second;
+    private final BigInteger nonce;
+    private final String[] expected;
+    private final long created;
+
+    private SessionState(Step step, CardVersion cardVersion, URI first, URI second,
+            BigInteger nonce, String[] expected, long created) {
+        this.step = step;
+        this.cardVersion = cardVersion;
+        this.first = first;
+        this.second = second;
+        this.nonce = nonce;
+        this.expected = expected;
+        this.created = created;
+    }
+
+    /**
+     * Create the state for the first round of the issuance.
+     *
+     * @param cv the version of the card.
+     * @param spec the issuance specification.
+     * @param commands as built by {@link IdemixSmartcard#round1Commands}.
+     * @return the state.
+     */
+    public static SessionState round1(CardVersion cv, IssuanceSpec spec, ProtocolCommands commands) {
+        return new SessionState(Step.ISSUE_ROUND1, cv, spec.getIssuerPublicKeyId(),
+                spec.getCredStructId(), null, keys(commands), System.currentTimeMillis());
+    }
+
+    /**
+     * Create the state for the third round of the issuance.
+     *
+     * @param cv the version of the card.
+     * @param spec the issuance specification.
+     * @param commands as built by {@link IdemixSmartcard#round3Commands}.
+     * @return the state.
+     */
+    public static SessionState round3(CardVersion cv, IssuanceSpec spec, ProtocolCommands commands) {
+        return new SessionState(Step.ISSUE_ROUND3, cv, spec.getIssuerPublicKeyId(),
+                spec.getCredStructId(), null, keys(commands), System.currentTimeMillis());
+    }
+
+    /**
+     * Create the state for building a proof.
+     *
+     * @param cv the version of the card.
+     * @param specId the location of the proof specification in the
+     *        {@link StructureStore}.
+     * @param nonce the nonce sent to the card.
+     * @param commands as built by {@link IdemixSmartcard#buildProofCommands}.
+     * @return the state.
+     */
+    public static SessionState proof(CardVersion cv, URI specId, BigInteger nonce,
+            ProtocolCommands commands) {
+        return new SessionState(Step.PROVE, cv, specId, null, nonce, keys(commands),
+                System.currentTimeMillis());
+    }
+
+    public Step getStep() {
+        return step;
+    }
+
+    public CardVersion getCardVersion() {
+        return cardVersion;
+    }
+
+    /**
+     * @return the issuance specification, or null when building a proof.
+     */
+    public IssuanceSpec getIssuanceSpec() {
+        return step == Step.PROVE ? null : new IssuanceSpec(first, second);
+    }
+
+    /**
+     * @return the location of the proof specification, or null during
+     *         issuance.
+     */
+    public URI getProofSpecId() {
+        return step == Step.PROVE ? first : null;
+    }
+
+    /**
+     * @return the proof specification, or null during issuance.
+     */
+    public ProofSpec getProofSpec() {
+        return step == Step.PROVE ? (ProofSpec) StructureStore.getInstance().get(first) : null;
+    }
+
+    /**
+     * @return the nonce sent to the card, or null during issuance.
+     */
+    public BigInteger getNonce() {
+        return nonce;
+    }
+
+    /**
+     * @return the keys of the responses which have to be returned.
+     */
+    public String[] getExpectedKeys() {
+        return expected.clone();
+    }
+
+    /**
+     * @return the time the commands were built, in milliseconds since the
+     *         epoch.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Check that the responses are complete and report success.
+     *
+     * @param responses returned by the card.
+     * @throws IllegalArgumentException if a response is missing.
+     * @throws CardServiceException if the card reported an error.
+     */
+    public void checkResponses(ProtocolResponses responses)
+    throws CardServiceException {
+        for (String key : expected) {
+            ProtocolResponse response = responses.get(key);
+            if (response == null) {
+                throw new IllegalArgumentException("Missing response: " + key);
+            }
+            int sw = response.getAPDU().getSW();
+            if (sw != SW_NO_ERROR) {
+                throw new CardServiceException("Command " + key + " failed", sw);
+            }
+        }
+    }
+
+    /**
+     * Process the responses to the first round of the issuance.
+     *
+     * @param responses returned by the card.
+     * @return the message for the issuer.
+     * @throws CardServiceException if the card reported an error.
+     */
+    public Message processRound1Responses(ProtocolResponses responses)
+    throws CardServiceException {
+        expect(Step.ISSUE_ROUND1);
+        checkResponses(responses);
+        return IdemixSmartcard.processRound1Responses(cardVersion, responses);
+    }
+
+    /**
+     * Process the responses to building a proof.
+     *
+     * @param responses returned by the card.
+     * @return the proof.
+     * @throws CardServiceException if the card reported an error.
+     */
+    public Proof processBuildProofResponses(ProtocolResponses responses)
+    throws CardServiceException {
+        expect(Step.PROVE);
+        checkResponses(responses);
+        return IdemixSmartcard.processBuildProofResponses(cardVersion, responses, getProofSpec());
+    }
+
+    /**
+     * Encode the state without authentication, for storage the backend
+     * trusts.
+     *
+     * @return the token.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeByte(step.ordinal());
+            cardVersion.writeTo(out);
+            out.writeUTF(first.toString());
+            if (step == Step.PROVE) {
+                byte[] n = nonce.toByteArray();
+                out.writeShort(n.length);
+                out.write(n);
+            } else {
+                out.writeUTF(second.toString());
+            }
+            out.writeLong(created);
+            byte[] keys = ProtocolCodec.encodeKeys(expected);
+            out.writeShort(keys.length);
+            out.write(keys);
+            out.flush();
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encode the state with an HMAC, so that it can be handed to an
+     * untrusted party.
+     *
+     * @param key for the HMAC, shared by the nodes of the backend.
+     * @return the token.
+     */
+    public byte[] encode(SecretKey key) {
+        byte[] state = encode();
+        byte[] token = Arrays.copyOf(state, state.length + MAC_LENGTH);
+        System.arraycopy(mac(key, state, state.length), 0, token, state.length, MAC_LENGTH);
+        return token;
+    }
+
+    /**
+     * Restore the state from a token without authentication.
+     *
+     * @param token as returned by {@link #encode()}.
+     * @return the state.
+     * @throws IllegalArgumentException if the token is malformed.
+     */
+    public static SessionState decode(byte[] token) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(token));
+        try {
+            if (in.readByte() != VERSION) {
+                throw new IllegalArgumentException("Unknown session token version");
+            }
+            int ordinal = in.readByte();
+            if (ordinal < 0 || ordinal >= Step.values().length) {
+                throw new IllegalArgumentException("Unknown session step: " + ordinal);
+            }
+            Step step = Step.values()[ordinal];
+            CardVersion cv = CardVersion.readFrom(in);
+            URI first = URI.create(in.readUTF());
+            URI second = null;
+            BigInteger nonce = null;
+            if (step == Step.PROVE) {
+                byte[] n = new byte[in.readUnsignedShort()];
+                in.readFully(n);
+                nonce = new BigInteger(n);
+            } else {
+                second = URI.create(in.readUTF());
+            }
+            long created = in.readLong();
+            byte[] keys = new byte[in.readUnsignedShort()];
+            in.readFully(keys);
+            String[] expected = ProtocolCodec.decodeKeys(keys);
+            if (in.available() != 0) {
+                throw new IllegalArgumentException("Trailing bytes in session token");
+            }
+            return new SessionState(step, cv, first, second, nonce, expected, created);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated session token", e);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid nonce in session token", e);
+        }
+    }
+
+    /**
+     * Restore the state from a token after checking its HMAC and age.
+     *
+     * @param token as returned by {@link #encode(SecretKey)}.
+     * @param key for the HMAC, shared by the nodes of the backend.
+     * @param maxAgeMillis the time after which the token expires, in
+     *        milliseconds since the commands were built.
+     * @return the state.
+     * @throws IllegalArgumentException if the token is malformed, was
+     *         not created with the key or has expired.
+     */
+    public static SessionState decode(byte[] token, SecretKey key, long maxAgeMillis) {
+        if (token.length < MAC_LENGTH) {
+            throw new IllegalArgumentException("Truncated session token");
+        }
+        int length = token.length - MAC_LENGTH;
+        if (!MessageDigest.isEqual(mac(key, token, length),
+                Arrays.copyOfRange(token, length, token.length))) {
+            throw new IllegalArgumentException("Invalid session token");
+        }
+        SessionState state = decode(Arrays.copyOf(token, length));
+        if (System.currentTimeMillis() - state.created > maxAgeMillis) {
+            throw new IllegalArgumentException("Expired session token");
+        }
+        return state;
+    }
+
+    private void expect(Step expected) {
+        if (step != expected) {
+            throw new IllegalStateException("Session awaits " + step + ", not " + expected);
+        }
+    }
+
+    private static String[] keys(ProtocolCommands commands) {
+        String[] keys = new String[commands.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = commands.get(i).getKey();
+        }
+        return keys;
+    }
+
+    private static byte[] mac(SecretKey key, byte[] data, int length) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            mac.update(data, 0, length);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid session token key", e);
+        }
+    }
+}
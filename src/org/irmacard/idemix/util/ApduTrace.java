@@ -0,0 +1,318 @@
+/**
+ * ApduTrace.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+import net.sourceforge.scuba.util.Hex;
+
+/**
+ * Asynchronous trace of the APDUs exchanged with the card.
+ *
+ * <p>A trace is either disabled, in which case recording is a single field
+ * check, or enabled. An enabled trace stores references to the APDUs in a
+ * fixed-size ring buffer; a background thread formats them and passes the
+ * resulting lines to a {@link Sink}. When the sink cannot keep up, the oldest
+ * entries are overwritten and counted as dropped, the thread talking to the
+ * card is never blocked by the sink.
+ *
+ * <p>The buffer is guarded by a {@link ReentrantLock} instead of the monitor
+ * of the trace, so virtual threads waiting in {@link #flush()} do not pin
+ * their carrier thread.
+ */
+public class ApduTrace {
+
+	/**
+	 * Destination of the formatted trace lines.
+	 */
+	public interface Sink {
+		void trace(String line);
+	}
+
+	/**
+	 * Sink printing to standard output.
+	 */
+	public static final Sink STDOUT = new Sink() {
+		public void trace(String line) {
+			System.out.println(line);
+		}
+	};
+
+	/**
+	 * Default number of entries buffered by an enabled trace.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final ApduTrace DISABLED = new ApduTrace();
+	private static volatile ApduTrace defaultTrace = DISABLED;
+
+	private static final int COMMAND = 0;
+	private static final int RESPONSE = 1;
+	private static final int MESSAGE = 2;
+
+	private final boolean enabled;
+	private final Sink sink;
+
+	private final int[] kinds;
+	private final Object[] payloads;
+	private final long[] durations;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private int head = 0;
+	private int size = 0;
+	private int writing = 0;
+	private long dropped = 0;
+
+	private Thread writer = null;
+
+	/**
+	 * Construct a disabled trace.
+	 */
+	public ApduTrace() {
+		enabled = false;
+		sink = null;
+		kinds = null;
+		payloads = null;
+		durations = null;
+	}
+
+	/**
+	 * Construct an enabled trace with the default capacity.
+	 *
+	 * @param sink to write the trace to.
+	 */
+	public ApduTrace(Sink sink) {
+		this(sink, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Construct an enabled trace.
+	 *
+	 * @param sink to write the trace to.
+	 * @param capacity the number of entries buffered before the oldest are
+	 *        dropped.
+	 */
+	public ApduTrace(Sink sink, int capacity) {
+		if (sink == null || capacity < 1) {
+			throw new IllegalArgumentException("A sink and a positive capacity are required");
+		}
+		enabled = true;
+		this.sink = sink;
+		kinds = new int[capacity];
+		payloads = new Object[capacity];
+		durations = new long[capacity];
+	}
+
+	/**
+	 * @return the trace used when no other trace has been configured.
+	 */
+	public static ApduTrace getDefault() {
+		return defaultTrace;
+	}
+
+	/**
+	 * Set the trace used when no other trace has been configured.
+	 *
+	 * @param trace the new default, or null to disable the default trace.
+	 */
+	public static void setDefault(ApduTrace trace) {
+		defaultTrace = trace == null ? DISABLED : trace;
+	}
+
+	/**
+	 * @return whether this trace records anything.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the number of entries which were overwritten before they
+	 *         reached the sink.
+	 */
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Record a command sent to the card.
+	 */
+	public void command(CommandAPDU capdu) {
+		if (enabled) {
+			add(COMMAND, capdu, 0);
+		}
+	}
+
+	/**
+	 * Record a response received from the card.
+	 *
+	 * @param rapdu the response.
+	 * @param nanos the duration of the round trip, in nanoseconds.
+	 */
+	public void response(ResponseAPDU rapdu, long nanos) {
+		if (enabled) {
+			add(RESPONSE, rapdu, nanos);
+		}
+	}
+
+	/**
+	 * Record a free-form message.
+	 */
+	public void message(String message) {
+		if (enabled) {
+			add(MESSAGE, message, 0);
+		}
+	}
+
+	/**
+	 * Record raw data, formatted as hexadecimal string.
+	 */
+	public void data(byte[] data) {
+		if (enabled) {
+			add(MESSAGE, data, 0);
+		}
+	}
+
+	/**
+	 * Wait until all entries recorded so far have been passed to the sink.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public void flush() throws InterruptedException {
+		if (!enabled) {
+			return;
+		}
+		lock.lock();
+		try {
+			while (size + writing > 0) {
+				changed.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void add(int kind, Object payload, long nanos) {
+		lock.lock();
+		try {
+			int capacity = kinds.length;
+			if (size == capacity) {
+				head = (head + 1) % capacity;
+				size--;
+				dropped++;
+			}
+			int tail = (head + size) % capacity;
+			kinds[tail] = kind;
+			payloads[tail] = payload;
+			durations[tail] = nanos;
+			size++;
+
+			if (writer == null) {
+				writer = new Thread(new Writer(), "apdu-trace");
+				writer.setDaemon(true);
+				writer.start();
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drains the ring buffer, formatting outside of the lock.
+	 */
+	private class Writer implements Runnable {
+		public void run() {
+			int capacity = kinds.length;
+			int[] k = new int[capacity];
+			Object[] p = new Object[capacity];
+			long[] d = new long[capacity];
+
+			while (true) {
+				int n;
+				lock.lock();
+				try {
+					while (size == 0) {
+						try {
+							changed.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					n = size;
+					for (int i = 0; i < n; i++) {
+						int j = (head + i) % capacity;
+						k[i] = kinds[j];
+						p[i] = payloads[j];
+						d[i] = durations[j];
+						payloads[j] = null;
+					}
+					head = (head + n) % capacity;
+					size = 0;
+					writing = n;
+				} finally {
+					lock.unlock();
+				}
+
+				for (int i = 0; i < n; i++) {
+					write(k[i], p[i], d[i]);
+					p[i] = null;
+				}
+
+				lock.lock();
+				try {
+					writing = 0;
+					changed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+
+		private void write(int kind, Object payload, long nanos) {
+			try {
+				switch (kind) {
+				case COMMAND:
+					sink.trace("C: " + Hex.bytesToHexString(((CommandAPDU) payload).getBytes()));
+					break;
+				case RESPONSE:
+					sink.trace(" duration: " + nanos / 1000000 + " ms");
+					sink.trace("R: " + Hex.bytesToHexString(((ResponseAPDU) payload).getBytes()));
+					break;
+				default:
+					if (payload instanceof byte[]) {
+						sink.trace(Hex.bytesToHexString((byte[]) payload));
+					} else {
+						sink.trace(String.valueOf(payload));
+					}
+				}
+			} catch (RuntimeException e) {
+				// A failing sink must not stop the trace
+				System.err.println("APDU trace sink failed: " + e.getMessage());
+			}
+		}
+	}
+}
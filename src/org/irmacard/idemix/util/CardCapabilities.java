@@ -0,0 +1,105 @@
+/**
+ * CardCapabilities.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+/**
+ * Capabilities of a card as announced in the historical bytes of its answer
+ * to reset (ISO 7816-4, section 8.1.1.2.7), and the transmission protocols
+ * offered in its interface bytes (ISO 7816-3, section 8.2.3).
+ */
+public class CardCapabilities {
+
+	private static final int TAG_CARD_CAPABILITIES = 0x7;
+
+	/**
+	 * Third software function byte: extended Lc and Le fields.
+	 */
+	private static final int EXTENDED_LENGTH = 0x40;
+
+	private final boolean extendedLength;
+	private boolean t1;
+
+	/**
+	 * Parse the capabilities from an answer to reset.
+	 *
+	 * @param atr the answer to reset, may be null.
+	 */
+	public CardCapabilities(byte[] atr) {
+		extendedLength = parse(atr);
+	}
+
+	/**
+	 * @return whether the card accepts extended length APDUs.
+	 */
+	public boolean isExtendedLengthSupported() {
+		return extendedLength;
+	}
+
+	/**
+	 * The T=0 protocol only transports short APDUs, so extended length
+	 * APDUs can only be exchanged with a card offering T=1.
+	 *
+	 * @return whether the card offers the T=1 protocol.
+	 */
+	public boolean isT1Supported() {
+		return t1;
+	}
+
+	private boolean parse(byte[] atr) {
+		if (atr == null || atr.length < 2) {
+			return false;
+		}
+
+		// Skip the interface bytes, noting the protocols offered by TD_i
+		int y = (atr[1] >> 4) & 0x0F;
+		int k = atr[1] & 0x0F;
+		int i = 2;
+		while (true) {
+			i += Integer.bitCount(y & 0x07);
+			if ((y & 0x08) == 0 || i >= atr.length) {
+				break;
+			}
+			t1 |= (atr[i] & 0x0F) == 1;
+			y = (atr[i++] >> 4) & 0x0F;
+		}
+
+		// Historical bytes in COMPACT-TLV format: category indicator 0x00
+		// (followed by three status bytes) or 0x80
+		int end = Math.min(i + k, atr.length);
+		if (i >= end) {
+			return false;
+		}
+		int category = atr[i++] & 0xFF;
+		if (category == 0x00) {
+			end -= 3;
+		} else if (category != 0x80) {
+			return false;
+		}
+
+		while (i < end) {
+			int tag = (atr[i] >> 4) & 0x0F;
+			int length = atr[i] & 0x0F;
+			i++;
+			if (tag == TAG_CARD_CAPABILITIES && length >= 3 && i + 3 <= end) {
+				return (atr[i + 2] & EXTENDED_LENGTH) != 0;
+			}
+			i += length;
+		}
+		return false;
+	}
+}
@@ -1,5 +1,8 @@
 package org.irmacard.idemix.util;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
 import net.sourceforge.scuba.util.Hex;
@@ -10,6 +13,26 @@ public class CardVersion implements Comparable<CardVersion>, Serializable {
 
 	public enum Type { BUILD, DEBUG, REV, ALPHA, BETA, CANDIDATE, RELEASE };
 
+	/**
+	 * Capabilities of the card application which influence the commands
+	 * sent to it.
+	 */
+	public enum Feature {
+		/** Command encoding of the 0.8 series (newer than 0.7.2). */
+		PROTOCOL_0_8,
+		/** Querying the PIN verification status (0.8 alpha0 and newer). */
+		PIN_QUERY,
+		/** Authentication key initialisation (0.8 and newer). */
+		AUTHENTICATION_KEY,
+		/** CA key and certificate verification (0.8 and newer). */
+		CERTIFICATE_VERIFICATION,
+		/**
+		 * Packed public key and single APDU certificate in extended length
+		 * APDUs (0.8 and newer, built with "ext" in the version string).
+		 */
+		EXTENDED_LENGTH_COMMANDS
+	};
+
 	private int major = 0;
 	private int minor = 0;
 	private Integer maint = null;
@@ -19,6 +42,14 @@ public class CardVersion implements Comparable<CardVersion>, Serializable {
 	private Integer count = null;
 	private byte[] data = null;
 
+	/**
+	 * Resolved once on first use, as the version never changes.
+	 */
+	private transient Type type = null;
+	private transient int features = 0;
+
+	private static final int FEATURES_RESOLVED = 1 << 31;
+
 
 	/**
 	 * Constructor which gets all elements as separate variables.
@@ -171,6 +202,15 @@ public class CardVersion implements Comparable<CardVersion>, Serializable {
 	}
 
 	public Type getType() {
+		Type t = type;
+		if (t == null) {
+			t = resolveType();
+			type = t;
+		}
+		return t;
+	}
+
+	private Type resolveType() {
 		Type type = Type.RELEASE;
 		
 		if (extra != null) {
@@ -239,6 +279,109 @@ public class CardVersion implements Comparable<CardVersion>, Serializable {
 		return compareTo(c) < 0;
 	}
 
+	/**
+	 * Check whether the card application supports a feature.
+	 *
+	 * @param feature to check.
+	 * @return whether the feature is supported.
+	 */
+	public boolean supports(Feature feature) {
+		int f = features;
+		if (f == 0) {
+			f = resolveFeatures();
+			features = f;
+		}
+		return (f & (1 << feature.ordinal())) != 0;
+	}
+
+	private int resolveFeatures() {
+		int f = FEATURES_RESOLVED;
+		if (newer(new CardVersion(0, 7, 2))) {
+			f |= 1 << Feature.PROTOCOL_0_8.ordinal();
+		}
+		if (!older(new CardVersion(0, 8, null, "alpha0", 0))) {
+			f |= 1 << Feature.PIN_QUERY.ordinal();
+		}
+		if (!older(new CardVersion(0, 8))) {
+			f |= 1 << Feature.AUTHENTICATION_KEY.ordinal();
+			f |= 1 << Feature.CERTIFICATE_VERIFICATION.ordinal();
+			if (extra != null && extra.contains("ext")) {
+				f |= 1 << Feature.EXTENDED_LENGTH_COMMANDS.ordinal();
+			}
+		}
+		return f;
+	}
+
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof CardVersion)) return false;
+		return compareTo((CardVersion) o) == 0;
+	}
+
+	public int hashCode() {
+		int hash = 31 * major + minor;
+		hash = 31 * hash + (maint == null ? -1 : maint);
+		hash = 31 * hash + (build == null ? -1 : build);
+		hash = 31 * hash + getType().ordinal();
+		hash = 31 * hash + (count == null ? -1 : count);
+		return hash;
+	}
+
+	/**
+	 * Write the version in a compact form, to be read back with
+	 * {@link #readFrom(DataInput)}.
+	 *
+	 * @param out to write the version to.
+	 * @throws IOException if writing failed.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		int present = (maint != null ? 1 : 0) | (build != null ? 2 : 0)
+				| (extra != null ? 4 : 0) | (count != null ? 8 : 0)
+				| (data != null ? 16 : 0);
+		out.writeByte(major);
+		out.writeByte(minor);
+		out.writeByte(present);
+		if (maint != null) {
+			out.writeByte(maint);
+		}
+		if (build != null) {
+			out.writeByte(build);
+		}
+		if (extra != null) {
+			out.writeUTF(extra);
+		}
+		if (count != null) {
+			out.writeByte(count);
+		}
+		if (data != null) {
+			out.writeByte(data.length);
+			out.write(data);
+		}
+	}
+
+	/**
+	 * Read a version written by {@link #writeTo(DataOutput)}.
+	 *
+	 * @param in to read the version from.
+	 * @return the version.
+	 * @throws IOException if reading failed.
+	 */
+	public static CardVersion readFrom(DataInput in) throws IOException {
+		int maj = in.readByte();
+		int min = in.readByte();
+		int present = in.readByte();
+		CardVersion cv = new CardVersion(maj, min,
+				(present & 1) != 0 ? Integer.valueOf(in.readByte()) : null,
+				(present & 2) != 0 ? Integer.valueOf(in.readByte()) : null,
+				(present & 4) != 0 ? in.readUTF() : null,
+				(present & 8) != 0 ? Integer.valueOf(in.readByte()) : null);
+		if ((present & 16) != 0) {
+			cv.data = new byte[in.readUnsignedByte()];
+			in.readFully(cv.data);
+		}
+		return cv;
+	}
+
 	public String toString() {		
 		String version = major + "." + minor;
 		
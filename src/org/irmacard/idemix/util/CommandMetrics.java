@@ -0,0 +1,208 @@
+/**
+ * CommandMetrics.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms and failure counters of the commands sent to cards.
+ *
+ * <p>Latencies are recorded per protocol command key and per instruction
+ * byte. Recording is lock-free, so a single instance can be shared by all
+ * services of a terminal. The metrics are published over JMX once the
+ * instance has been {@link #register(String) registered}.
+ */
+public class CommandMetrics implements CommandMetricsMXBean {
+
+	/**
+	 * Domain of the object names under which metrics are registered.
+	 */
+	public static final String DOMAIN = "org.irmacard.idemix";
+
+	private static final int SW_NO_ERROR = 0x00009000;
+
+	private static final CommandMetrics defaultMetrics = new CommandMetrics();
+
+	private final ConcurrentMap<String, LatencyHistogram> commands =
+			new ConcurrentHashMap<String, LatencyHistogram>();
+	private final LatencyHistogram[] instructions = new LatencyHistogram[256];
+	private final ConcurrentMap<Integer, AtomicLong> failures =
+			new ConcurrentHashMap<Integer, AtomicLong>();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public CommandMetrics() {
+		for (int i = 0; i < instructions.length; i++) {
+			instructions[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * @return the metrics used when no other metrics have been configured.
+	 */
+	public static CommandMetrics getDefault() {
+		return defaultMetrics;
+	}
+
+	/**
+	 * Record the execution of a command.
+	 *
+	 * @param key of the protocol command, may be null.
+	 * @param ins the instruction byte of the command APDU.
+	 * @param nanos the duration of the round trip, in nanoseconds.
+	 * @param sw the status word returned by the card.
+	 */
+	public void record(String key, int ins, long nanos, int sw) {
+		total.incrementAndGet();
+		instructions[ins & 0xff].record(nanos);
+		if (key != null) {
+			histogram(key).record(nanos);
+		}
+		if (sw != SW_NO_ERROR) {
+			failed.incrementAndGet();
+			AtomicLong counter = failures.get(sw);
+			if (counter == null) {
+				AtomicLong created = new AtomicLong();
+				counter = failures.putIfAbsent(sw, created);
+				if (counter == null) {
+					counter = created;
+				}
+			}
+			counter.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the latencies of the commands with a given key.
+	 *
+	 * @param key of the protocol command.
+	 * @return the latencies, or null if no such command was recorded.
+	 */
+	public LatencySnapshot getCommandLatency(String key) {
+		LatencyHistogram h = commands.get(key);
+		return h == null ? null : h.snapshot();
+	}
+
+	/**
+	 * Get the latencies of the commands with a given instruction byte.
+	 *
+	 * @param ins the instruction byte.
+	 * @return the latencies, possibly without any samples.
+	 */
+	public LatencySnapshot getInstructionLatency(byte ins) {
+		return instructions[ins & 0xff].snapshot();
+	}
+
+	public long getCommands() {
+		return total.get();
+	}
+
+	public long getFailures() {
+		return failed.get();
+	}
+
+	public Map<String, LatencySnapshot> getCommandLatencies() {
+		Map<String, LatencySnapshot> result = new TreeMap<String, LatencySnapshot>();
+		for (Map.Entry<String, LatencyHistogram> e : commands.entrySet()) {
+			result.put(e.getKey(), e.getValue().snapshot());
+		}
+		return result;
+	}
+
+	public Map<String, LatencySnapshot> getInstructionLatencies() {
+		Map<String, LatencySnapshot> result = new TreeMap<String, LatencySnapshot>();
+		for (int i = 0; i < instructions.length; i++) {
+			LatencySnapshot s = instructions[i].snapshot();
+			if (s.getCount() > 0) {
+				result.put(String.format("%02X", i), s);
+			}
+		}
+		return result;
+	}
+
+	public Map<String, Long> getFailuresByStatusWord() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<Integer, AtomicLong> e : failures.entrySet()) {
+			result.put(String.format("%04X", e.getKey()), e.getValue().get());
+		}
+		return result;
+	}
+
+	public void reset() {
+		commands.clear();
+		for (LatencyHistogram h : instructions) {
+			h.reset();
+		}
+		failures.clear();
+		total.set(0);
+		failed.set(0);
+	}
+
+	/**
+	 * Register these metrics with the platform MBean server.
+	 *
+	 * @param name to distinguish these metrics from others, e.g. the reader.
+	 * @return the object name under which the metrics are registered.
+	 * @throws JMException if the metrics could not be registered.
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName(DOMAIN + ":type=CommandMetrics,name="
+				+ ObjectName.quote(name));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (!server.isRegistered(objectName)) {
+			server.registerMBean(this, objectName);
+		}
+		return objectName;
+	}
+
+	/**
+	 * Remove these metrics from the platform MBean server.
+	 *
+	 * @param name under which the metrics were registered.
+	 * @throws JMException if the metrics could not be removed.
+	 */
+	public void unregister(String name) throws JMException {
+		ObjectName objectName = new ObjectName(DOMAIN + ":type=CommandMetrics,name="
+				+ ObjectName.quote(name));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(objectName)) {
+			server.unregisterMBean(objectName);
+		}
+	}
+
+	private LatencyHistogram histogram(String key) {
+		LatencyHistogram h = commands.get(key);
+		if (h == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			h = commands.putIfAbsent(key, created);
+			if (h == null) {
+				h = created;
+			}
+		}
+		return h;
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * CommandMetricsMXBean.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link CommandMetrics}.
+ */
+public interface CommandMetricsMXBean {
+
+	/**
+	 * @return the number of commands sent to cards.
+	 */
+	long getCommands();
+
+	/**
+	 * @return the number of commands which returned an error status word.
+	 */
+	long getFailures();
+
+	/**
+	 * @return the latencies per protocol command key.
+	 */
+	Map<String, LatencySnapshot> getCommandLatencies();
+
+	/**
+	 * @return the latencies per instruction byte, formatted as hexadecimal.
+	 */
+	Map<String, LatencySnapshot> getInstructionLatencies();
+
+	/**
+	 * @return the number of failures per status word, formatted as
+	 *         hexadecimal.
+	 */
+	Map<String, Long> getFailuresByStatusWord();
+
+	/**
+	 * Forget all recorded metrics.
+	 */
+	void reset();
+}
@@ -0,0 +1,211 @@
+/**
+ * FixedBaseTable.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.math.BigInteger;
+
+/**
+ * Precomputed powers of a fixed base for fast modular exponentiation.
+ *
+ * <p>The table holds base^(2^(w*j)) mod n for every window j of w bits of
+ * the exponent. An exponentiation splits the exponent in windows and uses
+ * Yao's method: the table entries are gathered per window digit, after
+ * which the digits are applied with 2 * (2^w - 1) multiplications. For an
+ * exponent of k bits this costs about k/w + 2^(w+1) modular
+ * multiplications and no squarings, instead of the k squarings of a plain
+ * exponentiation. {@link #product(FixedBaseTable[], BigInteger[])} shares
+ * the digit buckets between several bases, so the 2^(w+1) term is only paid
+ * once for a multi-exponentiation.
+ *
+ * <p>Products are reduced with Barrett reduction, which is considerably
+ * cheaper than {@link BigInteger#mod(BigInteger)} for a fixed modulus.
+ * Exponents which are longer than the table are computed with
+ * {@link BigInteger#modPow(BigInteger, BigInteger)}; negative exponents use
+ * the inverse of the positive power. A table is immutable and thread-safe.
+ */
+public class FixedBaseTable {
+
+	/**
+	 * Default number of exponent bits per window.
+	 */
+	public static final int DEFAULT_WINDOW = 6;
+
+	private final BigInteger base;
+	private final BigInteger modulus;
+	private final int window;
+	private final int exponentBits;
+	private final BigInteger[] powers;
+
+	// Barrett reduction: mu = floor(4^k / n) for a modulus of k bits
+	private final int k;
+	private final BigInteger mu;
+
+	/**
+	 * Construct a table with windows of {@link #DEFAULT_WINDOW} bits.
+	 *
+	 * @param base the fixed base.
+	 * @param modulus the modulus.
+	 * @param exponentBits the maximum length of the exponents.
+	 */
+	public FixedBaseTable(BigInteger base, BigInteger modulus, int exponentBits) {
+		this(base, modulus, exponentBits, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Construct a table.
+	 *
+	 * @param base the fixed base.
+	 * @param modulus the modulus.
+	 * @param exponentBits the maximum length of the exponents.
+	 * @param window the number of exponent bits per window.
+	 */
+	public FixedBaseTable(BigInteger base, BigInteger modulus, int exponentBits, int window) {
+		if (exponentBits < 1 || window < 1 || window > 16 || modulus.signum() <= 0) {
+			throw new IllegalArgumentException("Invalid table size");
+		}
+		this.base = base.mod(modulus);
+		this.modulus = modulus;
+		this.window = window;
+		this.exponentBits = exponentBits;
+		this.k = modulus.bitLength();
+		this.mu = BigInteger.ONE.shiftLeft(2 * k).divide(modulus);
+
+		powers = new BigInteger[(exponentBits + window - 1) / window];
+		BigInteger power = this.base;
+		for (int j = 0; j < powers.length; j++) {
+			powers[j] = power;
+			for (int i = 0; i < window; i++) {
+				power = multiply(power, power);
+			}
+		}
+	}
+
+	/**
+	 * @return the fixed base.
+	 */
+	public BigInteger getBase() {
+		return base;
+	}
+
+	/**
+	 * @return the modulus.
+	 */
+	public BigInteger getModulus() {
+		return modulus;
+	}
+
+	/**
+	 * @return the maximum length of the exponents computed with the table.
+	 */
+	public int getExponentBits() {
+		return exponentBits;
+	}
+
+	/**
+	 * Compute base^exponent mod n.
+	 */
+	public BigInteger pow(BigInteger exponent) {
+		return product(new FixedBaseTable[] { this }, new BigInteger[] { exponent });
+	}
+
+	/**
+	 * Compute factor * base^exponent mod n.
+	 */
+	public BigInteger multiplyPow(BigInteger factor, BigInteger exponent) {
+		return multiply(factor.mod(modulus), pow(exponent));
+	}
+
+	/**
+	 * Compute the product of the powers of several bases, which must share
+	 * the modulus and the window size.
+	 *
+	 * @param tables of the bases.
+	 * @param exponents of the bases, in the same order.
+	 * @return prod_i base_i^exponent_i mod n.
+	 */
+	public static BigInteger product(FixedBaseTable[] tables, BigInteger[] exponents) {
+		if (tables.length == 0 || tables.length != exponents.length) {
+			throw new IllegalArgumentException("A table is required for every exponent");
+		}
+		FixedBaseTable first = tables[0];
+		BigInteger result = null;
+		BigInteger[] buckets = new BigInteger[1 << first.window];
+
+		for (int i = 0; i < tables.length; i++) {
+			FixedBaseTable table = tables[i];
+			BigInteger exponent = exponents[i];
+			if (table.window != first.window || !table.modulus.equals(first.modulus)) {
+				throw new IllegalArgumentException("Tables do not match");
+			}
+
+			if (exponent.signum() < 0) {
+				BigInteger inverse = table.pow(exponent.negate()).modInverse(table.modulus);
+				result = result == null ? inverse : first.multiply(result, inverse);
+			} else if (exponent.bitLength() > table.exponentBits) {
+				BigInteger power = table.base.modPow(exponent, table.modulus);
+				result = result == null ? power : first.multiply(result, power);
+			} else {
+				for (int j = 0; j < table.powers.length; j++) {
+					int d = table.digit(exponent, j);
+					if (d != 0) {
+						buckets[d] = buckets[d] == null ? table.powers[j]
+								: first.multiply(buckets[d], table.powers[j]);
+					}
+				}
+			}
+		}
+
+		// prod_d buckets[d]^d, using running products from the highest
+		// digit down
+		BigInteger running = null;
+		for (int d = buckets.length - 1; d > 0; d--) {
+			if (buckets[d] != null) {
+				running = running == null ? buckets[d] : first.multiply(running, buckets[d]);
+			}
+			if (running != null) {
+				result = result == null ? running : first.multiply(result, running);
+			}
+		}
+		return result == null ? BigInteger.ONE.mod(first.modulus) : result;
+	}
+
+	/**
+	 * Compute a * b mod n for a, b in [0, n).
+	 */
+	private BigInteger multiply(BigInteger a, BigInteger b) {
+		BigInteger x = a.multiply(b);
+		BigInteger q = x.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+		BigInteger r = x.subtract(q.multiply(modulus));
+		while (r.compareTo(modulus) >= 0) {
+			r = r.subtract(modulus);
+		}
+		return r;
+	}
+
+	/**
+	 * Extract window j of the exponent.
+	 */
+	private int digit(BigInteger exponent, int j) {
+		int d = 0;
+		int offset = j * window;
+		for (int i = window - 1; i >= 0; i--) {
+			d = (d << 1) | (exponent.testBit(offset + i) ? 1 : 0);
+		}
+		return d;
+	}
+}
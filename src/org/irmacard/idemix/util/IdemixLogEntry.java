@@ -46,6 +46,8 @@ public class IdemixLogEntry {
 	private short disclose;
 	private byte[] data;
 
+	private byte[] log;
+
 	/**
 	 * Structure of log entry:
 	 *  timestamp: 4 bytes
@@ -57,27 +59,31 @@ public class IdemixLogEntry {
 	 *     data: 5 bytes
 	 */
 
-	private static final int IDX_TIMESTAMP = 0;
-	private static final int SIZE_TIMESTAMP = 4;
+	static final int SIZE = 16;
+
+	static final int IDX_TIMESTAMP = 0;
+	static final int SIZE_TIMESTAMP = 4;
 
-	private static final int IDX_TERMINAL = 4;
-	private static final int SIZE_TERMINAL = 4;
+	static final int IDX_TERMINAL = 4;
+	static final int SIZE_TERMINAL = 4;
 
-	private static final int IDX_ACTION = 8;
+	static final int IDX_ACTION = 8;
 
-	private static final int IDX_CREDENTIAL = 9;
+	static final int IDX_CREDENTIAL = 9;
 
-	private static final int IDX_SELECTION = 11;
+	static final int IDX_SELECTION = 11;
 
-	private static final int IDX_DETAILS = 11;
-	private static final int SIZE_DETAILS = 5;
+	static final int IDX_DETAILS = 11;
+	static final int SIZE_DETAILS = 5;
 
-	private static final byte ACTION_NONE = 0x00;
-	private static final byte ACTION_ISSUE = 0x01;
-	private static final byte ACTION_PROVE = 0x02;
-	private static final byte ACTION_REMOVE = 0x03;
+	static final byte ACTION_NONE = 0x00;
+	static final byte ACTION_ISSUE = 0x01;
+	static final byte ACTION_PROVE = 0x02;
+	static final byte ACTION_REMOVE = 0x03;
 
 	public IdemixLogEntry(byte[] log) {
+		this.log = log;
+
 		switch (log[IDX_ACTION]) {
 		case ACTION_ISSUE:
 			action = Action.ISSUE;
@@ -128,6 +134,13 @@ public class IdemixLogEntry {
 		return data;
 	}
 
+	/**
+	 * @return the raw log entry as stored on the card.
+	 */
+	public byte[] getBytes() {
+		return log.clone();
+	}
+
 	private static short getShortAt(byte[] array, int idx) {
 		return (short) ((array[idx] << 8) + (array[idx + 1] & 0xff));
 	}
@@ -0,0 +1,178 @@
+/**
+ * IdemixLogEntryView.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.nio.ByteBuffer;
+
+import net.sourceforge.scuba.util.Hex;
+
+/**
+ * Flyweight view on a log entry stored in a buffer.
+ *
+ * <p>Unlike {@link IdemixLogEntry}, the view does not copy or decode the
+ * entry up front: every accessor reads its field directly from the buffer.
+ * A single view can be moved over all entries in a buffer with
+ * {@link #wrap(ByteBuffer, int)}, so processing a log does not allocate
+ * objects per entry.
+ */
+public class IdemixLogEntryView {
+
+	/**
+	 * Receiver of the log entries read from a card.
+	 */
+	public interface Visitor {
+		/**
+		 * @param entry the view on the entry, it is only valid during the
+		 *        call.
+		 * @return whether to continue with the next entry.
+		 */
+		boolean visit(IdemixLogEntryView entry);
+	}
+
+	private ByteBuffer buffer;
+	private int offset;
+
+	/**
+	 * Construct a view which is not yet positioned on an entry.
+	 */
+	public IdemixLogEntryView() {
+	}
+
+	/**
+	 * Position the view on an entry.
+	 *
+	 * @param buffer holding the entry.
+	 * @param offset of the entry in the buffer.
+	 * @return this view.
+	 */
+	public IdemixLogEntryView wrap(ByteBuffer buffer, int offset) {
+		this.buffer = buffer;
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * @return the buffer holding the entry.
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return the offset of the entry in the buffer.
+	 */
+	public int offset() {
+		return offset;
+	}
+
+	/**
+	 * @return the time of the logged action in seconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return buffer.getInt(offset + IdemixLogEntry.IDX_TIMESTAMP) & 0xffffffffL;
+	}
+
+	/**
+	 * @return the terminal identifier, big endian.
+	 */
+	public int getTerminal() {
+		return buffer.getInt(offset + IdemixLogEntry.IDX_TERMINAL);
+	}
+
+	/**
+	 * @return the raw action byte.
+	 */
+	public byte getActionByte() {
+		return buffer.get(offset + IdemixLogEntry.IDX_ACTION);
+	}
+
+	public IdemixLogEntry.Action getAction() {
+		switch (getActionByte()) {
+		case IdemixLogEntry.ACTION_ISSUE:
+			return IdemixLogEntry.Action.ISSUE;
+		case IdemixLogEntry.ACTION_PROVE:
+			return IdemixLogEntry.Action.VERIFY;
+		case IdemixLogEntry.ACTION_REMOVE:
+			return IdemixLogEntry.Action.REMOVE;
+		default:
+			return IdemixLogEntry.Action.NONE;
+		}
+	}
+
+	/**
+	 * @return whether the entry is an unused slot of the log.
+	 */
+	public boolean isEmpty() {
+		return getActionByte() == IdemixLogEntry.ACTION_NONE;
+	}
+
+	public short getCredential() {
+		return buffer.getShort(offset + IdemixLogEntry.IDX_CREDENTIAL);
+	}
+
+	/**
+	 * @return the disclosure mask of a verification, zero otherwise.
+	 */
+	public short getDisclose() {
+		return getActionByte() == IdemixLogEntry.ACTION_PROVE ?
+				buffer.getShort(offset + IdemixLogEntry.IDX_SELECTION) : 0;
+	}
+
+	/**
+	 * Copy the raw entry.
+	 *
+	 * @param dst to copy the entry to.
+	 * @param dstOffset in the destination.
+	 */
+	public void copyTo(byte[] dst, int dstOffset) {
+		for (int i = 0; i < IdemixLogEntry.SIZE; i++) {
+			dst[dstOffset + i] = buffer.get(offset + i);
+		}
+	}
+
+	/**
+	 * Compare the raw entry with another one.
+	 *
+	 * @param other buffer holding the other entry.
+	 * @param otherOffset of the other entry.
+	 * @return whether the entries are equal.
+	 */
+	public boolean equalsEntry(byte[] other, int otherOffset) {
+		for (int i = 0; i < IdemixLogEntry.SIZE; i++) {
+			if (buffer.get(offset + i) != other[otherOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return a decoded copy of the entry.
+	 */
+	public IdemixLogEntry toEntry() {
+		byte[] log = new byte[IdemixLogEntry.SIZE];
+		copyTo(log, 0);
+		return new IdemixLogEntry(log);
+	}
+
+	public String toString() {
+		byte[] log = new byte[IdemixLogEntry.SIZE];
+		copyTo(log, 0);
+		return Hex.bytesToHexString(log);
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * LatencyHistogram.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with microsecond resolution.
+ *
+ * <p>Buckets are logarithmic with four sub-buckets per power of two, so a
+ * reported percentile is at most 25% above the actual value.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 160;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param nanos the latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		buckets.incrementAndGet(bucket(micros));
+		total.addAndGet(micros);
+
+		long m = max.get();
+		while (micros > m && !max.compareAndSet(m, micros)) {
+			m = max.get();
+		}
+	}
+
+	/**
+	 * Take a snapshot of the recorded latencies.
+	 */
+	public LatencySnapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			n += counts[i];
+		}
+
+		return new LatencySnapshot(n, n == 0 ? 0 : total.get() / n,
+				percentile(counts, n, 0.50), percentile(counts, n, 0.90),
+				percentile(counts, n, 0.99), max.get());
+	}
+
+	/**
+	 * Forget all recorded latencies.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		total.set(0);
+		max.set(0);
+	}
+
+	private static long percentile(long[] counts, long n, double p) {
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p * n);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	static int bucket(long micros) {
+		if (micros < 4) {
+			return (int) micros;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) ((micros >>> (exp - 2)) & 3);
+		return Math.min(BUCKETS - 1, 4 * (exp - 1) + sub);
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < 4) {
+			return bucket;
+		}
+		int exp = bucket / 4 + 1;
+		int sub = bucket % 4;
+		return ((5L + sub) << (exp - 2)) - 1;
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * LatencySnapshot.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Summary of a {@link LatencyHistogram}, all latencies in microseconds.
+ */
+public class LatencySnapshot {
+
+	private final long count;
+	private final long mean;
+	private final long p50;
+	private final long p90;
+	private final long p99;
+	private final long max;
+
+	@ConstructorProperties({"count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "maxMicros"})
+	public LatencySnapshot(long count, long mean, long p50, long p90, long p99, long max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.max = max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMeanMicros() {
+		return mean;
+	}
+
+	public long getP50Micros() {
+		return p50;
+	}
+
+	public long getP90Micros() {
+		return p90;
+	}
+
+	public long getP99Micros() {
+		return p99;
+	}
+
+	public long getMaxMicros() {
+		return max;
+	}
+
+	public String toString() {
+		return String.format("n=%d mean=%dus p50=%dus p90=%dus p99=%dus max=%dus",
+				count, mean, p50, p90, p99, max);
+	}
+}
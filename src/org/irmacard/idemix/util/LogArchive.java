@@ -0,0 +1,378 @@
+/**
+ * LogArchive.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only archive of card log entries backed by a memory-mapped file.
+ *
+ * <p>Every record has a fixed size of {@value #RECORD_SIZE} bytes:
+ * <pre>
+ *   log entry:   16 bytes, as stored on the card
+ *   card id:      8 bytes
+ *   ingest time:  8 bytes, milliseconds since the epoch
+ * </pre>
+ * The file starts with a header of the same size holding a magic value and
+ * the number of records, which is only updated once a record has been
+ * written completely. The file is mapped in segments, which are added as
+ * the archive grows.
+ *
+ * <p>Records are read through a {@link Cursor}, which decodes the fields
+ * directly from the mapped file without allocating objects per record.
+ * Appending is serialised; cursors may be used concurrently with appends and
+ * see the records which were complete when they were created.
+ */
+public class LogArchive implements Closeable {
+
+	/**
+	 * Size of a record, and of the header, in bytes.
+	 */
+	public static final int RECORD_SIZE = 32;
+
+	/**
+	 * Default number of records per mapped segment (32 MiB).
+	 */
+	public static final int DEFAULT_SEGMENT_RECORDS = 1 << 20;
+
+	static final int IDX_CARD = IdemixLogEntry.SIZE;
+	static final int IDX_INGESTED = IDX_CARD + 8;
+
+	private static final long MAGIC = 0x49524d416c6f6701L; // "IRMAlog" 1
+	private static final int IDX_MAGIC = 0;
+	private static final int IDX_COUNT = 8;
+	private static final int IDX_SEGMENT_RECORDS = 16;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	private final int segmentRecords;
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+	private volatile long count;
+
+	private LogArchive(File f, int segmentRecords) throws IOException {
+		file = new RandomAccessFile(f, "rw");
+		channel = file.getChannel();
+		boolean created = channel.size() == 0;
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, RECORD_SIZE);
+
+		if (created) {
+			this.segmentRecords = segmentRecords;
+			header.putLong(IDX_MAGIC, MAGIC);
+			header.putLong(IDX_COUNT, 0);
+			header.putInt(IDX_SEGMENT_RECORDS, segmentRecords);
+			header.force();
+		} else {
+			if (header.getLong(IDX_MAGIC) != MAGIC) {
+				channel.close();
+				file.close();
+				throw new IOException(f + " is not a log archive");
+			}
+			this.segmentRecords = header.getInt(IDX_SEGMENT_RECORDS);
+		}
+		count = header.getLong(IDX_COUNT);
+	}
+
+	/**
+	 * Open an archive, creating it if the file does not exist.
+	 *
+	 * @param f the file backing the archive.
+	 * @return the archive.
+	 * @throws IOException if the file could not be opened or is not an
+	 *         archive.
+	 */
+	public static LogArchive open(File f) throws IOException {
+		return new LogArchive(f, DEFAULT_SEGMENT_RECORDS);
+	}
+
+	/**
+	 * Open an archive, creating it with a given segment size if the file
+	 * does not exist. The segment size of an existing archive is kept.
+	 *
+	 * @param f the file backing the archive.
+	 * @param segmentRecords the number of records per mapped segment.
+	 * @return the archive.
+	 * @throws IOException if the file could not be opened or is not an
+	 *         archive.
+	 */
+	public static LogArchive open(File f, int segmentRecords) throws IOException {
+		if (segmentRecords < 1 || (long) segmentRecords * RECORD_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid segment size: " + segmentRecords);
+		}
+		return new LogArchive(f, segmentRecords);
+	}
+
+	/**
+	 * @return the number of records in the archive.
+	 */
+	public long size() {
+		return count;
+	}
+
+	/**
+	 * Append a log entry.
+	 *
+	 * @param cardId identifier of the card the entry was read from.
+	 * @param entry the log entry.
+	 * @param ingested time the entry was read, in milliseconds since the
+	 *        epoch.
+	 * @throws IOException if the archive could not be extended.
+	 */
+	public void append(long cardId, IdemixLogEntry entry, long ingested) throws IOException {
+		append(cardId, entry.getBytes(), 0, ingested);
+	}
+
+	/**
+	 * Append a log entry from a view, copying it directly from the buffer.
+	 *
+	 * @param cardId identifier of the card the entry was read from.
+	 * @param entry view on the log entry.
+	 * @param ingested time the entry was read, in milliseconds since the
+	 *        epoch.
+	 * @throws IOException if the archive could not be extended.
+	 */
+	public synchronized void append(long cardId, IdemixLogEntryView entry, long ingested)
+			throws IOException {
+		ByteBuffer src = entry.buffer();
+		int offset = entry.offset();
+		long n = count;
+		ByteBuffer segment = segment(n, true);
+		int position = (int) (n % segmentRecords) * RECORD_SIZE;
+
+		for (int i = 0; i < IdemixLogEntry.SIZE; i++) {
+			segment.put(position + i, src.get(offset + i));
+		}
+		commit(segment, position, n, cardId, ingested);
+	}
+
+	/**
+	 * Append a raw log entry.
+	 *
+	 * @param cardId identifier of the card the entry was read from.
+	 * @param log buffer holding the raw log entry.
+	 * @param offset of the entry in the buffer.
+	 * @param ingested time the entry was read, in milliseconds since the
+	 *        epoch.
+	 * @throws IOException if the archive could not be extended.
+	 */
+	public synchronized void append(long cardId, byte[] log, int offset, long ingested)
+			throws IOException {
+		long n = count;
+		ByteBuffer segment = segment(n, true);
+		int position = (int) (n % segmentRecords) * RECORD_SIZE;
+
+		for (int i = 0; i < IdemixLogEntry.SIZE; i++) {
+			segment.put(position + i, log[offset + i]);
+		}
+		commit(segment, position, n, cardId, ingested);
+	}
+
+	/**
+	 * Complete a record of which the log entry has been written.
+	 */
+	private void commit(ByteBuffer segment, int position, long n, long cardId, long ingested) {
+		segment.putLong(position + IDX_CARD, cardId);
+		segment.putLong(position + IDX_INGESTED, ingested);
+
+		header.putLong(IDX_COUNT, n + 1);
+		count = n + 1;
+	}
+
+	/**
+	 * Flush the archive to the storage device.
+	 */
+	public synchronized void force() {
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+		header.force();
+	}
+
+	/**
+	 * Get a cursor over all records in the archive.
+	 */
+	public Cursor cursor() {
+		return cursor(0);
+	}
+
+	/**
+	 * Get a cursor over the records in the archive starting at a position.
+	 *
+	 * @param from index of the first record.
+	 */
+	public Cursor cursor(long from) {
+		return new Cursor(from, count);
+	}
+
+	public synchronized void close() throws IOException {
+		force();
+		segments.clear();
+		channel.close();
+		file.close();
+	}
+
+	/**
+	 * Get the mapped segment holding a record.
+	 */
+	private ByteBuffer segment(long record, boolean extend) throws IOException {
+		int index = (int) (record / segmentRecords);
+		synchronized (segments) {
+			while (segments.size() <= index) {
+				if (!extend && segments.size() * (long) segmentRecords >= count) {
+					throw new IndexOutOfBoundsException("Record " + record + " does not exist");
+				}
+				long start = RECORD_SIZE + segments.size() * (long) segmentRecords * RECORD_SIZE;
+				segments.add(channel.map(FileChannel.MapMode.READ_WRITE, start,
+						(long) segmentRecords * RECORD_SIZE));
+			}
+			return segments.get(index);
+		}
+	}
+
+	/**
+	 * Reusable view on the records of the archive. A cursor is positioned
+	 * before its first record; every call to {@link #next()} moves it to the
+	 * next record, after which the accessors decode the fields of that
+	 * record. A cursor is not thread-safe.
+	 */
+	public final class Cursor {
+		private long next;
+		private final long end;
+		private ByteBuffer segment = null;
+		private final IdemixLogEntryView view = new IdemixLogEntryView();
+
+		Cursor(long from, long end) {
+			this.next = from;
+			this.end = end;
+		}
+
+		/**
+		 * Move to the next record.
+		 *
+		 * @return whether there is a next record.
+		 * @throws IOException if the segment holding the record could not
+		 *         be mapped.
+		 */
+		public boolean next() throws IOException {
+			if (next >= end) {
+				return false;
+			}
+			int offset = (int) (next % segmentRecords);
+			if (segment == null || offset == 0) {
+				segment = segment(next, false);
+			}
+			view.wrap(segment, offset * RECORD_SIZE);
+			next++;
+			return true;
+		}
+
+		/**
+		 * Position the cursor before a record, so the next call to
+		 * {@link #next()} moves to that record.
+		 *
+		 * @param index of the record.
+		 */
+		public void seek(long index) {
+			if (index != next) {
+				next = index;
+				segment = null;
+			}
+		}
+
+		/**
+		 * @return the index of the current record in the archive.
+		 */
+		public long getIndex() {
+			return next - 1;
+		}
+
+		/**
+		 * @return a view on the log entry of the current record, it moves
+		 *         along with the cursor.
+		 */
+		public IdemixLogEntryView getEntry() {
+			return view;
+		}
+
+		public long getCardId() {
+			return segment.getLong(view.offset() + IDX_CARD);
+		}
+
+		/**
+		 * @return the ingest time in milliseconds since the epoch.
+		 */
+		public long getIngested() {
+			return segment.getLong(view.offset() + IDX_INGESTED);
+		}
+
+		/**
+		 * @return the time of the logged action in seconds since the epoch.
+		 */
+		public long getTimestamp() {
+			return view.getTimestamp();
+		}
+
+		/**
+		 * @return the terminal identifier, big endian.
+		 */
+		public int getTerminal() {
+			return view.getTerminal();
+		}
+
+		/**
+		 * @return the raw action byte.
+		 */
+		public byte getActionByte() {
+			return view.getActionByte();
+		}
+
+		public IdemixLogEntry.Action getAction() {
+			return view.getAction();
+		}
+
+		public short getCredential() {
+			return view.getCredential();
+		}
+
+		/**
+		 * @return the disclosure mask of a verification, zero otherwise.
+		 */
+		public short getDisclose() {
+			return view.getDisclose();
+		}
+
+		/**
+		 * Copy the raw log entry of the current record.
+		 *
+		 * @param buffer to copy the entry to.
+		 * @param offset in the buffer.
+		 */
+		public void getEntry(byte[] buffer, int offset) {
+			view.copyTo(buffer, offset);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/**
+ * LogIndex.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Block index over a {@link LogArchive}.
+ *
+ * <p>The archive is divided in blocks of consecutive records. For every
+ * block the index keeps the range of timestamps, the actions present and
+ * the union of the disclosure masks; for every credential and terminal it
+ * keeps the set of blocks containing it. A {@link LogQuery} is answered by
+ * combining these into the set of blocks which may hold a match, and only
+ * those blocks are read from the archive.
+ *
+ * <p>As the archive is append-only, {@link #update()} indexes the records
+ * appended since the previous update. The index lives in memory and is
+ * rebuilt from the archive when it is opened.
+ */
+public class LogIndex {
+
+	/**
+	 * Default number of records per block.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+	/**
+	 * Receiver of the records selected by a query.
+	 */
+	public interface Visitor {
+		/**
+		 * @param record the cursor positioned at the selected record, it
+		 *        is only valid during the call.
+		 * @return whether to continue with the next record.
+		 */
+		boolean visit(LogArchive.Cursor record);
+	}
+
+	private final LogArchive archive;
+	private final int blockSize;
+
+	private long indexed = 0;
+	private int blocks = 0;
+	private long[] minTimestamp = new long[16];
+	private long[] maxTimestamp = new long[16];
+	private byte[] actions = new byte[16];
+	private short[] disclose = new short[16];
+	private final Map<Short, BitSet> credentials = new HashMap<Short, BitSet>();
+	private final Map<Integer, BitSet> terminals = new HashMap<Integer, BitSet>();
+
+	private long blocksRead = 0;
+
+	/**
+	 * Construct an index with blocks of {@link #DEFAULT_BLOCK_SIZE} records,
+	 * indexing the current content of the archive.
+	 *
+	 * @param archive to index.
+	 * @throws IOException if the archive could not be read.
+	 */
+	public LogIndex(LogArchive archive) throws IOException {
+		this(archive, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Construct an index, indexing the current content of the archive.
+	 *
+	 * @param archive to index.
+	 * @param blockSize number of records per block.
+	 * @throws IOException if the archive could not be read.
+	 */
+	public LogIndex(LogArchive archive, int blockSize) throws IOException {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		this.archive = archive;
+		this.blockSize = blockSize;
+		update();
+	}
+
+	/**
+	 * Index the records appended to the archive since the last update.
+	 *
+	 * @return the number of newly indexed records.
+	 * @throws IOException if the archive could not be read.
+	 */
+	public synchronized long update() throws IOException {
+		long start = indexed;
+		LogArchive.Cursor record = archive.cursor(start);
+		while (record.next()) {
+			long i = record.getIndex();
+			int block = (int) (i / blockSize);
+			if (block == blocks) {
+				addBlock();
+			}
+
+			long timestamp = record.getTimestamp();
+			if (timestamp < minTimestamp[block]) {
+				minTimestamp[block] = timestamp;
+			}
+			if (timestamp > maxTimestamp[block]) {
+				maxTimestamp[block] = timestamp;
+			}
+			byte action = record.getActionByte();
+			if (action >= 0 && action <= 3) {
+				actions[block] |= 1 << action;
+			}
+			disclose[block] |= record.getDisclose();
+			mark(credentials, record.getCredential(), block);
+			mark(terminals, record.getTerminal(), block);
+			indexed = i + 1;
+		}
+		return indexed - start;
+	}
+
+	/**
+	 * @return the number of indexed records.
+	 */
+	public synchronized long size() {
+		return indexed;
+	}
+
+	/**
+	 * @return the number of blocks read from the archive by queries.
+	 */
+	public synchronized long getBlocksRead() {
+		return blocksRead;
+	}
+
+	/**
+	 * @return the number of blocks in the index.
+	 */
+	public synchronized int getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Count the records selected by a query.
+	 *
+	 * @param query selecting the records.
+	 * @return the number of selected records.
+	 * @throws IOException if the archive could not be read.
+	 */
+	public long count(LogQuery query) throws IOException {
+		final long[] count = new long[1];
+		query(query, new Visitor() {
+			public boolean visit(LogArchive.Cursor record) {
+				count[0]++;
+				return true;
+			}
+		});
+		return count[0];
+	}
+
+	/**
+	 * Pass the records selected by a query to a visitor, in archive order.
+	 *
+	 * @param query selecting the records.
+	 * @param visitor receiving the selected records.
+	 * @throws IOException if the archive could not be read.
+	 */
+	public synchronized void query(LogQuery query, Visitor visitor) throws IOException {
+		BitSet candidates = candidates(query);
+		LogArchive.Cursor record = archive.cursor(0);
+
+		for (int block = candidates.nextSetBit(0); block >= 0;
+				block = candidates.nextSetBit(block + 1)) {
+			if (!mayMatch(query, block)) {
+				continue;
+			}
+
+			blocksRead++;
+			long first = (long) block * blockSize;
+			long end = Math.min(first + blockSize, indexed);
+			record.seek(first);
+			for (long i = first; i < end && record.next(); i++) {
+				if (query.matches(record) && !visitor.visit(record)) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the blocks which may hold matches according to the credential
+	 * and terminal sets.
+	 */
+	private BitSet candidates(LogQuery query) {
+		BitSet result = null;
+		if (query.hasCredential) {
+			result = copy(credentials.get(query.credential));
+		}
+		if (query.hasTerminal) {
+			BitSet t = terminals.get(query.terminal);
+			if (result == null) {
+				result = copy(t);
+			} else if (t == null) {
+				result.clear();
+			} else {
+				result.and(t);
+			}
+		}
+		if (result == null) {
+			result = new BitSet(blocks);
+			result.set(0, blocks);
+		}
+		return result;
+	}
+
+	/**
+	 * Check the summary of a block against the query.
+	 */
+	private boolean mayMatch(LogQuery query, int block) {
+		if (maxTimestamp[block] < query.from || minTimestamp[block] >= query.to) {
+			return false;
+		}
+		if (query.actions != 0 && (actions[block] & query.actions) == 0) {
+			return false;
+		}
+		if ((disclose[block] & query.disclose) != query.disclose) {
+			return false;
+		}
+		return true;
+	}
+
+	private void addBlock() {
+		if (blocks == minTimestamp.length) {
+			int capacity = blocks * 2;
+			minTimestamp = Arrays.copyOf(minTimestamp, capacity);
+			maxTimestamp = Arrays.copyOf(maxTimestamp, capacity);
+			actions = Arrays.copyOf(actions, capacity);
+			disclose = Arrays.copyOf(disclose, capacity);
+		}
+		minTimestamp[blocks] = Long.MAX_VALUE;
+		maxTimestamp[blocks] = Long.MIN_VALUE;
+		blocks++;
+	}
+
+	private static <K> void mark(Map<K, BitSet> index, K key, int block) {
+		BitSet set = index.get(key);
+		if (set == null) {
+			set = new BitSet();
+			index.put(key, set);
+		}
+		set.set(block);
+	}
+
+	private static BitSet copy(BitSet set) {
+		return set == null ? new BitSet() : (BitSet) set.clone();
+	}
+
+	static byte actionByte(IdemixLogEntry.Action action) {
+		switch (action) {
+		case ISSUE:
+			return IdemixLogEntry.ACTION_ISSUE;
+		case VERIFY:
+			return IdemixLogEntry.ACTION_PROVE;
+		case REMOVE:
+			return IdemixLogEntry.ACTION_REMOVE;
+		default:
+			return IdemixLogEntry.ACTION_NONE;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * LogQuery.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.util.Date;
+
+/**
+ * Selection of archived log entries, evaluated by a {@link LogIndex}.
+ *
+ * <p>All conditions which are set must hold. For example, all verifications
+ * of credential 10 disclosing the attributes in mask 0x3E during the last
+ * week:
+ * <pre>
+ *   new LogQuery()
+ *       .action(IdemixLogEntry.Action.VERIFY)
+ *       .credential((short) 10)
+ *       .disclosing((short) 0x3E)
+ *       .since(new Date(System.currentTimeMillis() - 7 * 24 * 3600 * 1000L));
+ * </pre>
+ */
+public class LogQuery {
+
+	int actions = 0;
+	boolean hasCredential = false;
+	short credential;
+	boolean hasTerminal = false;
+	int terminal;
+	short disclose = 0;
+	long from = 0;
+	long to = Long.MAX_VALUE;
+
+	/**
+	 * Select entries of an action, may be called several times to select
+	 * entries of any of the actions.
+	 */
+	public LogQuery action(IdemixLogEntry.Action action) {
+		actions |= 1 << LogIndex.actionByte(action);
+		return this;
+	}
+
+	/**
+	 * Select entries of a credential.
+	 */
+	public LogQuery credential(short id) {
+		hasCredential = true;
+		credential = id;
+		return this;
+	}
+
+	/**
+	 * Select entries of a terminal.
+	 *
+	 * @param id the terminal identifier, big endian.
+	 */
+	public LogQuery terminal(int id) {
+		hasTerminal = true;
+		terminal = id;
+		return this;
+	}
+
+	/**
+	 * Select verifications disclosing at least the attributes in a mask.
+	 */
+	public LogQuery disclosing(short mask) {
+		disclose = mask;
+		return this;
+	}
+
+	/**
+	 * Select entries logged at or after a time.
+	 *
+	 * @param seconds since the epoch.
+	 */
+	public LogQuery from(long seconds) {
+		from = seconds;
+		return this;
+	}
+
+	/**
+	 * Select entries logged before a time.
+	 *
+	 * @param seconds since the epoch.
+	 */
+	public LogQuery to(long seconds) {
+		to = seconds;
+		return this;
+	}
+
+	/**
+	 * Select entries logged at or after a date.
+	 */
+	public LogQuery since(Date date) {
+		return from(date.getTime() / 1000);
+	}
+
+	/**
+	 * Select entries logged before a date.
+	 */
+	public LogQuery until(Date date) {
+		return to((date.getTime() + 999) / 1000);
+	}
+
+	/**
+	 * Check whether the current record of a cursor is selected.
+	 */
+	public boolean matches(LogArchive.Cursor record) {
+		long timestamp = record.getTimestamp();
+		if (timestamp < from || timestamp >= to) {
+			return false;
+		}
+		byte action = record.getActionByte();
+		if (actions != 0 && (action < 0 || action > 3 || (actions & (1 << action)) == 0)) {
+			return false;
+		}
+		if (hasCredential && record.getCredential() != credential) {
+			return false;
+		}
+		if (hasTerminal && record.getTerminal() != terminal) {
+			return false;
+		}
+		if (disclose != 0 && (record.getDisclose() & disclose) != disclose) {
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * LogWatermark.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Date;
+
+import net.sourceforge.scuba.util.Hex;
+
+/**
+ * The newest log entry of a card which has already been ingested.
+ *
+ * <p>The card returns its log newest first, so reading can stop at the
+ * first entry which is reached by the watermark: the ingested entry itself,
+ * any entry with an older timestamp, or an empty entry. Entries are compared
+ * on their raw bytes, as several entries may share a timestamp.
+ */
+public class LogWatermark implements Serializable {
+
+	private static final long serialVersionUID = -3419180260364431217L;
+
+	/**
+	 * Watermark of a card of which nothing has been ingested yet, reached
+	 * by the empty entries only.
+	 */
+	public static final LogWatermark NONE = new LogWatermark();
+
+	private final long timestamp;
+	private final byte[] entry;
+
+	private LogWatermark() {
+		timestamp = -1;
+		entry = null;
+	}
+
+	/**
+	 * Construct a watermark at a log entry.
+	 *
+	 * @param entry the newest ingested log entry.
+	 */
+	public LogWatermark(IdemixLogEntry entry) {
+		this(entry.getBytes());
+	}
+
+	/**
+	 * Construct a watermark at a raw log entry.
+	 *
+	 * @param entry the newest ingested log entry as stored on the card.
+	 */
+	public LogWatermark(byte[] entry) {
+		if (entry == null || entry.length != IdemixLogEntry.SIZE) {
+			throw new IllegalArgumentException("A log entry has " + IdemixLogEntry.SIZE + " bytes");
+		}
+		this.entry = entry.clone();
+		this.timestamp = timestamp(entry, 0);
+	}
+
+	/**
+	 * Check whether a log entry has already been ingested.
+	 *
+	 * @param log buffer holding the raw log entry.
+	 * @param offset of the entry in the buffer.
+	 * @return whether the entry, and hence all entries following it, have
+	 *         been ingested.
+	 */
+	public boolean isReached(byte[] log, int offset) {
+		if (log[offset + IdemixLogEntry.IDX_ACTION] == IdemixLogEntry.ACTION_NONE) {
+			return true;
+		}
+		if (entry == null) {
+			return false;
+		}
+		long t = timestamp(log, offset);
+		if (t != timestamp) {
+			return t < timestamp;
+		}
+		for (int i = 0; i < IdemixLogEntry.SIZE; i++) {
+			if (log[offset + i] != entry[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether a log entry has already been ingested.
+	 *
+	 * @param view on the log entry.
+	 * @return whether the entry, and hence all entries following it, have
+	 *         been ingested.
+	 */
+	public boolean isReached(IdemixLogEntryView view) {
+		if (view.isEmpty()) {
+			return true;
+		}
+		if (entry == null) {
+			return false;
+		}
+		long t = view.getTimestamp();
+		if (t != timestamp) {
+			return t < timestamp;
+		}
+		return view.equalsEntry(entry, 0);
+	}
+
+	/**
+	 * @return the time of the newest ingested entry, or null if nothing has
+	 *         been ingested.
+	 */
+	public Date getTimestamp() {
+		return entry == null ? null : new Date(timestamp * 1000);
+	}
+
+	/**
+	 * @return the watermark encoded as hexadecimal string.
+	 */
+	public String toHexString() {
+		return entry == null ? "" : Hex.bytesToHexString(entry);
+	}
+
+	/**
+	 * Decode a watermark encoded by {@link #toHexString()}.
+	 */
+	public static LogWatermark fromHexString(String hex) {
+		return hex == null || hex.length() == 0 ? NONE : new LogWatermark(Hex.hexStringToBytes(hex));
+	}
+
+	public boolean equals(Object o) {
+		return o instanceof LogWatermark && Arrays.equals(entry, ((LogWatermark) o).entry);
+	}
+
+	public int hashCode() {
+		return Arrays.hashCode(entry);
+	}
+
+	public String toString() {
+		return entry == null ? "none" : getTimestamp() + " (" + toHexString() + ")";
+	}
+
+	private Object readResolve() {
+		return entry == null ? NONE : this;
+	}
+
+	private static long timestamp(byte[] log, int offset) {
+		return ((log[offset] & 0xffL) << 24) | ((log[offset + 1] & 0xff) << 16)
+				| ((log[offset + 2] & 0xff) << 8) | (log[offset + 3] & 0xff);
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * LruCache.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache evicting the least recently used entry when it is full,
+ * counting its hits, misses and evictions.
+ *
+ * @param <K> type of the keys.
+ * @param <V> type of the cached values.
+ */
+public class LruCache<K, V> {
+
+	private final int capacity;
+	private final LinkedHashMap<K, V> entries;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Construct a new cache.
+	 *
+	 * @param capacity the maximum number of cached entries.
+	 */
+	public LruCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size() > LruCache.this.capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Look up a cached value.
+	 *
+	 * @param key of the value.
+	 * @return the cached value, or null if there is none.
+	 */
+	protected synchronized V get(K key) {
+		V value = entries.get(key);
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+
+	/**
+	 * Store a value, evicting the least recently used entry when the cache
+	 * is full.
+	 *
+	 * @param key of the value.
+	 * @param value to cache.
+	 */
+	protected synchronized void put(K key, V value) {
+		entries.put(key, value);
+	}
+
+	/**
+	 * Remove all cached entries, the metrics are kept.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Reset the metrics to zero, the cached entries are kept.
+	 */
+	public synchronized void resetMetrics() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	/**
+	 * @return the maximum number of cached entries.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of cached entries.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of lookups which found a cached entry.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups which found no cached entry.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of entries evicted to make room for others.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized String toString() {
+		return String.format("%d/%d entries, %d hits, %d misses, %d evictions",
+				entries.size(), capacity, hits, misses, evictions);
+	}
+}
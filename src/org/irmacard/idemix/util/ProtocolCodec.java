@@ -0,0 +1,357 @@
+/**
+ * ProtocolCodec.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ProtocolCommand;
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+import net.sourceforge.scuba.smartcards.ProtocolResponse;
+import net.sourceforge.scuba.smartcards.ProtocolResponses;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+/**
+ * Compact binary encoding of protocol commands and responses, for relaying
+ * them to the card over a channel of the integrator.
+ *
+ * <p>A message starts with a byte identifying its type, followed by the
+ * number of entries and the entries themselves. All counts and lengths are
+ * unsigned LEB128 varints:
+ * <pre>
+ *   message:  type (0x01 commands, 0x02 responses), count, entry*
+ *   entry:    key, length, APDU
+ *   keys:     type (0x03), count, key*
+ *   key:      tag = (prefix << 2) | suffix kind, suffix
+ * </pre>
+ * The prefix of a key refers to a fixed dictionary holding the keys used by
+ * {@link org.irmacard.idemix.IdemixSmartcard}, where 0 is the empty prefix.
+ * The remainder of the key is either absent (kind 0), a decimal number
+ * encoded as a varint (kind 1) or a UTF-8 string (kind 2, length and
+ * bytes). This way the keys of the card, including the numbered ones like
+ * "setattr3", take one or two bytes, while any other key is still
+ * preserved. The dictionary may only ever be extended at the end.
+ *
+ * <p>Descriptions and error messages of the commands are not encoded, since
+ * the card only needs the APDUs. A decoded command has its key as
+ * description and no error messages; the status words in the responses are
+ * interpreted by the side which built the commands.
+ */
+public class ProtocolCodec {
+
+	/**
+	 * Type of a message holding protocol commands.
+	 */
+	public static final byte TYPE_COMMANDS = 0x01;
+
+	/**
+	 * Type of a message holding protocol responses.
+	 */
+	public static final byte TYPE_RESPONSES = 0x02;
+
+	/**
+	 * Type of a message holding only the keys of protocol commands.
+	 */
+	public static final byte TYPE_KEYS = 0x03;
+
+	private static final int SUFFIX_NONE = 0;
+	private static final int SUFFIX_NUMBER = 1;
+	private static final int SUFFIX_STRING = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String[] DICTIONARY = {
+		"",
+		"selectapplet", "publickey_n", "publickey_z", "publickey_s",
+		"publickey_element", "publickey", "start_issuance", "startprove",
+		"generatesecret", "initauthmod", "initauthexp", "sendpin", "querypin",
+		"updatepin", "setattr", "attr_", "nonce_n1", "proof_c", "vHatPrime",
+		"proof_s_A", "nonce_n2", "signature_A", "signature_e", "vPrimePrime",
+		"proof_s_e", "issue_verify", "challenge_c", "signature_v", "master",
+		"getcredentials", "selectcredential", "removecredential",
+		"getcredflags", "getlog", "setcredflags", "cert_", "caExp", "caMod"
+	};
+
+	private static final Map<String, Integer> PREFIXES = new HashMap<String, Integer>();
+
+	static {
+		for (int i = 0; i < DICTIONARY.length; i++) {
+			PREFIXES.put(DICTIONARY[i], i);
+		}
+	}
+
+	private ProtocolCodec() {
+	}
+
+	/**
+	 * Encode a batch of commands.
+	 *
+	 * @param commands the commands, in the order they are sent to the card.
+	 * @return the encoded message.
+	 */
+	public static byte[] encode(ProtocolCommands commands) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(TYPE_COMMANDS);
+		writeVarint(out, commands.size());
+		for (ProtocolCommand command : commands) {
+			writeKey(out, command.getKey());
+			writeBytes(out, command.getAPDU().getBytes());
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode the responses to a batch of commands.
+	 *
+	 * @param responses the responses.
+	 * @return the encoded message.
+	 */
+	public static byte[] encode(ProtocolResponses responses) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(TYPE_RESPONSES);
+		writeVarint(out, responses.size());
+		for (Map.Entry<String, ProtocolResponse> entry : responses.entrySet()) {
+			writeKey(out, entry.getKey());
+			writeBytes(out, entry.getValue().getAPDU().getBytes());
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode the keys of a batch of commands, for example to remember
+	 * which responses are expected.
+	 *
+	 * @param keys the keys.
+	 * @return the encoded message.
+	 */
+	public static byte[] encodeKeys(String[] keys) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(TYPE_KEYS);
+		writeVarint(out, keys.length);
+		for (String key : keys) {
+			writeKey(out, key);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode a batch of commands.
+	 *
+	 * @param message as produced by {@link #encode(ProtocolCommands)}.
+	 * @return the commands, in their original order.
+	 * @throws IllegalArgumentException if the message is malformed.
+	 */
+	public static ProtocolCommands decodeCommands(byte[] message) {
+		Reader in = new Reader(message, TYPE_COMMANDS);
+		int count = in.readCount();
+		ProtocolCommands commands = new ProtocolCommands();
+		for (int i = 0; i < count; i++) {
+			String key = in.readKey();
+			commands.add(new ProtocolCommand(key, key, new CommandAPDU(in.readBytes())));
+		}
+		in.finish();
+		return commands;
+	}
+
+	/**
+	 * Decode the responses to a batch of commands.
+	 *
+	 * @param message as produced by {@link #encode(ProtocolResponses)}.
+	 * @return the responses.
+	 * @throws IllegalArgumentException if the message is malformed.
+	 */
+	public static ProtocolResponses decodeResponses(byte[] message) {
+		Reader in = new Reader(message, TYPE_RESPONSES);
+		int count = in.readCount();
+		ProtocolResponses responses = new ProtocolResponses();
+		for (int i = 0; i < count; i++) {
+			String key = in.readKey();
+			byte[] apdu = in.readBytes();
+			if (apdu.length < 2) {
+				throw new IllegalArgumentException("Response without status word: " + key);
+			}
+			responses.put(key, new ProtocolResponse(key, new ResponseAPDU(apdu)));
+		}
+		in.finish();
+		return responses;
+	}
+
+	/**
+	 * Decode the keys of a batch of commands.
+	 *
+	 * @param message as produced by {@link #encodeKeys(String[])}.
+	 * @return the keys.
+	 * @throws IllegalArgumentException if the message is malformed.
+	 */
+	public static String[] decodeKeys(byte[] message) {
+		Reader in = new Reader(message, TYPE_KEYS);
+		int count = in.readVarint();
+		if (count > message.length) {
+			throw new IllegalArgumentException("Invalid number of keys: " + count);
+		}
+		String[] keys = new String[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = in.readKey();
+		}
+		in.finish();
+		return keys;
+	}
+
+	private static void writeKey(ByteArrayOutputStream out, String key) {
+		Integer known = PREFIXES.get(key);
+		if (known != null) {
+			writeVarint(out, known << 2 | SUFFIX_NONE);
+			return;
+		}
+
+		// Longest prefix from the dictionary
+		int prefix = 0;
+		for (int i = 1; i < DICTIONARY.length; i++) {
+			if (key.startsWith(DICTIONARY[i])
+					&& DICTIONARY[i].length() > DICTIONARY[prefix].length()) {
+				prefix = i;
+			}
+		}
+		String suffix = key.substring(DICTIONARY[prefix].length());
+
+		if (suffix.length() == 0) {
+			writeVarint(out, prefix << 2 | SUFFIX_NONE);
+		} else if (isNumber(suffix)) {
+			writeVarint(out, prefix << 2 | SUFFIX_NUMBER);
+			writeVarint(out, Integer.parseInt(suffix));
+		} else {
+			writeVarint(out, prefix << 2 | SUFFIX_STRING);
+			writeBytes(out, suffix.getBytes(UTF8));
+		}
+	}
+
+	/**
+	 * Whether a string is the canonical decimal form of a number fitting a
+	 * varint, so that it is restored exactly.
+	 */
+	private static boolean isNumber(String s) {
+		if (s.length() > 9 || (s.length() > 1 && s.charAt(0) == '0')) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Position in a message being decoded.
+	 */
+	private static final class Reader {
+		private final byte[] message;
+		private int offset;
+
+		Reader(byte[] message, byte type) {
+			if (message.length == 0 || message[0] != type) {
+				throw new IllegalArgumentException("Not a message of type " + type);
+			}
+			this.message = message;
+			this.offset = 1;
+		}
+
+		/**
+		 * Read a count of entries, which all take at least two bytes.
+		 */
+		int readCount() {
+			int count = readVarint();
+			if (count > (message.length - offset) / 2) {
+				throw new IllegalArgumentException("Invalid number of entries: " + count);
+			}
+			return count;
+		}
+
+		String readKey() {
+			int tag = readVarint();
+			int prefix = tag >>> 2;
+			if (prefix >= DICTIONARY.length) {
+				throw new IllegalArgumentException("Unknown key prefix: " + prefix);
+			}
+			switch (tag & 0x03) {
+			case SUFFIX_NONE:
+				return DICTIONARY[prefix];
+			case SUFFIX_NUMBER:
+				return DICTIONARY[prefix] + readVarint();
+			case SUFFIX_STRING:
+				return DICTIONARY[prefix] + new String(readBytes(), UTF8);
+			default:
+				throw new IllegalArgumentException("Unknown key suffix: " + (tag & 0x03));
+			}
+		}
+
+		byte[] readBytes() {
+			int length = readVarint();
+			if (length > message.length - offset) {
+				throw new IllegalArgumentException("Truncated message");
+			}
+			offset += length;
+			return Arrays.copyOfRange(message, offset - length, offset);
+		}
+
+		int readVarint() {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				if (offset >= message.length) {
+					throw new IllegalArgumentException("Truncated message");
+				}
+				int b = message[offset++];
+				if (shift == 28 && (b & 0x70) != 0) {
+					// These bits do not fit in an int
+					break;
+				}
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					if (value < 0) {
+						break;
+					}
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Invalid varint");
+		}
+
+		void finish() {
+			if (offset != message.length) {
+				throw new IllegalArgumentException("Trailing bytes in message");
+			}
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * SignatureValuePool.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.util;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ibm.zurich.idmx.utils.SystemParameters;
+
+/**
+ * Pool of precomputed random values for issuer signatures.
+ *
+ * <p>Every signature needs a fresh prime e from
+ * [2^(l_e - 1), 2^(l_e - 1) + 2^(l_ePrime - 1)] and a random v'' of l_v
+ * bits. Finding the prime dominates the work of the issuer outside the
+ * modular exponentiations, so background threads generate these values in
+ * advance and buffer them, and signing only takes a buffered pair.
+ *
+ * <p>The values only depend on the lengths in the system parameters, hence
+ * there is one buffer per combination of l_e, l_ePrime and l_v shared by all
+ * issuer keys using them. When a buffer runs empty the values are generated
+ * by the caller, so taking values never waits for the background threads.
+ *
+ * <p>{@link org.irmacard.idemix.PooledIssuer} signs with these values.
+ */
+public class SignatureValuePool {
+
+	/**
+	 * Default number of values buffered per set of system parameters.
+	 */
+	public static final int DEFAULT_CAPACITY = 32;
+
+	/**
+	 * Certainty of the primality tests, as used by the Idemix library.
+	 */
+	private static final int PRIME_CERTAINTY = 80;
+
+	/**
+	 * The random values for a single signature.
+	 */
+	public static final class Randomness {
+		private final BigInteger e;
+		private final BigInteger vPrimePrime;
+
+		Randomness(BigInteger e, BigInteger vPrimePrime) {
+			this.e = e;
+			this.vPrimePrime = vPrimePrime;
+		}
+
+		/**
+		 * @return the prime exponent of the signature.
+		 */
+		public BigInteger getE() {
+			return e;
+		}
+
+		/**
+		 * @return the issuer part of the randomisation of the signature.
+		 */
+		public BigInteger getVPrimePrime() {
+			return vPrimePrime;
+		}
+	}
+
+	private static final Random RANDOM = new SecureRandom();
+
+	private final int capacity;
+	private final ExecutorService executor;
+	private final ConcurrentMap<String, Buffer> buffers = new ConcurrentHashMap<String, Buffer>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Construct a pool buffering {@link #DEFAULT_CAPACITY} values per set of
+	 * system parameters, filled by half of the available processors.
+	 */
+	public SignatureValuePool() {
+		this(DEFAULT_CAPACITY, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+	}
+
+	/**
+	 * Construct a pool.
+	 *
+	 * @param capacity the number of values buffered per set of system
+	 *        parameters.
+	 * @param threads the number of background threads generating values.
+	 */
+	public SignatureValuePool(int capacity, int threads) {
+		if (capacity < 1 || threads < 1) {
+			throw new IllegalArgumentException("Capacity and threads must be positive");
+		}
+		this.capacity = capacity;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "signature-values-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Start filling the buffer for a set of system parameters, for example
+	 * when an issuance starts.
+	 */
+	public void prepare(SystemParameters sp) {
+		prepare(sp.getL_e(), sp.getL_ePrime(), sp.getL_v());
+	}
+
+	/**
+	 * Start filling the buffer for a set of lengths.
+	 */
+	public void prepare(int l_e, int l_ePrime, int l_v) {
+		buffer(l_e, l_ePrime, l_v).refill();
+	}
+
+	/**
+	 * Take the values for a signature.
+	 *
+	 * @param sp the system parameters of the issuer key.
+	 * @return values which have not been handed out before.
+	 */
+	public Randomness take(SystemParameters sp) {
+		return take(sp.getL_e(), sp.getL_ePrime(), sp.getL_v());
+	}
+
+	/**
+	 * Take the values for a signature.
+	 *
+	 * @param l_e the bit length of e.
+	 * @param l_ePrime the bit length of the interval e is chosen from.
+	 * @param l_v the bit length of v.
+	 * @return values which have not been handed out before.
+	 */
+	public Randomness take(int l_e, int l_ePrime, int l_v) {
+		Buffer buffer = buffer(l_e, l_ePrime, l_v);
+		Randomness values = buffer.values.poll();
+		buffer.refill();
+		if (values != null) {
+			hits.incrementAndGet();
+			return values;
+		}
+		misses.incrementAndGet();
+		return generate(l_e, l_ePrime, l_v, RANDOM);
+	}
+
+	/**
+	 * @return the number of buffered values for a set of system parameters.
+	 */
+	public int available(SystemParameters sp) {
+		return available(sp.getL_e(), sp.getL_ePrime(), sp.getL_v());
+	}
+
+	/**
+	 * @return the number of buffered values for a set of lengths.
+	 */
+	public int available(int l_e, int l_ePrime, int l_v) {
+		Buffer buffer = buffers.get(key(l_e, l_ePrime, l_v));
+		return buffer == null ? 0 : buffer.values.size();
+	}
+
+	/**
+	 * @return the number of values taken from a buffer.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of values generated by the caller because the
+	 *         buffer was empty.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Stop the background threads, values can still be taken afterwards.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Generate the values for a signature.
+	 *
+	 * @param l_e the bit length of e.
+	 * @param l_ePrime the bit length of the interval e is chosen from.
+	 * @param l_v the bit length of v.
+	 * @param random source of randomness.
+	 * @return the values.
+	 */
+	public static Randomness generate(int l_e, int l_ePrime, int l_v, Random random) {
+		BigInteger offset = BigInteger.ONE.shiftLeft(l_e - 1);
+		BigInteger e;
+		do {
+			e = offset.add(new BigInteger(l_ePrime - 1, random));
+		} while (!e.isProbablePrime(PRIME_CERTAINTY));
+
+		BigInteger vPrimePrime = BigInteger.ONE.shiftLeft(l_v - 1)
+				.add(new BigInteger(l_v - 1, random));
+		return new Randomness(e, vPrimePrime);
+	}
+
+	private Buffer buffer(int l_e, int l_ePrime, int l_v) {
+		String key = key(l_e, l_ePrime, l_v);
+		Buffer buffer = buffers.get(key);
+		if (buffer == null) {
+			buffer = new Buffer(l_e, l_ePrime, l_v);
+			Buffer existing = buffers.putIfAbsent(key, buffer);
+			if (existing != null) {
+				buffer = existing;
+			}
+		}
+		return buffer;
+	}
+
+	private static String key(int l_e, int l_ePrime, int l_v) {
+		return l_e + "/" + l_ePrime + "/" + l_v;
+	}
+
+	/**
+	 * Values for one set of lengths, with the number of values being
+	 * generated for it.
+	 */
+	private final class Buffer implements Runnable {
+		private final int l_e;
+		private final int l_ePrime;
+		private final int l_v;
+		private final BlockingQueue<Randomness> values;
+		private final AtomicInteger pending = new AtomicInteger();
+
+		Buffer(int l_e, int l_ePrime, int l_v) {
+			this.l_e = l_e;
+			this.l_ePrime = l_ePrime;
+			this.l_v = l_v;
+			this.values = new ArrayBlockingQueue<Randomness>(capacity);
+		}
+
+		/**
+		 * Schedule the generation of the values missing from the buffer.
+		 */
+		void refill() {
+			while (true) {
+				int p = pending.get();
+				if (values.size() + p >= capacity) {
+					return;
+				}
+				if (pending.compareAndSet(p, p + 1)) {
+					try {
+						executor.execute(this);
+					} catch (RejectedExecutionException e) {
+						pending.decrementAndGet();
+						return;
+					}
+				}
+			}
+		}
+
+		public void run() {
+			try {
+				values.offer(generate(l_e, l_ePrime, l_v, RANDOM));
+			} finally {
+				pending.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * TestApduTrace.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Vector;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.util.ApduTrace;
+import org.junit.Test;
+
+public class TestApduTrace {
+
+    @Test
+    public void disabledByDefault() throws CardServiceException {
+        IdemixService is = new IdemixService(new IdemixCardSimulator());
+        assertFalse(is.getTrace().isEnabled());
+    }
+
+    @Test
+    public void traceExchange() throws CardServiceException, InterruptedException {
+        final List<String> lines = new Vector<String>();
+        ApduTrace trace = new ApduTrace(new ApduTrace.Sink() {
+            public void trace(String line) {
+                lines.add(line);
+            }
+        });
+
+        IdemixService is = new IdemixService(new IdemixCardSimulator());
+        is.setTrace(trace);
+        is.open();
+        trace.flush();
+
+        // select: command, duration, response and the version message
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).startsWith("C: 00A40400"));
+        assertTrue(lines.get(2).startsWith("R: 6F"));
+        assertTrue(lines.get(2).endsWith("9000"));
+        assertEquals("Found card application: 0.8.1", lines.get(3));
+        assertEquals(0, trace.getDropped());
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * TestAsyncIdemixService.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import org.irmacard.idemix.AsyncIdemixService;
+import org.irmacard.idemix.CardJob;
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.junit.Test;
+
+public class TestAsyncIdemixService {
+
+    @Test
+    public void reportCardException() throws Exception {
+        AsyncIdemixService as = new AsyncIdemixService(
+                new IdemixService(new IdemixCardSimulator()));
+        as.open();
+
+        // The card PIN has not been verified yet
+        CompletableFuture<Vector<Integer>> credentials = as.getCredentials();
+        try {
+            credentials.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CardServiceException);
+            assertEquals(0x6982, ((CardServiceException) e.getCause()).getSW());
+        }
+
+        assertEquals(Integer.valueOf(-1), as.sendCardPin(TestSimulator.DEFAULT_CARD_PIN).get());
+        assertEquals(0, as.getCredentials().get().size());
+        as.close().get();
+    }
+
+    @Test
+    public void serialiseOnSharedPool() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        List<AsyncIdemixService> cards = new ArrayList<AsyncIdemixService>();
+        for (int i = 0; i < 8; i++) {
+            AsyncIdemixService as = new AsyncIdemixService(
+                    new IdemixService(new IdemixCardSimulator()), pool);
+            as.open();
+            cards.add(as);
+        }
+
+        // Operations on a card run in order: the PIN is verified first
+        List<CompletableFuture<Vector<Integer>>> results =
+                new ArrayList<CompletableFuture<Vector<Integer>>>();
+        for (AsyncIdemixService as : cards) {
+            as.sendCardPin(TestSimulator.DEFAULT_CARD_PIN);
+            results.add(as.getCredentials());
+        }
+        for (CompletableFuture<Vector<Integer>> result : results) {
+            assertEquals(0, result.get().size());
+        }
+
+        final Thread[] running = new Thread[1];
+        cards.get(0).submit(new CardJob<Void>() {
+            public Void run(IdemixService service) {
+                running[0] = Thread.currentThread();
+                return null;
+            }
+        }).get();
+        assertTrue(running[0].getName().startsWith("pool-"));
+        pool.shutdown();
+    }
+
+    /**
+     * Pool accepting tasks only while it is open.
+     */
+    private static class GatedPool implements Executor {
+        final ExecutorService threads = Executors.newSingleThreadExecutor();
+        volatile boolean open = true;
+
+        public void execute(Runnable task) {
+            if (!open) {
+                throw new RejectedExecutionException("saturated");
+            }
+            threads.execute(task);
+        }
+    }
+
+    @Test
+    public void rejectWhenPoolSaturated() throws Exception {
+        final GatedPool pool = new GatedPool();
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncIdemixService as = new AsyncIdemixService(
+                new IdemixService(new IdemixCardSimulator()), pool);
+
+        CompletableFuture<Void> first = as.submit(new CardJob<Void>() {
+            public Void run(IdemixService service) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        });
+        CompletableFuture<Void> queued = as.open();
+        pool.open = false;
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+
+        // Rejected from the pool thread completing the first job
+        assertRejected(queued);
+        assertRejected(as.open());
+
+        pool.open = true;
+        as.open().get(5, TimeUnit.SECONDS);
+        pool.threads.shutdown();
+    }
+
+    private static void assertRejected(CompletableFuture<Void> result) throws Exception {
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("Ran a job rejected by the pool");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * TestBatchVerifier.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.irmacard.idemix.BatchVerifier;
+import org.irmacard.idemix.ProofVerifier;
+import org.junit.Test;
+
+import com.ibm.zurich.idmx.showproof.Proof;
+import com.ibm.zurich.idmx.showproof.ProofSpec;
+
+public class TestBatchVerifier {
+
+    /**
+     * Verifier rejecting a fixed set of proofs.
+     */
+    private static class FakeVerifier extends ProofVerifier {
+        final Set<Proof> bad = Collections.synchronizedSet(new HashSet<Proof>());
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+
+        public boolean verify(ProofSpec spec, Proof proof, BigInteger nonce) {
+            threads.add(Thread.currentThread().getName());
+            return !bad.contains(proof);
+        }
+    }
+
+    @Test
+    public void identifyBadProofs() throws Exception {
+        FakeVerifier verifier = new FakeVerifier();
+        List<Proof> proofs = new ArrayList<Proof>();
+        List<BigInteger> nonces = new ArrayList<BigInteger>();
+        for (int i = 0; i < 100; i++) {
+            Proof proof = new Proof(BigInteger.valueOf(i), null, null);
+            proofs.add(proof);
+            nonces.add(BigInteger.valueOf(i));
+            if (i % 33 == 5) {
+                verifier.bad.add(proof);
+            }
+        }
+
+        BatchVerifier batch = new BatchVerifier(verifier, 4);
+        BatchVerifier.Result result = batch.verify(null, proofs, nonces);
+        assertEquals(100, result.size());
+        assertFalse(result.isAllValid());
+        assertEquals(Arrays.asList(5, 38, 71), result.getInvalid());
+        assertTrue(result.isValid(0));
+        assertEquals(4, result.getThreads());
+        assertEquals(4, verifier.threads.size());
+        batch.shutdown();
+    }
+
+    @Test
+    public void smallBatch() throws Exception {
+        BatchVerifier batch = new BatchVerifier(new FakeVerifier(), 8);
+        BatchVerifier.Result result = batch.verify(null,
+                Collections.singletonList(new Proof(BigInteger.ONE, null, null)),
+                Collections.singletonList(BigInteger.ONE));
+        assertTrue(result.isAllValid());
+        assertEquals(1, result.getThreads());
+        batch.shutdown();
+    }
+}
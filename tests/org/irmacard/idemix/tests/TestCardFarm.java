@@ -0,0 +1,218 @@
+/**
+ * TestCardFarm.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+import org.irmacard.idemix.CardFarm;
+import org.irmacard.idemix.CardJob;
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.junit.Test;
+
+public class TestCardFarm {
+
+    private static final CardJob<Integer> QUERY_PIN = new CardJob<Integer>() {
+        public Integer run(IdemixService service) throws CardServiceException {
+            return service.queryCredentialPin();
+        }
+    };
+
+    @Test
+    public void distributeJobs() throws Exception {
+        CardFarm farm = new CardFarm(4);
+        for (int i = 0; i < 4; i++) {
+            IdemixCardSimulator card = new IdemixCardSimulator();
+            card.setLatency(2, TimeUnit.MILLISECONDS);
+            farm.addCard("card " + i, card);
+        }
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 40; i++) {
+            results.add(farm.submit(QUERY_PIN));
+        }
+        for (Future<Integer> result : results) {
+            assertEquals(Integer.valueOf(3), result.get());
+        }
+
+        farm.shutdown();
+        assertTrue(farm.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(40, farm.getCompleted());
+        assertEquals(0, farm.getSubmitted() - farm.getCompleted());
+    }
+
+    @Test
+    public void reportFailure() throws Exception {
+        CardFarm farm = new CardFarm(1);
+        farm.addCard("card", new IdemixCardSimulator());
+
+        Future<Integer> result = farm.submit(new CardJob<Integer>() {
+            public Integer run(IdemixService service) throws CardServiceException {
+                return service.sendCardPin(new byte[] {0x31, 0x31, 0x31, 0x31, 0x31, 0x31});
+            }
+        });
+        assertEquals(Integer.valueOf(2), result.get());
+
+        result = farm.submit(new CardJob<Integer>() {
+            public Integer run(IdemixService service) throws CardServiceException {
+                throw new CardServiceException("removed");
+            }
+        });
+        try {
+            result.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof CardServiceException);
+        }
+        farm.shutdown();
+        farm.awaitTermination(5, TimeUnit.SECONDS);
+        assertEquals(1, farm.getFailed());
+    }
+
+    @Test
+    public void backpressure() throws Exception {
+        // No cards, so the queue fills up
+        CardFarm farm = new CardFarm(2);
+        farm.submit(QUERY_PIN);
+        farm.submit(QUERY_PIN);
+        assertNull(farm.submit(QUERY_PIN, 10, TimeUnit.MILLISECONDS));
+        assertEquals(2, farm.getQueued());
+    }
+
+    @Test
+    public void failQueuedOnShutdown() throws Exception {
+        CardFarm farm = new CardFarm(2);
+        Future<Integer> result = farm.submit(QUERY_PIN);
+        farm.shutdown();
+        assertRejected(result);
+        assertEquals(0, farm.getQueued());
+        try {
+            farm.submit(QUERY_PIN);
+            fail("Accepted a job after the shutdown");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failQueuedWhenLastCardRemoved() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        CardFarm farm = new CardFarm(2);
+        farm.addCard("card", new IdemixCardSimulator());
+
+        Future<Integer> running = farm.submit(new CardJob<Integer>() {
+            public Integer run(IdemixService service) throws CardServiceException {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new CardServiceException("interrupted");
+                }
+                return service.queryCredentialPin();
+            }
+        });
+        started.await();
+        Future<Integer> queued = farm.submit(QUERY_PIN);
+        farm.removeCard("card");
+        release.countDown();
+
+        assertEquals(Integer.valueOf(3), running.get());
+        assertRejected(queued);
+        assertEquals(1, farm.getFailed());
+    }
+
+    @Test
+    public void reportCardFailure() throws Exception {
+        CardFarm farm = new CardFarm(2);
+        Future<Integer> queued = farm.submit(QUERY_PIN);
+        farm.addCard("broken", new IdemixCardSimulator() {
+            public void open() throws CardServiceException {
+                throw new CardServiceException("no card");
+            }
+        });
+
+        Throwable cause = assertRejected(queued);
+        assertTrue(cause.getCause() instanceof CardServiceException);
+        assertEquals(1, farm.getCardFailures());
+    }
+
+    @Test
+    public void removeDeadCard() throws Exception {
+        CardFarm farm = new CardFarm(20);
+        IdemixCardSimulator healthy = new IdemixCardSimulator();
+        healthy.setLatency(2, TimeUnit.MILLISECONDS);
+        farm.addCard("healthy", healthy);
+        // Pulled after the applet was selected
+        farm.addCard("dead", new IdemixCardSimulator() {
+            public ResponseAPDU transmit(CommandAPDU capdu) throws CardServiceException {
+                if ((byte) capdu.getINS() == (byte) 0xA4) {
+                    return super.transmit(capdu);
+                }
+                throw new CardServiceException("Card removed");
+            }
+        });
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 20; i++) {
+            results.add(farm.submit(QUERY_PIN));
+        }
+        int completed = 0;
+        for (Future<Integer> result : results) {
+            try {
+                assertEquals(Integer.valueOf(3), result.get(5, TimeUnit.SECONDS));
+                completed++;
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof CardServiceException);
+            }
+        }
+
+        assertTrue(completed >= 19);
+        assertEquals(20 - completed, farm.getFailed());
+        assertEquals(1, farm.size());
+        assertTrue(farm.getJobsPerCard().containsKey("healthy"));
+        farm.shutdown();
+        assertTrue(farm.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    private static Throwable assertRejected(Future<Integer> result) throws Exception {
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("Ran a job without a card");
+            return null;
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+            return e.getCause();
+        }
+    }
+}
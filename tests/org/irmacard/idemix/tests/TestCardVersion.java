@@ -0,0 +1,78 @@
+/**
+ * TestCardVersion.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.CardVersion.Feature;
+import org.junit.Test;
+
+public class TestCardVersion {
+
+    @Test
+    public void legacyFeatures() {
+        CardVersion cv = new CardVersion(0, 7, 2);
+        assertFalse(cv.supports(Feature.PROTOCOL_0_8));
+        assertFalse(cv.supports(Feature.PIN_QUERY));
+        assertFalse(cv.supports(Feature.AUTHENTICATION_KEY));
+        assertFalse(cv.supports(Feature.CERTIFICATE_VERIFICATION));
+    }
+
+    @Test
+    public void alphaFeatures() {
+        CardVersion cv = new CardVersion(0, 8, null, "alpha", 1);
+        assertTrue(cv.supports(Feature.PROTOCOL_0_8));
+        assertTrue(cv.supports(Feature.PIN_QUERY));
+        assertFalse(cv.supports(Feature.AUTHENTICATION_KEY));
+        assertFalse(cv.supports(Feature.CERTIFICATE_VERIFICATION));
+    }
+
+    @Test
+    public void releaseFeatures() {
+        CardVersion cv = new CardVersion(0, 8, 1);
+        for (Feature feature : Feature.values()) {
+            assertEquals(feature != Feature.EXTENDED_LENGTH_COMMANDS, cv.supports(feature));
+        }
+    }
+
+    @Test
+    public void extendedLengthCommands() {
+        assertTrue(new CardVersion(0, 8, 1, "ext").supports(Feature.EXTENDED_LENGTH_COMMANDS));
+        assertFalse(new CardVersion(0, 7, 2, "ext").supports(Feature.EXTENDED_LENGTH_COMMANDS));
+
+        byte[] data = { (byte) 0xA5, 0x12, 0x10, 0x10, 0x02, 0x01, 0x00,
+                0x02, 0x01, 0x08, 0x02, 0x01, 0x01, 0x10, 0x05, 0x0C, 0x03, 0x65, 0x78, 0x74 };
+        CardVersion cv = new CardVersion(data);
+        assertEquals(new CardVersion(0, 8, 1), cv);
+        assertEquals(CardVersion.Type.RELEASE, cv.getType());
+        assertTrue(cv.supports(Feature.EXTENDED_LENGTH_COMMANDS));
+    }
+
+    @Test
+    public void parseSelectResponse() {
+        byte[] data = { (byte) 0xA5, 0x0B, 0x10, 0x09, 0x02, 0x01, 0x00,
+                0x02, 0x01, 0x08, 0x02, 0x01, 0x01 };
+        CardVersion cv = new CardVersion(data);
+        assertEquals(new CardVersion(0, 8, 1), cv);
+        assertEquals(new CardVersion(0, 8, 1).hashCode(), cv.hashCode());
+        assertEquals(CardVersion.Type.RELEASE, cv.getType());
+    }
+}
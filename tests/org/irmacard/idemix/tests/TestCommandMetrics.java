@@ -0,0 +1,80 @@
+/**
+ * TestCommandMetrics.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.util.CommandMetrics;
+import org.irmacard.idemix.util.LatencySnapshot;
+import org.junit.Test;
+
+public class TestCommandMetrics {
+
+    @Test
+    public void recordSession() throws CardServiceException {
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        card.setLatency(2, TimeUnit.MILLISECONDS);
+        CommandMetrics metrics = new CommandMetrics();
+        IdemixService is = new IdemixService(card);
+        is.setMetrics(metrics);
+        is.open();
+        is.sendCardPin(new byte[] {0x31, 0x31, 0x31, 0x31, 0x31, 0x31});
+        is.sendCardPin(TestSimulator.DEFAULT_CARD_PIN);
+        is.getLogEntries();
+
+        assertEquals(card.getTransmitted(), metrics.getCommands());
+        assertEquals(1, metrics.getFailures());
+        assertEquals(Long.valueOf(1), metrics.getFailuresByStatusWord().get("63C2"));
+
+        LatencySnapshot pin = metrics.getCommandLatency("sendpin");
+        assertEquals(2, pin.getCount());
+        assertEquals(2, metrics.getInstructionLatency((byte) 0x20).getCount());
+        assertTrue(pin.getP50Micros() >= 2000);
+        assertTrue(pin.getMaxMicros() >= pin.getP99Micros() * 4 / 5);
+
+        LatencySnapshot log = metrics.getCommandLatencies().get("getlog");
+        assertNotNull(log);
+        assertEquals(2, log.getCount());
+    }
+
+    @Test
+    public void register() throws JMException {
+        CommandMetrics metrics = new CommandMetrics();
+        metrics.record("startprove", 0x20, 1500000, 0x9000);
+
+        ObjectName name = metrics.register("test");
+        try {
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(name, "Commands"));
+        } finally {
+            metrics.unregister("test");
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * TestExtendedLength.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.CardCapabilities;
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.CardVersion.Feature;
+import org.junit.Test;
+
+public class TestExtendedLength {
+
+    @Test
+    public void parseATR() {
+        // Card capabilities in COMPACT-TLV, third byte 0x40
+        assertTrue(new CardCapabilities(new byte[] {
+                0x3B, (byte) 0x85, (byte) 0x80, 0x01, (byte) 0x80, 0x73, 0x00, 0x00, 0x40, (byte) 0xB7
+        }).isExtendedLengthSupported());
+        assertFalse(new CardCapabilities(new byte[] {
+                0x3B, (byte) 0x85, (byte) 0x80, 0x01, (byte) 0x80, 0x73, 0x00, 0x00, 0x00, (byte) 0xF7
+        }).isExtendedLengthSupported());
+        // Proprietary historical bytes
+        assertFalse(new CardCapabilities(new byte[] {
+                0x3B, (byte) 0x8A, (byte) 0x80, 0x01, 0x49, 0x52, 0x4D, 0x41, 0x63, 0x61, 0x72, 0x64, 0x00, 0x00
+        }).isExtendedLengthSupported());
+        assertFalse(new CardCapabilities(null).isExtendedLengthSupported());
+    }
+
+    @Test
+    public void parseProtocols() {
+        // TD1 offers T=0, TD2 offers T=1
+        assertTrue(new CardCapabilities(new byte[] {
+                0x3B, (byte) 0x85, (byte) 0x80, 0x01, (byte) 0x80, 0x73, 0x00, 0x00, 0x40, (byte) 0xB7
+        }).isT1Supported());
+        // No interface bytes, T=0 only
+        CardCapabilities t0 = new CardCapabilities(new byte[] {
+                0x3B, 0x05, (byte) 0x80, 0x73, 0x00, 0x00, 0x40
+        });
+        assertTrue(t0.isExtendedLengthSupported());
+        assertFalse(t0.isT1Supported());
+    }
+
+    @Test
+    public void disabledByDefault() throws Exception {
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        IdemixService is = new IdemixService(card);
+        assertFalse(is.isTerminalExtendedLength());
+        is.open();
+        assertFalse(is.isExtendedLength());
+        is.sendCardPin(TestSimulator.DEFAULT_CARD_PIN);
+
+        int sent = card.getTransmitted();
+        is.verifyCertificate(new RawCertificate(600));
+        assertEquals(3, card.getTransmitted() - sent);
+    }
+
+    @Test
+    public void certificateInSingleAPDU() throws Exception {
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        IdemixService is = new IdemixService(card);
+        is.setTerminalExtendedLength(true);
+        is.open();
+        assertTrue(is.isExtendedLength());
+        is.sendCardPin(TestSimulator.DEFAULT_CARD_PIN);
+
+        int sent = card.getTransmitted();
+        is.verifyCertificate(new RawCertificate(600));
+        assertEquals(1, card.getTransmitted() - sent);
+    }
+
+    @Test
+    public void chainingWithoutExtendedLength() throws Exception {
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        card.setExtendedLength(false);
+        IdemixService is = new IdemixService(card);
+        is.setTerminalExtendedLength(true);
+        is.open();
+        assertFalse(is.isExtendedLength());
+        is.sendCardPin(TestSimulator.DEFAULT_CARD_PIN);
+
+        int sent = card.getTransmitted();
+        is.verifyCertificate(new RawCertificate(600));
+        assertEquals(3, card.getTransmitted() - sent);
+    }
+
+    @Test
+    public void shortCommandsWithoutFeature() throws Exception {
+        // Accepts extended length APDUs, but not the commands packing data in them
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        card.setExtendedLengthCommands(false);
+        IdemixService is = new IdemixService(card);
+        is.setTerminalExtendedLength(true);
+        is.open();
+        assertFalse(is.getCardVersion().supports(Feature.EXTENDED_LENGTH_COMMANDS));
+        assertFalse(is.isExtendedLength());
+        is.sendCardPin(TestSimulator.DEFAULT_CARD_PIN);
+
+        int sent = card.getTransmitted();
+        is.verifyCertificate(new RawCertificate(600));
+        assertEquals(3, card.getTransmitted() - sent);
+
+        // Even when forced, the commands are only packed for applets reporting the feature
+        assertEquals(3, IdemixSmartcard.verifyCertificateCommands(
+                new CardVersion(0, 8, 1), new RawCertificate(600), true).size());
+        assertEquals(1, IdemixSmartcard.verifyCertificateCommands(
+                new CardVersion(0, 8, 1, "ext"), new RawCertificate(600), true).size());
+    }
+
+    @Test
+    public void fallBackWhenProbeRejected() throws Exception {
+        // Announces extended length in its ATR, but rejects it
+        IdemixCardSimulator card = new IdemixCardSimulator() {
+            private static final long serialVersionUID = 1L;
+
+            public byte[] getATR() {
+                return new byte[] {
+                        0x3B, (byte) 0x85, (byte) 0x80, 0x01, (byte) 0x80, 0x73, 0x00, 0x00, 0x40, (byte) 0xB7
+                };
+            }
+        };
+        card.setExtendedLength(false);
+        IdemixService is = new IdemixService(card);
+        is.setTerminalExtendedLength(true);
+        is.open();
+        assertFalse(is.isExtendedLength());
+        assertEquals(-1, is.sendCardPin(TestSimulator.DEFAULT_CARD_PIN));
+
+        int sent = card.getTransmitted();
+        is.verifyCertificate(new RawCertificate(600));
+        assertEquals(3, card.getTransmitted() - sent);
+    }
+
+    @Test
+    public void failWhenExtendedLengthRejected() throws Exception {
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        card.setExtendedLength(false);
+        IdemixService is = new IdemixService(card);
+        is.open();
+        is.sendCardPin(TestSimulator.DEFAULT_CARD_PIN);
+
+        // Force extended length, the card rejects it
+        is.setExtendedLength(true);
+        int sent = card.getTransmitted();
+        try {
+            is.verifyCertificate(new RawCertificate(600));
+            fail("Extended length APDU should be rejected");
+        } catch (CardServiceException e) {
+            // expected
+        }
+        assertEquals(1, card.getTransmitted() - sent);
+        assertTrue(is.isExtendedLength());
+    }
+
+    /**
+     * Certificate consisting of arbitrary bytes, the simulator does not
+     * check it.
+     */
+    private static class RawCertificate extends Certificate {
+        private static final long serialVersionUID = 1L;
+        private final byte[] encoded;
+
+        RawCertificate(int length) {
+            super("X.509");
+            encoded = new byte[length];
+        }
+
+        public byte[] getEncoded() throws CertificateEncodingException {
+            return encoded.clone();
+        }
+
+        public void verify(PublicKey key) {
+        }
+
+        public void verify(PublicKey key, String sigProvider) {
+        }
+
+        public String toString() {
+            return "raw certificate";
+        }
+
+        public PublicKey getPublicKey() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * TestFixLength.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Random;
+
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.CardVersion;
+import org.junit.Test;
+
+public class TestFixLength {
+
+    @Test
+    public void padding() {
+        assertArrayEquals(new byte[] {0x00, 0x00, 0x01, 0x02},
+                IdemixSmartcard.fixLength(BigInteger.valueOf(0x0102), 32));
+        assertArrayEquals(new byte[] {0x00, 0x00, 0x00},
+                IdemixSmartcard.fixLength(BigInteger.ZERO, 24));
+        assertArrayEquals(new byte[] {(byte) 0xFF, (byte) 0xFE},
+                IdemixSmartcard.fixLength(BigInteger.valueOf(0xFFFE), 16));
+    }
+
+    @Test
+    public void matchesUnsignedByteArray() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            BigInteger integer = new BigInteger(1 + random.nextInt(1024), random);
+            byte[] array = IdemixSmartcard.BigIntegerToUnsignedByteArray(integer);
+            byte[] fixed = IdemixSmartcard.fixLength(integer, 1024);
+
+            assertEquals(128, fixed.length);
+            for (int j = 0; j < array.length; j++) {
+                assertEquals(array[j], fixed[128 - array.length + j]);
+            }
+            assertEquals(integer, new BigInteger(1, fixed));
+        }
+    }
+
+    @Test
+    public void writeInPlace() {
+        byte[] buffer = new byte[8];
+        java.util.Arrays.fill(buffer, (byte) 0x55);
+
+        assertEquals(6, IdemixSmartcard.fixLength(BigInteger.valueOf(0x0A0B), 32, buffer, 2));
+        assertArrayEquals(new byte[] {0x55, 0x55, 0x00, 0x00, 0x0A, 0x0B, 0x55, 0x55}, buffer);
+
+        ByteBuffer bb = ByteBuffer.allocate(6);
+        bb.put((byte) 0x01);
+        IdemixSmartcard.fixLength(BigInteger.valueOf(0x0C), 16, bb);
+        assertEquals(3, bb.position());
+        assertArrayEquals(new byte[] {0x01, 0x00, 0x0C, 0x00, 0x00, 0x00}, bb.array());
+    }
+
+    @Test
+    public void writeToBuffer() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(4);
+        direct.put((byte) 0x01);
+        IdemixSmartcard.fixLength(BigInteger.valueOf(0x0D0E), 24, direct);
+        assertEquals(4, direct.position());
+        direct.flip();
+        byte[] written = new byte[4];
+        direct.get(written);
+        assertArrayEquals(new byte[] {0x01, 0x00, 0x0D, 0x0E}, written);
+
+        ByteBuffer slice = ByteBuffer.wrap(new byte[6], 2, 4).slice();
+        IdemixSmartcard.fixLength(BigInteger.valueOf(0x0F), 16, slice);
+        assertEquals(2, slice.position());
+        assertArrayEquals(new byte[] {0x00, 0x00, 0x00, 0x0F, 0x00, 0x00}, slice.array());
+    }
+
+    @Test
+    public void bufferTooSmall() {
+        ByteBuffer bb = ByteBuffer.allocate(4);
+        bb.put((byte) 0x01);
+        try {
+            IdemixSmartcard.fixLength(BigInteger.ONE, 32, bb);
+            fail("Integer should not fit in the buffer");
+        } catch (BufferOverflowException e) {
+            // expected
+        }
+        assertEquals(1, bb.position());
+        assertArrayEquals(new byte[] {0x01, 0x00, 0x00, 0x00}, bb.array());
+    }
+
+    @Test
+    public void caKeyCommands() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        RSAPublicKey key = (RSAPublicKey) generator.generateKeyPair().getPublic();
+
+        ProtocolCommands commands = IdemixSmartcard.setCAKeyCommands(new CardVersion(0, 8, 1), key);
+        assertEquals(2, commands.size());
+        assertArrayEquals(IdemixSmartcard.fixLength(key.getPublicExponent(), 1024),
+                commands.get(0).getAPDU().getData());
+        assertArrayEquals(IdemixSmartcard.fixLength(key.getModulus(), 1024),
+                commands.get(1).getAPDU().getData());
+    }
+
+    @Test
+    public void tooLong() {
+        try {
+            IdemixSmartcard.fixLength(BigInteger.ONE.shiftLeft(16), 16);
+            fail("Integer should not fit");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
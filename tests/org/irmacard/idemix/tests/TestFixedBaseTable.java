@@ -0,0 +1,87 @@
+/**
+ * TestFixedBaseTable.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.irmacard.idemix.util.FixedBaseTable;
+import org.junit.Test;
+
+public class TestFixedBaseTable {
+
+    private final Random random = new Random(7);
+    private final BigInteger n = BigInteger.probablePrime(256, random)
+            .multiply(BigInteger.probablePrime(256, random));
+
+    @Test
+    public void pow() {
+        BigInteger g = new BigInteger(511, random);
+        for (int window = 1; window <= 8; window++) {
+            FixedBaseTable table = new FixedBaseTable(g, n, 300, window);
+            for (int i = 0; i < 20; i++) {
+                BigInteger e = new BigInteger(1 + random.nextInt(300), random);
+                assertEquals(g.modPow(e, n), table.pow(e));
+            }
+            assertEquals(BigInteger.ONE, table.pow(BigInteger.ZERO));
+        }
+    }
+
+    @Test
+    public void powOutsideTable() {
+        BigInteger g = new BigInteger(511, random);
+        FixedBaseTable table = new FixedBaseTable(g, n, 64);
+        BigInteger e = new BigInteger(200, random);
+        assertEquals(g.modPow(e, n), table.pow(e));
+        assertEquals(g.modPow(e.negate(), n), table.pow(e.negate()));
+        assertEquals(g.modPow(e, n).multiply(g).mod(n), table.multiplyPow(g, e));
+    }
+
+    @Test
+    public void product() {
+        FixedBaseTable[] tables = new FixedBaseTable[5];
+        BigInteger[] exponents = new BigInteger[5];
+        BigInteger expected = BigInteger.ONE;
+        for (int i = 0; i < tables.length; i++) {
+            BigInteger g = new BigInteger(511, random);
+            tables[i] = new FixedBaseTable(g, n, 128 * (i + 1));
+            exponents[i] = new BigInteger(128 * (i + 1), random);
+            if (i == 1) {
+                exponents[i] = exponents[i].negate();
+            }
+            expected = expected.multiply(g.modPow(exponents[i], n)).mod(n);
+        }
+        assertEquals(expected, FixedBaseTable.product(tables, exponents));
+    }
+
+    @Test
+    public void rejectMismatch() {
+        FixedBaseTable[] tables = {
+                new FixedBaseTable(BigInteger.valueOf(2), n, 64),
+                new FixedBaseTable(BigInteger.valueOf(2), n.add(BigInteger.ONE), 64) };
+        try {
+            FixedBaseTable.product(tables, new BigInteger[] { BigInteger.ONE, BigInteger.ONE });
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * TestIndexedResponses.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ProtocolCommand;
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+import net.sourceforge.scuba.smartcards.ProtocolResponses;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.IndexedResponses;
+import org.irmacard.idemix.ProtocolExecutor;
+import org.irmacard.idemix.util.CardVersion;
+import org.junit.Test;
+
+import com.ibm.zurich.idmx.issuance.IssuanceSpec;
+import com.ibm.zurich.idmx.issuance.Message;
+import com.ibm.zurich.idmx.issuance.Message.IssuanceProtocolValues;
+
+public class TestIndexedResponses {
+
+    @Test
+    public void executorIndexesResponses() throws CardServiceException {
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        card.open();
+        CardVersion cv = new CardVersion(0, 8, 1);
+        ProtocolCommands commands = new ProtocolCommands();
+        commands.add(IdemixSmartcard.selectApplicationCommand);
+        commands.add(IdemixSmartcard.sendPinCommand(cv, IdemixSmartcard.P2_PIN_ATTRIBUTE,
+                TestSimulator.DEFAULT_PIN));
+        commands.add(new ProtocolCommand("sendpin_admin", "Verify admin PIN",
+                IdemixSmartcard.sendPinCommand(cv, IdemixSmartcard.P2_PIN_ADMIN,
+                        TestSimulator.DEFAULT_CARD_PIN).getAPDU()));
+
+        ProtocolResponses responses = new ProtocolExecutor(card).execute(commands);
+        assertTrue(responses instanceof IndexedResponses);
+        IndexedResponses indexed = (IndexedResponses) responses;
+        assertEquals(commands.size(), indexed.slots());
+        assertEquals(commands.size(), indexed.size());
+        for (int i = 0; i < commands.size(); i++) {
+            String key = commands.get(i).getKey();
+            assertEquals(key, indexed.get(i).getKey());
+            assertSame(indexed.get(i), indexed.get(key));
+        }
+    }
+
+    @Test
+    public void readRound1BySlot() {
+        String[] keys = { "nonce_n1", "proof_c", "vHatPrime", "proof_s_A", "nonce_n2" };
+        ProtocolCommand[] commands = new ProtocolCommand[keys.length];
+        ResponseAPDU[] rapdus = new ResponseAPDU[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            commands[i] = new ProtocolCommand(keys[i], keys[i],
+                    new CommandAPDU(new byte[] { (byte) 0x80, 0x1B, (byte) i, 0x00 }));
+            rapdus[i] = new ResponseAPDU(new byte[] { (byte) (i + 1), 0x2A, (byte) 0x90, 0x00 });
+        }
+        IndexedResponses indexed = new IndexedResponses(commands, rapdus);
+        ProtocolResponses byKey = new ProtocolResponses();
+        byKey.putAll(indexed);
+        CardVersion cv = new CardVersion(0, 8, 1);
+        assertSameMessage(IdemixSmartcard.processRound1Responses(cv, byKey),
+                IdemixSmartcard.processRound1Responses(cv, indexed));
+
+        // Another order, so the slots do not hold the expected commands
+        ProtocolCommand first = commands[0];
+        commands[0] = commands[1];
+        commands[1] = first;
+        ResponseAPDU response = rapdus[0];
+        rapdus[0] = rapdus[1];
+        rapdus[1] = response;
+        assertSameMessage(IdemixSmartcard.processRound1Responses(cv, byKey),
+                IdemixSmartcard.processRound1Responses(cv, new IndexedResponses(commands, rapdus)));
+    }
+
+    private static void assertSameMessage(Message expected, Message actual) {
+        assertEquals(expected.getIssuanceElement(IssuanceProtocolValues.capU),
+                actual.getIssuanceElement(IssuanceProtocolValues.capU));
+        assertEquals(expected.getIssuanceElement(IssuanceProtocolValues.nonce),
+                actual.getIssuanceElement(IssuanceProtocolValues.nonce));
+        assertEquals(expected.getProof().getChallenge(), actual.getProof().getChallenge());
+        assertEquals(expected.getProof().getCommonValue(IssuanceSpec.vHatPrime),
+                actual.getProof().getCommonValue(IssuanceSpec.vHatPrime));
+        assertEquals(expected.getProof().getSValue(IssuanceSpec.MASTER_SECRET_NAME).getValue(),
+                actual.getProof().getSValue(IssuanceSpec.MASTER_SECRET_NAME).getValue());
+    }
+
+    @Test
+    public void responseForEveryCommand() {
+        ProtocolCommand[] commands = {
+                new ProtocolCommand("master", "Get random value (@index 0).",
+                        new CommandAPDU(new byte[] { (byte) 0x80, 0x2C, 0x00, 0x00 })) };
+        try {
+            new IndexedResponses(commands, new ResponseAPDU[0]);
+            fail("Accepted a missing response");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * TestIssuanceOrchestrator.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.IssuanceOrchestrator;
+import org.junit.Test;
+
+import com.ibm.zurich.idmx.dm.Values;
+import com.ibm.zurich.idmx.issuance.IssuanceSpec;
+import com.ibm.zurich.idmx.issuance.Message;
+
+public class TestIssuanceOrchestrator {
+
+    private static final long SETUP_MILLIS = 100;
+
+    /**
+     * Card of which only the timing and order of the rounds matter.
+     */
+    private static class SlowCard extends IdemixService {
+        final List<String> calls = new ArrayList<String>();
+        boolean failSetup = false;
+
+        SlowCard() {
+            super(new IdemixCardSimulator());
+        }
+
+        public void setIssuanceSpecification(IssuanceSpec spec)
+        throws CardServiceException {
+            sleep(SETUP_MILLIS / 2);
+            if (failSetup) {
+                throw new CardServiceException("removed");
+            }
+            calls.add("spec");
+        }
+
+        public void setAttributes(IssuanceSpec spec, Values values) {
+            sleep(SETUP_MILLIS / 2);
+            calls.add("attributes");
+        }
+
+        public Message executeRound1(Message msg) {
+            calls.add("round1");
+            return msg;
+        }
+
+        public void executeRound3(Message msg) {
+            calls.add("round3");
+        }
+    }
+
+    private static class SlowIssuer implements IssuanceOrchestrator.IssuerSession {
+        final List<String> calls;
+
+        SlowIssuer(List<String> calls) {
+            this.calls = calls;
+        }
+
+        public Message round0() {
+            sleep(SETUP_MILLIS);
+            return message();
+        }
+
+        public Message round2(Message msg) {
+            calls.add("round2");
+            return msg;
+        }
+    }
+
+    @Test
+    public void overlapIssuerWithCard() throws Exception {
+        SlowCard card = new SlowCard();
+        SlowIssuer issuer = new SlowIssuer(card.calls);
+        IssuanceOrchestrator.Timing timing =
+                new IssuanceOrchestrator().issue(card, null, null, issuer);
+
+        assertEquals("[spec, attributes, round1, round2, round3]", card.calls.toString());
+        assertTrue(timing.getIssuerStartNanos() >= TimeUnit.MILLISECONDS.toNanos(SETUP_MILLIS));
+        assertTrue(timing.getCardSetupNanos() >= TimeUnit.MILLISECONDS.toNanos(SETUP_MILLIS));
+        assertTrue(timing.toString(),
+                timing.getTotalNanos() < TimeUnit.MILLISECONDS.toNanos(SETUP_MILLIS * 18 / 10));
+    }
+
+    @Test
+    public void reportCardFailure() throws Exception {
+        SlowCard card = new SlowCard();
+        card.failSetup = true;
+        SlowIssuer issuer = new SlowIssuer(card.calls);
+        try {
+            new IssuanceOrchestrator().issue(card, null, null, issuer);
+            fail();
+        } catch (CardServiceException e) {
+            // expected
+        }
+        assertEquals(0, card.calls.size());
+    }
+
+    @Test
+    public void reportIssuerFailure() throws Exception {
+        SlowCard card = new SlowCard();
+        IssuanceOrchestrator.IssuerSession issuer = new IssuanceOrchestrator.IssuerSession() {
+            public Message round0() {
+                return message();
+            }
+
+            public Message round2(Message msg) {
+                return null;
+            }
+        };
+        try {
+            new IssuanceOrchestrator().issue(card, null, null, issuer);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals("[spec, attributes, round1]", card.calls.toString());
+    }
+
+    private static Message message() {
+        return new Message(new HashMap<Message.IssuanceProtocolValues, BigInteger>(), null);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * TestLogArchive.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.irmacard.idemix.util.LogArchive;
+import org.junit.Test;
+
+public class TestLogArchive {
+
+    /**
+     * Verification of credential 10 at 1362725814 disclosing 0x3E, by
+     * terminal 0x01020304.
+     */
+    static byte[] entry(int i) {
+        int timestamp = 1362725814 + i;
+        return new byte[] {
+                (byte) (timestamp >> 24), (byte) (timestamp >> 16), (byte) (timestamp >> 8), (byte) timestamp,
+                0x01, 0x02, 0x03, 0x04,
+                0x02,
+                0x00, 0x0A,
+                0x00, 0x3E, 0x00, 0x00, 0x00 };
+    }
+
+    @Test
+    public void appendAndRead() throws IOException {
+        File file = File.createTempFile("archive", ".log");
+        file.delete();
+        try {
+            LogArchive archive = LogArchive.open(file, 4);
+            for (int i = 0; i < 10; i++) {
+                archive.append(i % 3, entry(i), 0, 1000L * i);
+            }
+            archive.close();
+
+            archive = LogArchive.open(file);
+            assertEquals(10, archive.size());
+
+            LogArchive.Cursor cursor = archive.cursor();
+            byte[] raw = new byte[16];
+            for (int i = 0; i < 10; i++) {
+                assertTrue(cursor.next());
+                assertEquals(i, cursor.getIndex());
+                assertEquals(i % 3, cursor.getCardId());
+                assertEquals(1000L * i, cursor.getIngested());
+                assertEquals(1362725814L + i, cursor.getTimestamp());
+                assertEquals(0x01020304, cursor.getTerminal());
+                assertEquals(IdemixLogEntry.Action.VERIFY, cursor.getAction());
+                assertEquals(10, cursor.getCredential());
+                assertEquals(0x3E, cursor.getDisclose());
+                cursor.getEntry(raw, 0);
+                assertArrayEquals(entry(i), raw);
+            }
+            assertFalse(cursor.next());
+
+            // Continue appending after reopening, from the middle of a segment
+            archive.append(7, new IdemixLogEntry(entry(10)), 10000);
+            cursor = archive.cursor(9);
+            assertTrue(cursor.next());
+            assertTrue(cursor.next());
+            assertEquals(7, cursor.getCardId());
+            assertFalse(cursor.next());
+            archive.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rejectOtherFiles() throws IOException {
+        File file = File.createTempFile("archive", ".log");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[64]);
+            out.close();
+            LogArchive.open(file);
+            fail();
+        } catch (IOException e) {
+            // expected
+        } finally {
+            file.delete();
+        }
+    }
+}
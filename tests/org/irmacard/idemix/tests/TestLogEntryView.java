@@ -0,0 +1,91 @@
+/**
+ * TestLogEntryView.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.irmacard.idemix.util.IdemixLogEntryView;
+import org.irmacard.idemix.util.LogWatermark;
+import org.junit.Test;
+
+public class TestLogEntryView {
+
+    @Test
+    public void decodeInPlace() {
+        // Two entries behind a two byte prefix
+        byte[] data = new byte[2 + 32];
+        System.arraycopy(TestLog.test_input, 0, data, 2, 16);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        IdemixLogEntryView view = new IdemixLogEntryView().wrap(buffer, 2);
+        assertEquals(IdemixLogEntry.Action.VERIFY, view.getAction());
+        assertEquals(1362725814L, view.getTimestamp());
+        assertEquals(10, view.getCredential());
+        assertEquals(0x3E, view.getDisclose());
+        assertEquals(0, view.getTerminal());
+        assertFalse(view.isEmpty());
+
+        IdemixLogEntry entry = view.toEntry();
+        assertEquals(1362725814000L, entry.getTimestamp().getTime());
+        assertArrayEquals(TestLog.test_input, entry.getBytes());
+
+        view.wrap(buffer, 18);
+        assertTrue(view.isEmpty());
+        assertEquals(0, view.getDisclose());
+    }
+
+    @Test
+    public void visitCard() throws CardServiceException {
+        IdemixService is = new IdemixService(new IdemixCardSimulator());
+        is.open();
+        TestSimulator.issue(is, (short) 10, 1362725814);
+        TestSimulator.issue(is, (short) 11, 1362725815);
+        is.sendCardPin(TestSimulator.DEFAULT_CARD_PIN);
+
+        final int[] credentials = new int[2];
+        int visited = is.visitLogEntries(LogWatermark.NONE, new IdemixLogEntryView.Visitor() {
+            int i = 0;
+
+            public boolean visit(IdemixLogEntryView entry) {
+                credentials[i++] = entry.getCredential();
+                return true;
+            }
+        });
+        assertEquals(2, visited);
+        assertEquals(11, credentials[0]);
+        assertEquals(10, credentials[1]);
+
+        // Stopping early
+        visited = is.visitLogEntries(null, new IdemixLogEntryView.Visitor() {
+            public boolean visit(IdemixLogEntryView entry) {
+                return false;
+            }
+        });
+        assertEquals(1, visited);
+    }
+}
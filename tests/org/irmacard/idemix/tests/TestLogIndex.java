@@ -0,0 +1,102 @@
+/**
+ * TestLogIndex.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.irmacard.idemix.util.LogArchive;
+import org.irmacard.idemix.util.LogIndex;
+import org.irmacard.idemix.util.LogQuery;
+import org.junit.Test;
+
+public class TestLogIndex {
+
+    private static final long START = 1362725814L;
+
+    @Test
+    public void queries() throws IOException {
+        File file = File.createTempFile("archive", ".log");
+        file.delete();
+        LogArchive archive = LogArchive.open(file, 256);
+        try {
+            Random random = new Random(1);
+            byte[] entry = new byte[16];
+            for (int i = 0; i < 5000; i++) {
+                long timestamp = START + 60 * i;
+                int credential = random.nextInt(i < 4000 ? 8 : 16);
+                entry[0] = (byte) (timestamp >> 24);
+                entry[1] = (byte) (timestamp >> 16);
+                entry[2] = (byte) (timestamp >> 8);
+                entry[3] = (byte) timestamp;
+                entry[7] = (byte) random.nextInt(4);
+                entry[8] = (byte) (1 + random.nextInt(3));
+                entry[10] = (byte) credential;
+                entry[11] = 0;
+                entry[12] = (byte) (entry[8] == 2 ? random.nextInt(64) : 0);
+                archive.append(i, entry, 0, 0);
+            }
+
+            LogIndex index = new LogIndex(archive, 64);
+            assertEquals(5000, index.size());
+
+            check(archive, index, new LogQuery()
+                    .action(IdemixLogEntry.Action.VERIFY)
+                    .credential((short) 10)
+                    .disclosing((short) 0x3E));
+            assertTrue(index.getBlocksRead() < index.getBlocks() / 3);
+
+            check(archive, index, new LogQuery()
+                    .from(START + 60 * 100)
+                    .to(START + 60 * 200));
+            check(archive, index, new LogQuery()
+                    .terminal(2)
+                    .action(IdemixLogEntry.Action.ISSUE)
+                    .action(IdemixLogEntry.Action.REMOVE));
+            check(archive, index, new LogQuery().credential((short) 99));
+
+            // Incremental update
+            archive.append(5000, entry, 0, 0);
+            assertEquals(1, index.update());
+            check(archive, index, new LogQuery().credential((short) entry[10]));
+        } finally {
+            archive.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * Compare the indexed count with a full scan.
+     */
+    private static void check(LogArchive archive, LogIndex index, LogQuery query)
+    throws IOException {
+        long expected = 0;
+        LogArchive.Cursor record = archive.cursor();
+        while (record.next()) {
+            if (query.matches(record)) {
+                expected++;
+            }
+        }
+        assertEquals(expected, index.count(query));
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * TestLogSync.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.LogSync;
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.irmacard.idemix.util.LogWatermark;
+import org.junit.Test;
+
+public class TestLogSync {
+
+    @Test
+    public void syncDelta() throws Exception {
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        IdemixService is = new IdemixService(card);
+        is.open();
+        TestSimulator.issue(is, (short) 10, 1362725814);
+        TestSimulator.issue(is, (short) 11, 1362725814);
+        is.sendCardPin(TestSimulator.DEFAULT_CARD_PIN);
+
+        LogSync sync = new LogSync();
+        List<IdemixLogEntry> entries = sync.sync(is, "card");
+        assertEquals(2, entries.size());
+        assertEquals(11, entries.get(0).getCredential());
+        assertEquals(1362725814000L, sync.getWatermark("card").getTimestamp().getTime());
+
+        // Nothing new: a single log page is read
+        int sent = card.getTransmitted();
+        assertEquals(0, sync.sync(is, "card").size());
+        assertEquals(1, card.getTransmitted() - sent);
+
+        // Same second, different entry
+        TestSimulator.issue(is, (short) 12, 1362725814);
+        entries = sync.sync(is, "card");
+        assertEquals(1, entries.size());
+        assertEquals(12, entries.get(0).getCredential());
+    }
+
+    @Test
+    public void persistWatermark() throws Exception {
+        IdemixService is = new IdemixService(new IdemixCardSimulator());
+        is.open();
+        TestSimulator.issue(is, (short) 10, 1362725814);
+        is.sendCardPin(TestSimulator.DEFAULT_CARD_PIN);
+
+        File file = File.createTempFile("watermarks", ".properties");
+        file.delete();
+        try {
+            assertEquals(1, new LogSync(new LogSync.FileStore(file)).sync(is, "card").size());
+
+            LogSync restored = new LogSync(new LogSync.FileStore(file));
+            assertEquals(new LogWatermark(is.getLogEntries().get(0)), restored.getWatermark("card"));
+            assertEquals(0, restored.sync(is, "card").size());
+            assertEquals(LogWatermark.NONE, restored.getWatermark("other"));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * TestLruCache.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.irmacard.idemix.util.LruCache;
+import org.junit.Test;
+
+public class TestLruCache {
+
+    private static class Cache extends LruCache<String, Integer> {
+        Cache(int capacity) {
+            super(capacity);
+        }
+
+        Integer lookup(String key) {
+            return get(key);
+        }
+
+        void store(String key, Integer value) {
+            put(key, value);
+        }
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        Cache cache = new Cache(2);
+        cache.store("a", 1);
+        cache.store("b", 2);
+        assertEquals(Integer.valueOf(1), cache.lookup("a"));
+        cache.store("c", 3);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.lookup("b"));
+        assertEquals(Integer.valueOf(3), cache.lookup("c"));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals("2/2 entries, 2 hits, 1 misses, 1 evictions", cache.toString());
+    }
+
+    @Test
+    public void resetMetrics() {
+        Cache cache = new Cache(1);
+        cache.store("a", 1);
+        cache.store("b", 2);
+        cache.lookup("a");
+        cache.lookup("b");
+
+        cache.resetMetrics();
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getEvictions());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectEmpty() {
+        new Cache(0);
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * TestPooledIssuer.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import org.irmacard.idemix.PooledIssuer;
+import org.irmacard.idemix.util.SignatureValuePool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.zurich.credsystem.utils.Locations;
+import com.ibm.zurich.idmx.dm.MasterSecret;
+import com.ibm.zurich.idmx.dm.Values;
+import com.ibm.zurich.idmx.issuance.IssuanceSpec;
+import com.ibm.zurich.idmx.issuance.Message;
+import com.ibm.zurich.idmx.issuance.Message.IssuanceProtocolValues;
+import com.ibm.zurich.idmx.issuance.Recipient;
+import com.ibm.zurich.idmx.key.IssuerKeyPair;
+import com.ibm.zurich.idmx.key.IssuerPublicKey;
+import com.ibm.zurich.idmx.showproof.Proof;
+import com.ibm.zurich.idmx.showproof.sval.SValue;
+import com.ibm.zurich.idmx.utils.StructureStore;
+import com.ibm.zurich.idmx.utils.SystemParameters;
+import com.ibm.zurich.idmx.utils.Utils;
+
+public class TestPooledIssuer {
+    public static final URI BASE_LOCATION = new File(
+            System.getProperty("user.dir")).toURI().resolve("files/parameter/");
+    public static final URI BASE_ID = URI.create("http://www.zurich.ibm.com/security/idmx/v2/");
+    public static final URI ISSUER_ID = URI.create("http://www.issuer.com/");
+    public static final URI CRED_STRUCT_ID = URI.create("http://www.ngo.org/CredStructCard4.xml");
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private IssuerKeyPair issuerKey;
+    private IssuanceSpec spec;
+    private Values values;
+    private SignatureValuePool pool;
+
+    @Before
+    public void loadSpec() {
+        issuerKey = Locations.initIssuer(BASE_LOCATION, BASE_ID.toString(),
+                BASE_LOCATION.resolve("../private/isk.xml"),
+                BASE_LOCATION.resolve("../issuerData/ipk.xml"), ISSUER_ID.resolve("ipk.xml"));
+        Locations.initSystem(BASE_LOCATION, BASE_ID.toString());
+        Locations.init(ISSUER_ID.resolve("ipk.xml"),
+                BASE_LOCATION.resolve("../issuerData/ipk.xml"));
+        Locations.init(CRED_STRUCT_ID,
+                BASE_LOCATION.resolve("../issuerData/CredStructCard4.xml"));
+        spec = new IssuanceSpec(ISSUER_ID.resolve("ipk.xml"), CRED_STRUCT_ID);
+
+        values = new Values(issuerKey.getPublicKey().getGroupParams().getSystemParams());
+        for (int i = 1; i <= 4; i++) {
+            values.add("attr" + i, BigInteger.valueOf(1312 + i));
+        }
+        pool = new SignatureValuePool(1, 1);
+    }
+
+    @After
+    public void shutdownPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void signCommitment() {
+        IssuerPublicKey pk = issuerKey.getPublicKey();
+        SystemParameters sp = pk.getGroupParams().getSystemParams();
+        BigInteger n = pk.getN();
+        BigInteger masterSecret = new BigInteger(sp.getL_m(), random);
+        BigInteger vPrime = new BigInteger(sp.getL_n() + sp.getL_Phi(), random);
+
+        PooledIssuer issuer = new PooledIssuer(issuerKey, spec, values, pool);
+        Message msg = issuer.round0();
+        BigInteger n2 = new BigInteger(sp.getL_Phi(), random);
+        msg = issuer.round2(commit(msg, masterSecret, vPrime, n2, false));
+        assertEquals(1, pool.getHits() + pool.getMisses());
+
+        // A^e * S^(v' + v'') * R_0^m_0 * prod R_i^m_i = Z
+        BigInteger capA = msg.getIssuanceElement(IssuanceProtocolValues.capA);
+        BigInteger e = msg.getIssuanceElement(IssuanceProtocolValues.e);
+        BigInteger v = vPrime.add(msg.getIssuanceElement(IssuanceProtocolValues.vPrimePrime));
+        BigInteger[] capR = pk.getCapR();
+        BigInteger capZ = capA.modPow(e, n).multiply(pk.getCapS().modPow(v, n))
+                .multiply(capR[0].modPow(masterSecret, n)).mod(n);
+        for (int i = 1; i <= 4; i++) {
+            capZ = capZ.multiply(capR[i].modPow(BigInteger.valueOf(1312 + i), n)).mod(n);
+        }
+        assertEquals(pk.getCapZ(), capZ);
+
+        // c' = H(context, Q, A, n2, A^(c' + s_e * e)) with Q = A^e
+        BigInteger cPrime = msg.getProof().getChallenge();
+        BigInteger s_e = (BigInteger) msg.getProof().getSValue(IssuanceSpec.s_e).getValue();
+        Vector<BigInteger> list = new Vector<BigInteger>();
+        list.add(spec.getContext());
+        list.add(capA.modPow(e, n));
+        list.add(capA);
+        list.add(n2);
+        list.add(capA.modPow(cPrime.add(s_e.multiply(e)), n));
+        assertEquals(cPrime, Utils.computeHash(list, sp.getL_H()));
+    }
+
+    @Test
+    public void issueToRecipient() {
+        MasterSecret masterSecret = (MasterSecret) StructureStore.getInstance().get(
+                BASE_LOCATION.resolve("../private/ms.xml"));
+        PooledIssuer issuer = new PooledIssuer(issuerKey, spec, values, pool);
+        Recipient recipient = new Recipient(spec, masterSecret, values);
+
+        Message msg = recipient.round1(issuer.round0());
+        msg = issuer.round2(msg);
+        assertNotNull(msg);
+        assertNotNull(recipient.round3(msg));
+    }
+
+    @Test
+    public void recipientRejectsTamperedSignature() {
+        MasterSecret masterSecret = (MasterSecret) StructureStore.getInstance().get(
+                BASE_LOCATION.resolve("../private/ms.xml"));
+        PooledIssuer issuer = new PooledIssuer(issuerKey, spec, values, pool);
+        Recipient recipient = new Recipient(spec, masterSecret, values);
+
+        Message msg = issuer.round2(recipient.round1(issuer.round0()));
+        HashMap<IssuanceProtocolValues, BigInteger> issuanceProtocolValues =
+                new HashMap<IssuanceProtocolValues, BigInteger>();
+        issuanceProtocolValues.put(IssuanceProtocolValues.capA,
+                msg.getIssuanceElement(IssuanceProtocolValues.capA));
+        issuanceProtocolValues.put(IssuanceProtocolValues.e,
+                msg.getIssuanceElement(IssuanceProtocolValues.e));
+        issuanceProtocolValues.put(IssuanceProtocolValues.vPrimePrime,
+                msg.getIssuanceElement(IssuanceProtocolValues.vPrimePrime).add(BigInteger.ONE));
+        assertNull(recipient.round3(new Message(issuanceProtocolValues, msg.getProof())));
+    }
+
+    @Test
+    public void rejectInvalidCommitmentProof() {
+        SystemParameters sp = issuerKey.getPublicKey().getGroupParams().getSystemParams();
+        PooledIssuer issuer = new PooledIssuer(issuerKey, spec, values, pool);
+        Message msg = issuer.round0();
+        assertNull(issuer.round2(commit(msg, new BigInteger(sp.getL_m(), random),
+                new BigInteger(sp.getL_n() + sp.getL_Phi(), random),
+                new BigInteger(sp.getL_Phi(), random), true)));
+    }
+
+    /**
+     * Compute the first message of a card: the commitment
+     * U = S^v' * R_0^m_0 and the proof of its opening.
+     */
+    private Message commit(Message msg, BigInteger masterSecret, BigInteger vPrime,
+            BigInteger n2, boolean tamper) {
+        IssuerPublicKey pk = issuerKey.getPublicKey();
+        SystemParameters sp = pk.getGroupParams().getSystemParams();
+        BigInteger n = pk.getN();
+        BigInteger capS = pk.getCapS();
+        BigInteger capR0 = pk.getCapR()[0];
+
+        BigInteger capU = capS.modPow(vPrime, n).multiply(capR0.modPow(masterSecret, n)).mod(n);
+        BigInteger vTilde = new BigInteger(sp.getL_n() + 2 * sp.getL_Phi() + sp.getL_H(), random);
+        BigInteger mTilde = new BigInteger(sp.getL_m() + sp.getL_Phi() + sp.getL_H(), random);
+        BigInteger capUTilde = capS.modPow(vTilde, n).multiply(capR0.modPow(mTilde, n)).mod(n);
+
+        Vector<BigInteger> list = new Vector<BigInteger>();
+        list.add(spec.getContext());
+        list.add(capU);
+        list.add(capUTilde);
+        list.add(msg.getIssuanceElement(IssuanceProtocolValues.nonce));
+        BigInteger c = Utils.computeHash(list, sp.getL_H());
+
+        BigInteger mHat = mTilde.add(c.multiply(masterSecret));
+        if (tamper) {
+            mHat = mHat.add(BigInteger.ONE);
+        }
+        HashMap<String, SValue> sValues = new HashMap<String, SValue>();
+        sValues.put(IssuanceSpec.MASTER_SECRET_NAME, new SValue(mHat));
+        TreeMap<String, BigInteger> commonList = new TreeMap<String, BigInteger>();
+        commonList.put(IssuanceSpec.vHatPrime, vTilde.add(c.multiply(vPrime)));
+
+        HashMap<IssuanceProtocolValues, BigInteger> issuanceProtocolValues =
+                new HashMap<IssuanceProtocolValues, BigInteger>();
+        issuanceProtocolValues.put(IssuanceProtocolValues.capU, capU);
+        issuanceProtocolValues.put(IssuanceProtocolValues.nonce, n2);
+        return new Message(issuanceProtocolValues, new Proof(c, sValues, commonList));
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * TestProofPlan.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.ProofPlan;
+import org.irmacard.idemix.ProofPlanCache;
+import org.irmacard.idemix.util.CardVersion;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.zurich.credsystem.utils.Locations;
+import com.ibm.zurich.idmx.showproof.ProofSpec;
+import com.ibm.zurich.idmx.utils.StructureStore;
+
+public class TestProofPlan {
+    public static final URI BASE_LOCATION = new File(
+            System.getProperty("user.dir")).toURI().resolve("files/parameter/");
+    public static final URI BASE_ID = URI.create("http://www.zurich.ibm.com/security/idmx/v2/");
+    public static final URI ISSUER_ID = URI.create("http://www.issuer.com/");
+    public static final URI CRED_STRUCT_ID = URI.create("http://www.ngo.org/CredStructCard5.xml");
+    public static final URI OTHER_CRED_STRUCT_ID = URI.create("http://www.ngo.org/CredStructCard4.xml");
+
+    private ProofSpec spec;
+    private ProofSpec multiSpec;
+
+    @Before
+    public void loadSpec() {
+        Locations.initSystem(BASE_LOCATION, BASE_ID.toString());
+        Locations.init(ISSUER_ID.resolve("ipk.xml"),
+                BASE_LOCATION.resolve("../issuerData/ipk.xml"));
+        Locations.init(CRED_STRUCT_ID,
+                BASE_LOCATION.resolve("../issuerData/CredStructCard5.xml"));
+        Locations.init(OTHER_CRED_STRUCT_ID,
+                BASE_LOCATION.resolve("../issuerData/CredStructCard4.xml"));
+        spec = (ProofSpec) StructureStore.getInstance().get(
+                BASE_LOCATION.resolve("../proofSpecifications/ProofSpecCard5.xml"));
+        multiSpec = (ProofSpec) StructureStore.getInstance().get(
+                BASE_LOCATION.resolve("../proofSpecifications/ProofSpecCard4And5.xml"));
+        IdemixSmartcard.getProofPlanCache().clear();
+        IdemixSmartcard.getProofPlanCache().resetMetrics();
+    }
+
+    @Test
+    public void reuseStaticCommands() {
+        CardVersion cv = new CardVersion(0, 8, 1);
+        ProofPlanCache cache = IdemixSmartcard.getProofPlanCache();
+
+        ProtocolCommands first = IdemixSmartcard.buildProofCommands(cv, BigInteger.ONE, spec, (short) 5);
+        ProtocolCommands second = IdemixSmartcard.buildProofCommands(
+                new CardVersion(0, 8, 1), BigInteger.TEN, spec, (short) 5);
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+        assertEquals(11, second.size());
+        assertEquals("startprove", second.get(0).getKey());
+        assertEquals("challenge_c", second.get(1).getKey());
+        assertFalse(Arrays.equals(first.get(1).getAPDU().getBytes(), second.get(1).getAPDU().getBytes()));
+        for (int i = 2; i < first.size(); i++) {
+            assertSame(first.get(i), second.get(i));
+        }
+    }
+
+    @Test
+    public void matchUncompiledCommands() {
+        CardVersion cv = new CardVersion(0, 7, 2);
+        ProofPlan plan = IdemixSmartcard.getProofPlan(cv, spec, (short) 5);
+        assertFalse(plan.isProtocol08());
+        // attributes id2 and id5 are revealed
+        assertEquals(0x24, plan.getDisclosure());
+
+        ProtocolCommands commands = plan.commands(BigInteger.ONE);
+        assertEquals(plan.size(), commands.size());
+        byte[] start = IdemixSmartcard.startProofCommand(cv, spec, (short) 5, plan.getDisclosure())
+                .getAPDU().getBytes();
+        byte[] planned = commands.get(0).getAPDU().getBytes();
+        // equal apart from the timestamp
+        assertArrayEquals(Arrays.copyOf(start, start.length - 4), Arrays.copyOf(planned, planned.length - 4));
+    }
+
+    @Test
+    public void compilePerCapabilityAndCredential() {
+        ProofPlanCache cache = new ProofPlanCache(2);
+        ProofPlan plan = cache.get(new CardVersion(0, 8, 1), spec, (short) 5);
+        assertSame(plan, cache.get(new CardVersion(0, 8, 2), spec, (short) 5));
+        assertNotSame(plan, cache.get(new CardVersion(0, 7, 2), spec, (short) 5));
+        cache.get(new CardVersion(0, 8, 1), spec, (short) 6);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void batchPredicates() {
+        CardVersion cv = new CardVersion(0, 8, 1);
+        short[] ids = {4, 5};
+        ProtocolCommands commands = IdemixSmartcard.buildProofCommands(cv, BigInteger.ONE, multiSpec, ids);
+
+        ProofPlan first = IdemixSmartcard.getProofPlan(cv, multiSpec, 0, ids[0]);
+        ProofPlan second = IdemixSmartcard.getProofPlan(cv, multiSpec, 1, ids[1]);
+        assertEquals(10, first.size());
+        assertEquals(11, second.size());
+        assertEquals(first.size() + second.size(), commands.size());
+
+        assertEquals("startprove", commands.get(0).getKey());
+        assertEquals("startprove#1", commands.get(first.size()).getKey());
+        assertEquals("challenge_c#1", commands.get(first.size() + 1).getKey());
+        Set<String> keys = new HashSet<String>();
+        for (int i = 0; i < commands.size(); i++) {
+            assertTrue(keys.add(commands.get(i).getKey()));
+        }
+
+        try {
+            IdemixSmartcard.buildProofCommands(cv, BigInteger.ONE, multiSpec, new short[] {4});
+            fail("Accepted too few credentials");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
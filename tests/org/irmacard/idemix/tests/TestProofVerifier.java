@@ -0,0 +1,245 @@
+/**
+ * TestProofVerifier.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Vector;
+
+import net.sourceforge.scuba.smartcards.ProtocolResponse;
+import net.sourceforge.scuba.smartcards.ProtocolResponses;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.ProofVerifier;
+import org.irmacard.idemix.util.CardVersion;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.zurich.credsystem.utils.Locations;
+import com.ibm.zurich.idmx.dm.structure.AttributeStructure;
+import com.ibm.zurich.idmx.dm.structure.CredentialStructure;
+import com.ibm.zurich.idmx.key.IssuerKeyPair;
+import com.ibm.zurich.idmx.key.IssuerPublicKey;
+import com.ibm.zurich.idmx.showproof.Proof;
+import com.ibm.zurich.idmx.showproof.ProofSpec;
+import com.ibm.zurich.idmx.showproof.Verifier;
+import com.ibm.zurich.idmx.showproof.predicates.CLPredicate;
+import com.ibm.zurich.idmx.utils.StructureStore;
+import com.ibm.zurich.idmx.utils.SystemParameters;
+import com.ibm.zurich.idmx.utils.Utils;
+
+public class TestProofVerifier {
+    public static final URI BASE_LOCATION = new File(
+            System.getProperty("user.dir")).toURI().resolve("files/parameter/");
+    public static final URI BASE_ID = URI.create("http://www.zurich.ibm.com/security/idmx/v2/");
+    public static final URI ISSUER_ID = URI.create("http://www.issuer.com/");
+    public static final URI CRED_STRUCT_ID = URI.create("http://www.ngo.org/CredStructCard4.xml");
+    public static final URI OTHER_CRED_STRUCT_ID = URI.create("http://www.ngo.org/CredStructCard5.xml");
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private IssuerKeyPair issuerKey;
+    private ProofSpec spec;
+    private ProofSpec multiSpec;
+    private BigInteger nonce;
+
+    @Before
+    public void loadSpec() {
+        issuerKey = Locations.initIssuer(BASE_LOCATION, BASE_ID.toString(),
+                BASE_LOCATION.resolve("../private/isk.xml"),
+                BASE_LOCATION.resolve("../issuerData/ipk.xml"), ISSUER_ID.resolve("ipk.xml"));
+        Locations.initSystem(BASE_LOCATION, BASE_ID.toString());
+        Locations.init(ISSUER_ID.resolve("ipk.xml"),
+                BASE_LOCATION.resolve("../issuerData/ipk.xml"));
+        Locations.init(CRED_STRUCT_ID,
+                BASE_LOCATION.resolve("../issuerData/CredStructCard4.xml"));
+        Locations.init(OTHER_CRED_STRUCT_ID,
+                BASE_LOCATION.resolve("../issuerData/CredStructCard5.xml"));
+        spec = (ProofSpec) StructureStore.getInstance().get(
+                BASE_LOCATION.resolve("../proofSpecifications/ProofSpecCard4.xml"));
+        multiSpec = (ProofSpec) StructureStore.getInstance().get(
+                BASE_LOCATION.resolve("../proofSpecifications/ProofSpecCard4And5.xml"));
+        nonce = new BigInteger(spec.getGroupParams().getSystemParams().getL_Phi(), random);
+    }
+
+    @Test
+    public void acceptValidProof() {
+        Proof proof = prove(respond());
+        ProofVerifier verifier = new ProofVerifier();
+
+        assertTrue(new Verifier(spec, proof, nonce).verify());
+        assertTrue(verifier.verify(spec, proof, nonce));
+        assertEquals(1, verifier.getAccepted());
+        assertEquals(0, verifier.getDelegated());
+    }
+
+    @Test
+    public void rejectTamperedResponse() {
+        ProtocolResponses responses = respond();
+        put(responses, "attr_attr1", get(responses, "attr_attr1").add(BigInteger.ONE));
+        Proof proof = prove(responses);
+
+        assertFalse(new Verifier(spec, proof, nonce).verify());
+        assertFalse(new ProofVerifier().verify(spec, proof, nonce));
+    }
+
+    @Test
+    public void rejectResponseOutOfBounds() {
+        // Adding the order of QR_n to e^ keeps the challenge, not its length
+        BigInteger order = issuerKey.getPrivateKey().getPPrime().multiply(
+                issuerKey.getPrivateKey().getQPrime());
+        ProtocolResponses responses = respond();
+        put(responses, "signature_e", get(responses, "signature_e").add(order));
+        Proof proof = prove(responses);
+        ProofVerifier verifier = new ProofVerifier();
+
+        assertEquals(proof.getChallenge(), verifier.computeChallenge(spec, proof, nonce));
+        assertFalse(ProofVerifier.checkLengths(spec, proof));
+        assertFalse(new Verifier(spec, proof, nonce).verify());
+        assertFalse(verifier.verify(spec, proof, nonce));
+        assertEquals(0, verifier.getAccepted());
+    }
+
+    @Test
+    public void acceptProofPerPredicate() {
+        BigInteger master = new BigInteger(spec.getGroupParams().getSystemParams().getL_m(), random);
+        ProtocolResponses responses = respond(multiSpec, 0, master);
+        responses.putAll(respond(multiSpec, 1, master));
+        List<Proof> proofs = IdemixSmartcard.processBuildProofResponses(new CardVersion(0, 8, 1),
+                responses, multiSpec, new short[] {4, 5});
+        ProofVerifier verifier = new ProofVerifier();
+
+        assertEquals(2, proofs.size());
+        assertTrue(verifier.verify(multiSpec, 0, proofs.get(0), nonce));
+        assertTrue(verifier.verify(multiSpec, 1, proofs.get(1), nonce));
+        assertEquals(2, verifier.getAccepted());
+
+        assertFalse(verifier.verify(multiSpec, 0, proofs.get(1), nonce));
+        assertFalse(verifier.verify(multiSpec, 1, proofs.get(1), nonce.add(BigInteger.ONE)));
+        assertFalse(verifier.verify(multiSpec, 2, proofs.get(1), nonce));
+        assertEquals(2, verifier.getAccepted());
+    }
+
+    private Proof prove(ProtocolResponses responses) {
+        return IdemixSmartcard.processBuildProofResponses(new CardVersion(0, 8, 1), responses, spec);
+    }
+
+    private ProtocolResponses respond() {
+        return respond(spec, 0, new BigInteger(spec.getGroupParams().getSystemParams().getL_m(), random));
+    }
+
+    /**
+     * Compute the responses of a card holding a credential on the attributes
+     * 1313, 1314, ... signed with the private key of the issuer, for one of
+     * the predicates of a specification.
+     */
+    private ProtocolResponses respond(ProofSpec spec, int predicate, BigInteger master) {
+        String suffix = predicate == 0 ? "" : "#" + predicate;
+        IssuerPublicKey pk = issuerKey.getPublicKey();
+        SystemParameters sp = pk.getGroupParams().getSystemParams();
+        BigInteger n = pk.getN();
+        BigInteger capS = pk.getCapS();
+        BigInteger[] capR = pk.getCapR();
+        BigInteger order = issuerKey.getPrivateKey().getPPrime().multiply(
+                issuerKey.getPrivateKey().getQPrime());
+        CLPredicate pred = (CLPredicate) spec.getPredicates().get(predicate);
+        CredentialStructure cred = (CredentialStructure) StructureStore.getInstance().get(
+                pred.getCredStructLocation());
+        int attributes = cred.getAttributeStructs().size();
+
+        // Signature (A, e, v) on the master secret m_0 and the attributes
+        BigInteger[] m = new BigInteger[1 + attributes];
+        m[0] = master;
+        for (int i = 1; i <= attributes; i++) {
+            m[i] = BigInteger.valueOf(1312 + i);
+        }
+        BigInteger eOffset = BigInteger.ONE.shiftLeft(sp.getL_e() - 1);
+        BigInteger e = eOffset.add(new BigInteger(sp.getL_ePrime() - 2, random)).nextProbablePrime();
+        BigInteger v = new BigInteger(sp.getL_v() - 1, random).setBit(sp.getL_v() - 1);
+        BigInteger capQ = capS.modPow(v, n);
+        for (int i = 0; i <= attributes; i++) {
+            capQ = capQ.multiply(capR[i].modPow(m[i], n)).mod(n);
+        }
+        capQ = pk.getCapZ().multiply(capQ.modInverse(n)).mod(n);
+        BigInteger capA = capQ.modPow(e.modInverse(order), n);
+
+        // Randomised signature and commitment, as the card computes them
+        BigInteger r_A = new BigInteger(sp.getL_n() + sp.getL_Phi(), random);
+        BigInteger capAPrime = capA.multiply(capS.modPow(r_A, n)).mod(n);
+        BigInteger vPrime = v.subtract(e.multiply(r_A));
+        BigInteger ePrime = e.subtract(eOffset);
+
+        int l_mTilde = sp.getL_m() + sp.getL_Phi() + sp.getL_H();
+        BigInteger eTilde = new BigInteger(sp.getL_ePrime() + sp.getL_Phi() + sp.getL_H(), random);
+        BigInteger vTilde = new BigInteger(sp.getL_v() + sp.getL_Phi() + sp.getL_H(), random);
+        BigInteger[] mTilde = new BigInteger[1 + attributes];
+        boolean[] revealed = new boolean[1 + attributes];
+        for (AttributeStructure attribute : cred.getAttributeStructs()) {
+            revealed[attribute.getKeyIndex()] =
+                    pred.getIdentifier(attribute.getName()).isRevealed();
+        }
+        BigInteger capT = capAPrime.modPow(eTilde, n).multiply(capS.modPow(vTilde, n)).mod(n);
+        for (int i = 0; i <= attributes; i++) {
+            if (!revealed[i]) {
+                mTilde[i] = new BigInteger(l_mTilde, random);
+                capT = capT.multiply(capR[i].modPow(mTilde[i], n)).mod(n);
+            }
+        }
+
+        Vector<BigInteger> list = new Vector<BigInteger>();
+        list.add(spec.getContext());
+        list.add(capAPrime);
+        list.add(capT);
+        list.add(nonce);
+        BigInteger c = Utils.computeHash(list, sp.getL_H());
+
+        ProtocolResponses responses = new ProtocolResponses();
+        put(responses, "challenge_c" + suffix, c);
+        put(responses, "signature_A" + suffix, capAPrime);
+        put(responses, "signature_e" + suffix, eTilde.add(c.multiply(ePrime)));
+        put(responses, "signature_v" + suffix, vTilde.add(c.multiply(vPrime)));
+        put(responses, "master" + suffix, mTilde[0].add(c.multiply(m[0])));
+        for (AttributeStructure attribute : cred.getAttributeStructs()) {
+            int i = attribute.getKeyIndex();
+            put(responses, "attr_" + attribute.getName() + suffix,
+                    revealed[i] ? m[i] : mTilde[i].add(c.multiply(m[i])));
+        }
+        return responses;
+    }
+
+    private static BigInteger get(ProtocolResponses responses, String key) {
+        return new BigInteger(1, responses.get(key).getData());
+    }
+
+    private static void put(ProtocolResponses responses, String key, BigInteger value) {
+        byte[] magnitude = value.toByteArray();
+        byte[] data = new byte[magnitude.length + 2];
+        System.arraycopy(magnitude, 0, data, 0, magnitude.length);
+        data[data.length - 2] = (byte) 0x90;
+        data[data.length - 1] = 0x00;
+        responses.put(key, new ProtocolResponse(key, new ResponseAPDU(data)));
+    }
+}
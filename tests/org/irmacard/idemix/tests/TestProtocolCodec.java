@@ -0,0 +1,151 @@
+/**
+ * TestProtocolCodec.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ProtocolCommand;
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+import net.sourceforge.scuba.smartcards.ProtocolResponse;
+import net.sourceforge.scuba.smartcards.ProtocolResponses;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.ProtocolCodec;
+import org.junit.Test;
+
+public class TestProtocolCodec {
+
+    static ProtocolCommands commands() {
+        ProtocolCommands commands = new ProtocolCommands();
+        commands.add(new ProtocolCommand("startprove", "Start credential proof",
+                new CommandAPDU(new byte[] { (byte) 0x80, 0x20, 0x00, 0x00, 0x02, 0x00, 0x0A })));
+        for (int i = 0; i < 12; i++) {
+            byte[] apdu = new byte[5 + 128];
+            apdu[0] = (byte) 0x80;
+            apdu[1] = 0x21;
+            apdu[3] = (byte) i;
+            apdu[4] = (byte) 128;
+            Arrays.fill(apdu, 5, apdu.length, (byte) i);
+            commands.add(new ProtocolCommand("setattr" + i, "Set attribute (m@index" + i + ")",
+                    new CommandAPDU(apdu)));
+        }
+        commands.add(new ProtocolCommand("attr_expiry", "Get random value (@index 3).",
+                new CommandAPDU(new byte[] { (byte) 0x80, 0x2B, 0x03, 0x00 })));
+        commands.add(new ProtocolCommand("cert_0255", "Unknown numbered key",
+                new CommandAPDU(new byte[] { 0x00, (byte) 0xA4, 0x04, 0x00 })));
+        commands.add(new ProtocolCommand("custom key \u00e9", "Unknown key",
+                new CommandAPDU(new byte[] { 0x00, (byte) 0xA4, 0x04, 0x00 })));
+        return commands;
+    }
+
+    @Test
+    public void roundTripCommands() {
+        ProtocolCommands commands = commands();
+        commands.addAll(IdemixSmartcard.queryPinCommand(new CardVersion(0, 8, 1), (byte) 0));
+
+        ProtocolCommands decoded = ProtocolCodec.decodeCommands(ProtocolCodec.encode(commands));
+        assertEquals(commands.size(), decoded.size());
+        for (int i = 0; i < commands.size(); i++) {
+            assertEquals(commands.get(i).getKey(), decoded.get(i).getKey());
+            assertEquals(commands.get(i).getKey(), decoded.get(i).getDescription());
+            assertArrayEquals(commands.get(i).getAPDU().getBytes(), decoded.get(i).getAPDU().getBytes());
+        }
+    }
+
+    @Test
+    public void roundTripResponses() {
+        ProtocolResponses responses = new ProtocolResponses();
+        for (ProtocolCommand command : commands()) {
+            byte[] apdu = new byte[34];
+            Arrays.fill(apdu, (byte) command.getKey().length());
+            apdu[32] = (byte) 0x90;
+            apdu[33] = 0x00;
+            responses.put(command.getKey(), new ProtocolResponse(command.getKey(), new ResponseAPDU(apdu)));
+        }
+        responses.put("querypin", new ProtocolResponse("querypin",
+                new ResponseAPDU(new byte[] { 0x63, (byte) 0xC2 })));
+
+        ProtocolResponses decoded = ProtocolCodec.decodeResponses(ProtocolCodec.encode(responses));
+        assertEquals(responses.keySet(), decoded.keySet());
+        for (String key : responses.keySet()) {
+            assertEquals(key, decoded.get(key).getKey());
+            assertArrayEquals(responses.get(key).getAPDU().getBytes(), decoded.get(key).getAPDU().getBytes());
+        }
+        assertEquals(0x63C2, decoded.get("querypin").getAPDU().getSW());
+    }
+
+    @Test
+    public void smallerThanSerialization() throws IOException {
+        ProtocolCommands commands = commands();
+        int apduBytes = 0;
+        for (ProtocolCommand command : commands) {
+            apduBytes += command.getAPDU().getBytes().length;
+        }
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(commands);
+        out.close();
+
+        byte[] encoded = ProtocolCodec.encode(commands);
+        // at most a key tag, a suffix and a length of two bytes per command
+        assertTrue(encoded.length <= 2 + apduBytes + 4 * commands.size() + 32);
+        assertTrue(encoded.length < serialized.size());
+    }
+
+    @Test
+    public void rejectMalformed() {
+        byte[] encoded = ProtocolCodec.encode(commands());
+        byte[][] malformed = {
+                new byte[0],
+                new byte[] { ProtocolCodec.TYPE_RESPONSES, 0x00 },
+                Arrays.copyOf(encoded, encoded.length - 1),
+                Arrays.copyOf(encoded, encoded.length + 1),
+                new byte[] { ProtocolCodec.TYPE_COMMANDS, 0x01, 0x7F, 0x00 },
+                new byte[] { ProtocolCodec.TYPE_COMMANDS, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                        (byte) 0xFF, (byte) 0xFF, 0x01 },
+                new byte[] { ProtocolCodec.TYPE_COMMANDS, (byte) 0x80, (byte) 0x80, (byte) 0x80,
+                        (byte) 0x80, 0x10 },
+        };
+        for (byte[] message : malformed) {
+            try {
+                ProtocolCodec.decodeCommands(message);
+                fail("Decoded " + Arrays.toString(message));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        try {
+            ProtocolCodec.decodeResponses(new byte[] { ProtocolCodec.TYPE_RESPONSES, 0x01, 0x04, 0x01, 0x00 });
+            fail("Decoded a response without status word");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
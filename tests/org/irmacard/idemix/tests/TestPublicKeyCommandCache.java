@@ -0,0 +1,96 @@
+/**
+ * TestPublicKeyCommandCache.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.net.URI;
+
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+
+import org.irmacard.idemix.IdemixSmartcard;
+import org.irmacard.idemix.PublicKeyCommandCache;
+import org.irmacard.idemix.util.CardVersion;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ibm.zurich.credsystem.utils.Locations;
+import com.ibm.zurich.idmx.key.IssuerPublicKey;
+import com.ibm.zurich.idmx.utils.StructureStore;
+
+public class TestPublicKeyCommandCache {
+    public static final URI BASE_LOCATION = new File(
+            System.getProperty("user.dir")).toURI().resolve("files/parameter/");
+    public static final URI BASE_ID = URI.create("http://www.zurich.ibm.com/security/idmx/v2/");
+    public static final URI ISSUER_ID = URI.create("http://www.issuer.com/");
+
+    private IssuerPublicKey pubKey;
+
+    @Before
+    public void loadKey() {
+        Locations.initSystem(BASE_LOCATION, BASE_ID.toString());
+        Locations.init(ISSUER_ID.resolve("ipk.xml"),
+                BASE_LOCATION.resolve("../issuerData/ipk.xml"));
+        pubKey = (IssuerPublicKey) StructureStore.getInstance().get(
+                ISSUER_ID.resolve("ipk.xml"));
+        IdemixSmartcard.getPublicKeyCache().clear();
+        IdemixSmartcard.getPublicKeyCache().resetMetrics();
+    }
+
+    @Test
+    public void reuseEncodedCommands() {
+        CardVersion cv = new CardVersion(0, 8, 1);
+        PublicKeyCommandCache cache = IdemixSmartcard.getPublicKeyCache();
+
+        ProtocolCommands first = IdemixSmartcard.setPublicKeyCommands(cv, pubKey, 6);
+        ProtocolCommands second = IdemixSmartcard.setPublicKeyCommands(new CardVersion(0, 8, 1), pubKey, 6);
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+        assertNotSame(first, second);
+        assertEquals(9, second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertSame(first.get(i), second.get(i));
+        }
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() {
+        PublicKeyCommandCache cache = new PublicKeyCommandCache(2);
+        CardVersion cv1 = new CardVersion(0, 8, 0);
+        CardVersion cv2 = new CardVersion(0, 8, 1);
+        CardVersion cv3 = new CardVersion(0, 8, 2);
+
+        cache.put(cv1, pubKey, 6, new ProtocolCommands());
+        cache.put(cv2, pubKey, 6, new ProtocolCommands());
+        cache.get(cv1, pubKey, 6);
+        cache.put(cv3, pubKey, 6, new ProtocolCommands());
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(cv2, pubKey, 6));
+        assertNull(cache.get(cv1, pubKey, 5));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * TestSessionExecutor.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+
+import org.irmacard.idemix.CardJob;
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.SessionExecutor;
+import org.junit.Test;
+
+public class TestSessionExecutor {
+
+    private static final CardJob<Integer> QUERY_PIN = new CardJob<Integer>() {
+        public Integer run(IdemixService service) throws CardServiceException {
+            return service.queryCredentialPin();
+        }
+    };
+
+    @Test
+    public void manySessions() throws Exception {
+        SessionExecutor sessions = new SessionExecutor();
+        List<IdemixCardSimulator> cards = new ArrayList<IdemixCardSimulator>();
+        List<CompletableFuture<Integer>> results = new ArrayList<CompletableFuture<Integer>>();
+        for (int i = 0; i < 200; i++) {
+            IdemixCardSimulator card = new IdemixCardSimulator();
+            card.setLatency(1, TimeUnit.MILLISECONDS);
+            cards.add(card);
+            results.add(sessions.submit(card, TestSimulator.DEFAULT_PIN, QUERY_PIN));
+        }
+        for (CompletableFuture<Integer> result : results) {
+            assertEquals(Integer.valueOf(-1), result.get());
+        }
+        for (IdemixCardSimulator card : cards) {
+            assertFalse(card.isOpen());
+        }
+
+        sessions.shutdown();
+        assertTrue(sessions.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(200, sessions.getCompleted());
+        assertEquals(0, sessions.getActive());
+    }
+
+    @Test
+    public void virtualThreads() {
+        // Virtual threads are final from Java 21 onwards
+        boolean supported = Runtime.version().feature() >= 21;
+        SessionExecutor sessions = new SessionExecutor();
+        assertEquals(supported, sessions.isVirtual());
+        sessions.shutdown();
+
+        sessions = new SessionExecutor(Executors.newFixedThreadPool(2));
+        assertFalse(sessions.isVirtual());
+        sessions.shutdown();
+    }
+
+    @Test
+    public void rejectPin() throws Exception {
+        SessionExecutor sessions = new SessionExecutor();
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        try {
+            sessions.submit(card, new byte[] {0x31, 0x31, 0x31, 0x31}, QUERY_PIN).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(0x63C2, ((CardServiceException) e.getCause()).getSW());
+        }
+        assertFalse(card.isOpen());
+        assertEquals(1, sessions.getFailed());
+        sessions.shutdown();
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * TestSessionState.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ProtocolCommand;
+import net.sourceforge.scuba.smartcards.ProtocolCommands;
+import net.sourceforge.scuba.smartcards.ProtocolResponse;
+import net.sourceforge.scuba.smartcards.ProtocolResponses;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+import org.irmacard.idemix.SessionState;
+import org.irmacard.idemix.util.CardVersion;
+import org.junit.Test;
+
+public class TestSessionState {
+    static final URI SPEC_ID = URI.create("http://www.irmacard.org/credentials/phase1/RU/studentCard/spec.xml");
+    static final SecretKey KEY = new SecretKeySpec(new byte[32], "HmacSHA256");
+    static final long MAX_AGE = 60000;
+    static final String[] KEYS = { "startprove", "challenge_c", "signature_A", "signature_e",
+            "signature_v", "master", "attr_university", "attr_studentID" };
+
+    static ProtocolCommands commands() {
+        ProtocolCommands commands = new ProtocolCommands();
+        for (String key : KEYS) {
+            commands.add(new ProtocolCommand(key, key,
+                    new CommandAPDU(new byte[] { (byte) 0x80, 0x2B, 0x00, 0x00 })));
+        }
+        return commands;
+    }
+
+    static SessionState state(CardVersion cv) {
+        return SessionState.proof(cv, SPEC_ID, new BigInteger(80, new java.util.Random(1)), commands());
+    }
+
+    @Test
+    public void roundTrip() {
+        CardVersion cv = new CardVersion(0, 8, 1, null, "alpha", 2);
+        SessionState state = state(cv);
+
+        byte[] token = state.encode();
+        assertTrue(token.length < 200);
+        SessionState restored = SessionState.decode(token);
+
+        assertEquals(SessionState.Step.PROVE, restored.getStep());
+        assertEquals(cv, restored.getCardVersion());
+        assertEquals(cv.toString(), restored.getCardVersion().toString());
+        assertEquals(SPEC_ID, restored.getProofSpecId());
+        assertEquals(state.getNonce(), restored.getNonce());
+        assertEquals(state.getCreated(), restored.getCreated());
+        assertArrayEquals(KEYS, restored.getExpectedKeys());
+        assertNull(restored.getIssuanceSpec());
+    }
+
+    @Test
+    public void authenticated() {
+        byte[] token = state(new CardVersion(0, 8, 1)).encode(KEY);
+        assertEquals(SPEC_ID, SessionState.decode(token, KEY, MAX_AGE).getProofSpecId());
+
+        for (int i = 0; i < token.length; i++) {
+            byte[] tampered = token.clone();
+            tampered[i] ^= 0x01;
+            try {
+                SessionState.decode(tampered, KEY, MAX_AGE);
+                fail("Accepted a token modified at " + i);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        try {
+            SessionState.decode(token, new SecretKeySpec(new byte[] { 1 }, "HmacSHA256"), MAX_AGE);
+            fail("Accepted a token with another key");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectExpired() throws InterruptedException {
+        byte[] token = state(new CardVersion(0, 8, 1)).encode(KEY);
+        Thread.sleep(20);
+        assertEquals(SPEC_ID, SessionState.decode(token, KEY, MAX_AGE).getProofSpecId());
+
+        try {
+            SessionState.decode(token, KEY, 10);
+            fail("Accepted an expired token");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectMalformed() {
+        byte[] token = state(new CardVersion(0, 7, 2)).encode();
+        byte[][] malformed = {
+                new byte[0],
+                Arrays.copyOf(token, token.length - 1),
+                Arrays.copyOf(token, token.length + 1),
+                new byte[] { 2 },
+        };
+        for (byte[] t : malformed) {
+            try {
+                SessionState.decode(t);
+                fail("Decoded " + Arrays.toString(t));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void checkResponses() throws CardServiceException {
+        SessionState state = SessionState.decode(state(new CardVersion(0, 8, 1)).encode());
+        ProtocolResponses responses = new ProtocolResponses();
+        for (String key : Arrays.copyOf(KEYS, KEYS.length - 1)) {
+            responses.put(key, new ProtocolResponse(key, new ResponseAPDU(new byte[] { 0x01, (byte) 0x90, 0x00 })));
+        }
+
+        try {
+            state.checkResponses(responses);
+            fail("Accepted incomplete responses");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        String last = KEYS[KEYS.length - 1];
+        responses.put(last, new ProtocolResponse(last, new ResponseAPDU(new byte[] { 0x69, (byte) 0x82 })));
+        try {
+            state.checkResponses(responses);
+            fail("Accepted a failed command");
+        } catch (CardServiceException e) {
+            assertEquals(0x6982, e.getSW());
+        }
+
+        responses.put(last, new ProtocolResponse(last, new ResponseAPDU(new byte[] { (byte) 0x90, 0x00 })));
+        state.checkResponses(responses);
+
+        try {
+            state.processRound1Responses(responses);
+            fail("Processed proof responses as issuance");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
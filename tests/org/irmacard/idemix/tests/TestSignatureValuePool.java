@@ -0,0 +1,80 @@
+/**
+ * TestSignatureValuePool.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.irmacard.idemix.util.SignatureValuePool;
+import org.junit.Test;
+
+public class TestSignatureValuePool {
+
+    private static final int L_E = 128;
+    private static final int L_E_PRIME = 40;
+    private static final int L_V = 256;
+
+    @Test
+    public void generateInRange() {
+        Random random = new Random(1);
+        BigInteger low = BigInteger.ONE.shiftLeft(L_E - 1);
+        BigInteger high = low.add(BigInteger.ONE.shiftLeft(L_E_PRIME - 1));
+        for (int i = 0; i < 20; i++) {
+            SignatureValuePool.Randomness values =
+                    SignatureValuePool.generate(L_E, L_E_PRIME, L_V, random);
+            BigInteger e = values.getE();
+            assertTrue(e.isProbablePrime(80));
+            assertTrue(e.compareTo(low) > 0 && e.compareTo(high) < 0);
+            assertEquals(L_V, values.getVPrimePrime().bitLength());
+        }
+    }
+
+    @Test
+    public void takePrepared() throws Exception {
+        SignatureValuePool pool = new SignatureValuePool(8, 2);
+        assertEquals(0, pool.available(L_E, L_E_PRIME, L_V));
+        pool.prepare(L_E, L_E_PRIME, L_V);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.available(L_E, L_E_PRIME, L_V) < 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(8, pool.available(L_E, L_E_PRIME, L_V));
+
+        Set<BigInteger> seen = new HashSet<BigInteger>();
+        for (int i = 0; i < 8; i++) {
+            assertTrue(seen.add(pool.take(L_E, L_E_PRIME, L_V).getVPrimePrime()));
+        }
+        assertEquals(8, pool.getHits());
+        pool.shutdown();
+    }
+
+    @Test
+    public void generateWhenEmpty() {
+        SignatureValuePool pool = new SignatureValuePool(1, 1);
+        pool.shutdown();
+        assertFalse(pool.take(L_E, L_E_PRIME, L_V) == null);
+        assertEquals(1, pool.getMisses());
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * TestSimulator.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.irmacard.idemix.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.scuba.smartcards.CardServiceException;
+import net.sourceforge.scuba.smartcards.CommandAPDU;
+import net.sourceforge.scuba.smartcards.ProtocolCommand;
+import net.sourceforge.scuba.smartcards.ResponseAPDU;
+
+import org.irmacard.idemix.IdemixCardSimulator;
+import org.irmacard.idemix.IdemixService;
+import org.irmacard.idemix.util.CardVersion;
+import org.irmacard.idemix.util.IdemixLogEntry;
+import org.junit.Test;
+
+public class TestSimulator {
+    public static final byte[] DEFAULT_PIN = {0x30, 0x30, 0x30, 0x30};
+    public static final byte[] DEFAULT_CARD_PIN = {0x30, 0x30, 0x30, 0x30, 0x30, 0x30};
+
+    @Test
+    public void selectApplet() throws CardServiceException {
+        IdemixService is = new IdemixService(new IdemixCardSimulator());
+        is.open();
+        assertEquals(0, is.getCardVersion().compareTo(new CardVersion(0, 8, 1)));
+    }
+
+    @Test
+    public void transmitOverride() throws CardServiceException {
+        final int[] transmitted = {0};
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        IdemixService is = new IdemixService(card) {
+            public ResponseAPDU transmit(CommandAPDU capdu) throws CardServiceException {
+                transmitted[0]++;
+                return super.transmit(capdu);
+            }
+        };
+        is.open();
+        is.sendCredentialPin(DEFAULT_PIN);
+        assertTrue(transmitted[0] > 0);
+        assertEquals(card.getTransmitted(), transmitted[0]);
+    }
+
+    @Test
+    public void verifyPins() throws CardServiceException {
+        IdemixService is = new IdemixService(new IdemixCardSimulator());
+        is.open();
+        assertEquals(2, is.sendCardPin(new byte[] {0x31, 0x31, 0x31, 0x31, 0x31, 0x31}));
+        assertEquals(-1, is.sendCardPin(DEFAULT_CARD_PIN));
+        assertEquals(-1, is.queryCardPin());
+        assertEquals(3, is.queryCredentialPin());
+        assertEquals(-1, is.sendCredentialPin(DEFAULT_PIN));
+    }
+
+    @Test
+    public void emptyCard() throws CardServiceException {
+        IdemixService is = new IdemixService(new IdemixCardSimulator());
+        is.open();
+        is.sendCardPin(DEFAULT_CARD_PIN);
+        assertTrue(is.getCredentials().isEmpty());
+
+        List<IdemixLogEntry> list = is.getLogEntries();
+        assertEquals(30, list.size());
+        for (IdemixLogEntry l : list) {
+            assertTrue(l.getAction() == IdemixLogEntry.Action.NONE);
+        }
+    }
+
+    @Test
+    public void latency() throws CardServiceException {
+        IdemixCardSimulator card = new IdemixCardSimulator();
+        card.setLatency(5, TimeUnit.MILLISECONDS);
+        IdemixService is = new IdemixService(card);
+        is.open();
+        is.sendCardPin(DEFAULT_CARD_PIN);
+
+        long start = System.nanoTime();
+        is.getLogEntries();
+        assertTrue(System.nanoTime() - start >= 2 * 5000000);
+        assertEquals(4, card.getTransmitted());
+    }
+
+    /**
+     * Issue a credential with a single attribute on the simulator using raw
+     * APDUs, which leaves an entry with the given timestamp in the log.
+     */
+    public static void issue(IdemixService is, short id, int timestamp) throws CardServiceException {
+        is.sendCredentialPin(DEFAULT_PIN);
+
+        // id (2), size (2), flags (3), context (20), timestamp (4)
+        byte[] start = new byte[31];
+        start[0] = (byte) (id >> 8);
+        start[1] = (byte) id;
+        start[3] = 1;
+        start[27] = (byte) (timestamp >> 24);
+        start[28] = (byte) (timestamp >> 16);
+        start[29] = (byte) (timestamp >> 8);
+        start[30] = (byte) timestamp;
+        is.execute(new ProtocolCommand("start", "Start issuance",
+                new CommandAPDU(0x80, 0x10, 0x00, 0x00, start)));
+        is.execute(new ProtocolCommand("attr", "Set attribute",
+                new CommandAPDU(0x80, 0x12, 0x01, 0x00, new byte[32])));
+        is.execute(new ProtocolCommand("verify", "Finish issuance",
+                new CommandAPDU(0x80, 0x1F, 0x00, 0x00)));
+    }
+}